@@ -5,6 +5,11 @@ public class ProxyEvaluationException extends Exception {
 
     private static final long serialVersionUID = 1L;
 
+    public ProxyEvaluationException(final String message) {
+
+        super(message);
+    }
+
     public ProxyEvaluationException(final Throwable cause) {
 
         super(cause);
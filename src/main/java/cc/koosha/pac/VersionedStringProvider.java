@@ -0,0 +1,22 @@
+package cc.koosha.pac;
+
+
+/**
+ * A {@link StringProvider} which can tell cheaply whether its text changed,
+ * so that whatever is derived from the text (e.g. a compiled script) can be
+ * reused as long as the version stays the same.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public interface VersionedStringProvider extends StringProvider {
+
+    /**
+     * A stamp which changes whenever the text returned by {@link #get()}
+     * changes, for example a modification time, an ETag hash or a counter.
+     * It must be much cheaper to call than {@link #get()}.
+     *
+     * @return current version of the text.
+     */
+    long version();
+
+}
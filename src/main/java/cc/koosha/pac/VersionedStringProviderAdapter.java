@@ -0,0 +1,146 @@
+package cc.koosha.pac;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Adapts a plain {@link StringProvider} to {@link VersionedStringProvider}.
+ * <p>
+ * A plain provider has no notion of version, so by default its text is read
+ * once and taken as constant. Optionally it is read again once a check
+ * interval passed, by a single caller while the others keep getting the
+ * text last read, and the version only moves when the text actually
+ * changes. Comparing is by reference first, so providers returning the same
+ * String instance are never compared char by char.
+ * <p>
+ * Neither {@link #version()} nor {@link #get()} take a lock once the text
+ * was first read.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class VersionedStringProviderAdapter implements VersionedStringProvider {
+
+    /**
+     * The text as last read, its version and when it was read.
+     */
+    private static final class Snapshot {
+
+        final String text;
+        final long   version;
+        final long   readAt;
+
+        Snapshot(final String text, final long version, final long readAt) {
+
+            this.text = text;
+            this.version = version;
+            this.readAt = readAt;
+        }
+    }
+
+    private final StringProvider delegate;
+    private final long           checkIntervalNanos;
+    private final AtomicBoolean  checking = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Reads the text once, and never again.
+     *
+     * @param delegate the provider to adapt.
+     */
+    public VersionedStringProviderAdapter(final StringProvider delegate) {
+
+        this(delegate, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param delegate      the provider to adapt.
+     * @param checkInterval how long the text last read is used before being
+     *                      read again to check for changes, 0 to read it on
+     *                      every call.
+     * @param unit          unit of checkInterval.
+     */
+    public VersionedStringProviderAdapter(final StringProvider delegate,
+                                          final long checkInterval,
+                                          final TimeUnit unit) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+        if (unit == null)
+            throw new NullPointerException("unit");
+
+        if (checkInterval < 0)
+            throw new IllegalStateException("checkInterval must be >= 0: " + checkInterval);
+
+        this.delegate = delegate;
+        this.checkIntervalNanos = unit.toNanos(checkInterval);
+    }
+
+    /**
+     * Returns the given provider if it is already versioned, else adapts it,
+     * reading its text once.
+     *
+     * @param provider the provider to adapt.
+     *
+     * @return a versioned view of the given provider.
+     */
+    public static VersionedStringProvider of(final StringProvider provider) {
+
+        return provider instanceof VersionedStringProvider
+               ? (VersionedStringProvider) provider
+               : new VersionedStringProviderAdapter(provider);
+    }
+
+    @Override
+    public long version() {
+
+        return this.current().version;
+    }
+
+    @Override
+    public String get() {
+
+        return this.current().text;
+    }
+
+    private Snapshot current() {
+
+        final Snapshot snapshot = this.snapshot;
+
+        if (snapshot == null)
+            return this.first();
+
+        if (this.checkIntervalNanos == Long.MAX_VALUE
+                || System.nanoTime() - snapshot.readAt < this.checkIntervalNanos
+                || !this.checking.compareAndSet(false, true))
+            return snapshot;
+
+        try {
+            return this.check(snapshot);
+        }
+        finally {
+            this.checking.set(false);
+        }
+    }
+
+    private synchronized Snapshot first() {
+
+        Snapshot snapshot = this.snapshot;
+        if (snapshot == null)
+            this.snapshot = snapshot = new Snapshot(this.delegate.get(), 0, System.nanoTime());
+
+        return snapshot;
+    }
+
+    private Snapshot check(final Snapshot last) {
+
+        final String current = this.delegate.get();
+        final long   now     = System.nanoTime();
+
+        final boolean same = current == last.text || current != null && current.equals(last.text);
+
+        return this.snapshot = new Snapshot(current, same ? last.version : last.version + 1, now);
+    }
+
+}
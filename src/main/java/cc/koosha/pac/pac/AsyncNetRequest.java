@@ -0,0 +1,33 @@
+package cc.koosha.pac.pac;
+
+import java.net.InetAddress;
+import java.util.concurrent.Future;
+
+
+/**
+ * A {@link NetRequest} which can resolve hosts ahead of being asked, such as
+ * to overlap a lookup with the rest of proxy selection. Lookups of a host
+ * asked for while it is being resolved wait for that resolution instead of
+ * starting another one.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public interface AsyncNetRequest extends NetRequest {
+
+    /**
+     * Starts resolving a host, without waiting for it.
+     *
+     * @param host the host to resolve.
+     *
+     * @return the resolution, resulting in all the addresses of the host, or
+     * in null if it has none. The array may be shared, and must not be
+     * modified.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     *                                                         resolution
+     *                                                         can not be
+     *                                                         started.
+     */
+    Future<InetAddress[]> lookup(String host);
+
+}
@@ -0,0 +1,118 @@
+package cc.koosha.pac.pac;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A map holding at most a fixed number of keys, evicting by CLOCK once
+ * full, see {@link ClockRing}: keys read since the hand last passed get a
+ * second chance, the first which was not is evicted.
+ * <p>
+ * Reads take no lock, they only mark the key as read. Writes take a lock,
+ * and evicting costs a constant time on average, however many keys are
+ * held.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class BoundedCache<K, V> {
+
+    private static final class Node<K, V> extends ClockRing.Node {
+
+        final K key;
+
+        volatile V value;
+
+        Node(final K key, final V value) {
+
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+
+    // Guards the ring.
+    private final ReentrantLock         lock = new ReentrantLock();
+    private final ClockRing<Node<K, V>> ring;
+
+    /**
+     * @param maxSize max number of keys held.
+     */
+    public BoundedCache(final int maxSize) {
+
+        if (maxSize < 1)
+            throw new IllegalStateException("maxSize must be >= 1: " + maxSize);
+
+        this.ring = new ClockRing<>(maxSize);
+    }
+
+    /**
+     * @return the value of the key, or null if it is not held.
+     */
+    public V get(final K key) {
+
+        final Node<K, V> node = this.map.get(key);
+        if (node == null)
+            return null;
+
+        ClockRing.hit(node);
+        return node.value;
+    }
+
+    /**
+     * Sets the value of a key, evicting another key if full.
+     */
+    public void put(final K key, final V value) {
+
+        this.lock.lock();
+        try {
+            final Node<K, V> node = this.map.get(key);
+            if (node != null) {
+                node.value = value;
+                return;
+            }
+
+            final Node<K, V> added   = new Node<>(key, value);
+            final Node<K, V> evicted = this.ring.add(null, added);
+
+            this.map.put(key, added);
+            if (evicted != null)
+                this.map.remove(evicted.key, evicted);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void remove(final K key) {
+
+        this.lock.lock();
+        try {
+            final Node<K, V> node = this.map.remove(key);
+            if (node != null)
+                this.ring.remove(node);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void clear() {
+
+        this.lock.lock();
+        try {
+            this.map.clear();
+            this.ring.clear();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int size() {
+
+        return this.map.size();
+    }
+
+}
@@ -0,0 +1,281 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.VersionedStringProvider;
+import cc.koosha.pac.VersionedStringProviderAdapter;
+import cc.koosha.pac.pac.JsNode.FunctionDef;
+import cc.koosha.pac.pac.JsRuntime.JsFunction;
+
+
+/**
+ * PAC parser with its own interpreter for the subset of JavaScript PAC
+ * scripts are written in, needing no javax.script engine.
+ * <p>
+ * The script is parsed once per {@link VersionedStringProvider#version()} of
+ * the source and kept as a syntax tree. The PAC functions
+ * (<code>isInNet</code>, <code>dnsResolve</code>, ...) are bound directly to
+ * {@link ScriptMethods}, without reflection or shims. A parser is safe for
+ * concurrent use, and evaluations never see each other's writes: each runs
+ * in its own global scope on top of the loaded script, receiving writes to
+ * global variables. Objects and arrays the loaded script created are
+ * shared by all evaluations though, so scripts which may modify them (or
+ * state held in closures), as found by {@link PacScriptAnalysis}, have
+ * their top level statements run again in each evaluation's own scope
+ * instead, as an engine evaluating the whole source each time would.
+ * <p>
+ * The supported language is described in {@link JsParser}, scripts using
+ * anything else fail to load with a {@link ProxyEvaluationException}, in
+ * which case {@link JavaxPacScriptParser} should be used instead.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class BuiltinPacScriptParser implements PacScriptParser {
+
+    /**
+     * A version of the script, as loaded into the interpreter.
+     */
+    private static final class Loaded {
+
+        final long        version;
+        final FunctionDef program;
+        final JsScope     scope;
+        final boolean     isolated; // Top level run again per evaluation.
+
+        Loaded(final long version,
+               final FunctionDef program,
+               final JsScope scope,
+               final boolean isolated) {
+
+            this.version = version;
+            this.program = program;
+            this.scope = scope;
+            this.isolated = isolated;
+        }
+    }
+
+    private final VersionedStringProvider scriptSource;
+    private final JsScope                 root;
+
+    private volatile Loaded loaded;
+
+    public BuiltinPacScriptParser(final StringProvider scriptSource) {
+
+        this(scriptSource, new DefaultNetRequest());
+    }
+
+    public BuiltinPacScriptParser(final StringProvider scriptSource,
+                                  final NetRequest netRequest) {
+
+        this(scriptSource, new DefaultPacScriptMethods(netRequest));
+    }
+
+    public BuiltinPacScriptParser(final StringProvider scriptSource,
+                                  final ScriptMethods methods) {
+
+        if (scriptSource == null)
+            throw new NullPointerException("scriptSource");
+        if (methods == null)
+            throw new NullPointerException("methods");
+
+        this.scriptSource = VersionedStringProviderAdapter.of(scriptSource);
+
+        this.root = JsScope.global(null);
+        JsRuntime.defineGlobals(this.root);
+        for (final String name : PacFunction.NAMES)
+            this.root.define(name, new PacFunction(name, methods));
+        this.root.freeze();
+    }
+
+    @Override
+    public String evaluate(final String url,
+                           final String host) throws ProxyEvaluationException {
+
+        final Loaded            loaded  = this.current();
+        final EvaluationContext context = EvaluationContext.begin();
+
+        try {
+            final JsScope global;
+            if (loaded.isolated) {
+                global = JsScope.global(this.root);
+                loaded.program.hoist(global);
+                for (final JsNode.Stmt stmt : loaded.program.body)
+                    stmt.exec(global);
+            }
+            else {
+                global = JsScope.global(loaded.scope);
+            }
+
+            final Object  fn     = global.find(JavaxPacScriptParser.FIND_PROXY_FOR_URL);
+            if (!(fn instanceof JsFunction))
+                throw new ProxyEvaluationException(
+                        JavaxPacScriptParser.FIND_PROXY_FOR_URL + " is not defined");
+
+            final Object result = ((JsFunction) fn).call(
+                    JsRuntime.UNDEFINED, new Object[]{url, host}, global);
+
+            return result == null || result == JsRuntime.UNDEFINED
+                   ? null
+                   : JsRuntime.toStr(result);
+        }
+        // Script errors, and whatever the script methods throw on arguments
+        // they do not expect, as the engine backed parser reports them.
+        catch (final RuntimeException | StackOverflowError e) {
+            throw new ProxyEvaluationException(e);
+        }
+        finally {
+            context.end();
+        }
+    }
+
+    /**
+     * Gets the loaded script, loading it first if the source version moved.
+     */
+    private Loaded current() throws ProxyEvaluationException {
+
+        final long   version = this.scriptSource.version();
+        final Loaded loaded  = this.loaded;
+
+        return loaded != null && loaded.version == version
+               ? loaded
+               : this.load(version);
+    }
+
+    /**
+     * Parses the script and runs its top level statements, the resulting
+     * scope is frozen and shared by all evaluations, unless the script may
+     * modify what it holds.
+     */
+    private synchronized Loaded load(final long version) throws ProxyEvaluationException {
+
+        Loaded loaded = this.loaded;
+        if (loaded != null && loaded.version == version)
+            return loaded;
+
+        final String script = this.scriptSource.get();
+        if (script == null)
+            throw new ProxyEvaluationException("no script");
+
+        try {
+            final FunctionDef program = JsParser.parse(script);
+            final JsScope     scope   = JsScope.global(this.root);
+
+            program.hoist(scope);
+            for (final JsNode.Stmt stmt : program.body)
+                stmt.exec(scope);
+            scope.freeze();
+
+            final PacScriptAnalysis analysis = PacScriptAnalysis.analyze(program);
+
+            loaded = new Loaded(version, program, scope, analysis.isStateful() || analysis.isOpaque());
+        }
+        catch (final RuntimeException | StackOverflowError e) {
+            throw new ProxyEvaluationException(e);
+        }
+
+        return this.loaded = loaded;
+    }
+
+    /**
+     * A PAC function, calling the corresponding {@link ScriptMethods} method
+     * directly.
+     */
+    private static final class PacFunction extends JsFunction {
+
+        static final String[] NAMES = {
+                "isPlainHostName",
+                "dnsDomainIs",
+                "localHostOrDomainIs",
+                "isResolvable",
+                "isResolvableEx",
+                "isInNet",
+                "isInNetEx",
+                "dnsResolve",
+                "dnsResolveEx",
+                "myIpAddress",
+                "myIpAddressEx",
+                "dnsDomainLevels",
+                "shExpMatch",
+                "weekdayRange",
+                "dateRange",
+                "timeRange",
+                "sortIpAddressList",
+                "getClientVersion",
+                "isIpAddress",
+        };
+
+        private final ScriptMethods methods;
+
+        PacFunction(final String name, final ScriptMethods methods) {
+
+            super(name);
+            this.methods = methods;
+        }
+
+        @Override
+        Object call(final Object thiz, final Object[] args, final JsScope caller) {
+
+            final ScriptMethods m = this.methods;
+
+            switch (this.name) {
+                case "isPlainHostName":
+                    return m.isPlainHostName(str(args, 0));
+                case "dnsDomainIs":
+                    return m.dnsDomainIs(str(args, 0), str(args, 1));
+                case "localHostOrDomainIs":
+                    return m.localHostOrDomainIs(str(args, 0), str(args, 1));
+                case "isResolvable":
+                    return m.isResolvable(str(args, 0));
+                case "isResolvableEx":
+                    return m.isResolvableEx(str(args, 0));
+                case "isInNet":
+                    return m.isInNet(str(args, 0), str(args, 1), str(args, 2));
+                case "isInNetEx":
+                    return m.isInNetEx(str(args, 0), str(args, 1));
+                case "dnsResolve":
+                    return m.dnsResolve(str(args, 0));
+                case "dnsResolveEx":
+                    return m.dnsResolveEx(str(args, 0));
+                case "myIpAddress":
+                    return m.myIpAddress();
+                case "myIpAddressEx":
+                    return m.myIpAddressEx();
+                case "dnsDomainLevels":
+                    return JsRuntime.number(m.dnsDomainLevels(str(args, 0)));
+                case "shExpMatch":
+                    return m.shExpMatch(str(args, 0), str(args, 1));
+                case "weekdayRange":
+                    return m.weekdayRange(str(args, 0), str(args, 1), str(args, 2));
+                case "dateRange":
+                    return m.dateRange(obj(args, 0), obj(args, 1), obj(args, 2),
+                            obj(args, 3), obj(args, 4), obj(args, 5), obj(args, 6));
+                case "timeRange":
+                    return m.timeRange(obj(args, 0), obj(args, 1), obj(args, 2),
+                            obj(args, 3), obj(args, 4), obj(args, 5), obj(args, 6));
+                case "sortIpAddressList":
+                    return m.sortIpAddressList(str(args, 0));
+                case "getClientVersion":
+                    return m.getClientVersion();
+                case "isIpAddress":
+                    return m.isIpAddress(str(args, 0));
+                default:
+                    throw new IllegalStateException(this.name);
+            }
+        }
+
+        private static String str(final Object[] args, final int index) {
+
+            final Object value = arg(args, index);
+            return value == null || value == JsRuntime.UNDEFINED
+                   ? null
+                   : JsRuntime.toStr(value);
+        }
+
+        private static Object obj(final Object[] args, final int index) {
+
+            final Object value = arg(args, index);
+            return value == JsRuntime.UNDEFINED ? null : value;
+        }
+    }
+
+}
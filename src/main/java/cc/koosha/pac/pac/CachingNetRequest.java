@@ -0,0 +1,326 @@
+package cc.koosha.pac.pac;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Caches the resolutions of a {@link NetRequest}, independent of the JVM
+ * wide <code>networkaddress.cache.ttl</code>.
+ * <p>
+ * A host is resolved once, through the delegate's
+ * {@link NetRequest#tryGetAllByName(String)}, and the resulting record
+ * serves all four lookup methods. Hosts which resolve are kept for the
+ * positive ttl, hosts which do not for the negative ttl.
+ * <p>
+ * With a stale ttl, a resolved host past its positive ttl is still served
+ * for that much longer, while it is resolved again in the background. Only
+ * the first caller after the host expires starts the refresh, the others
+ * keep getting the stale record until the refresh replaces it. A refresh
+ * which fails to resolve the host keeps the stale record, until it dies or
+ * a later refresh succeeds. Hosts which did not resolve are never served
+ * stale.
+ * <p>
+ * At most maxSize hosts are kept. When full, a host not looked up lately is
+ * dropped, see {@link BoundedCache}.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class CachingNetRequest implements NetRequest {
+
+    /**
+     * What a host resolved to, and until when.
+     */
+    private static final class Resolution {
+
+        final InetAddress[] addresses;
+        final long          expireAt;
+        final long          staleUntil;
+
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Resolution(final InetAddress[] addresses,
+                   final long expireAt,
+                   final long staleUntil) {
+
+            this.addresses = addresses;
+            this.expireAt = expireAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    private final BoundedCache<String, Resolution> cache;
+
+    private final NetRequest delegate;
+    private final long       positiveTtlNanos;
+    private final long       negativeTtlNanos;
+    private final long       staleTtlNanos;
+    private final Executor   executor;
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+
+    /**
+     * Never serves stale records.
+     *
+     * @param delegate    the resolver to cache.
+     * @param maxSize     max number of hosts to keep.
+     * @param positiveTtl how long to keep hosts which resolved.
+     * @param negativeTtl how long to keep hosts which did not resolve, 0 to
+     *                    not keep them.
+     * @param unit        unit of the ttl values.
+     */
+    public CachingNetRequest(final NetRequest delegate,
+                             final int maxSize,
+                             final long positiveTtl,
+                             final long negativeTtl,
+                             final TimeUnit unit) {
+
+        this(delegate, maxSize, positiveTtl, negativeTtl, 0, unit, null);
+    }
+
+    /**
+     * Refreshes stale records on a single daemon thread.
+     *
+     * @param delegate    the resolver to cache.
+     * @param maxSize     max number of hosts to keep.
+     * @param positiveTtl how long to keep hosts which resolved.
+     * @param negativeTtl how long to keep hosts which did not resolve, 0 to
+     *                    not keep them.
+     * @param staleTtl    how long past the positive ttl a host is served,
+     *                    while refreshed in the background.
+     * @param unit        unit of the ttl values.
+     */
+    public CachingNetRequest(final NetRequest delegate,
+                             final int maxSize,
+                             final long positiveTtl,
+                             final long negativeTtl,
+                             final long staleTtl,
+                             final TimeUnit unit) {
+
+        this(delegate, maxSize, positiveTtl, negativeTtl, staleTtl, unit,
+                staleTtl > 0
+                ? Executors.newSingleThreadExecutor(new DaemonThreadFactory("pac-dns-refresh"))
+                : null);
+    }
+
+    /**
+     * @param delegate    the resolver to cache.
+     * @param maxSize     max number of hosts to keep.
+     * @param positiveTtl how long to keep hosts which resolved.
+     * @param negativeTtl how long to keep hosts which did not resolve, 0 to
+     *                    not keep them.
+     * @param staleTtl    how long past the positive ttl a host is served,
+     *                    while refreshed in the background, 0 to never serve
+     *                    stale records.
+     * @param unit        unit of the ttl values.
+     * @param executor    runs the background refreshes, may be null if
+     *                    staleTtl is 0.
+     */
+    public CachingNetRequest(final NetRequest delegate,
+                             final int maxSize,
+                             final long positiveTtl,
+                             final long negativeTtl,
+                             final long staleTtl,
+                             final TimeUnit unit,
+                             final Executor executor) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+        if (unit == null)
+            throw new NullPointerException("unit");
+        if (executor == null && staleTtl > 0)
+            throw new NullPointerException("executor");
+
+        if (maxSize < 1)
+            throw new IllegalStateException("maxSize must be >= 1: " + maxSize);
+        if (positiveTtl < 1)
+            throw new IllegalStateException("positiveTtl must be >= 1: " + positiveTtl);
+        if (negativeTtl < 0)
+            throw new IllegalStateException("negativeTtl must be >= 0: " + negativeTtl);
+        if (staleTtl < 0)
+            throw new IllegalStateException("staleTtl must be >= 0: " + staleTtl);
+
+        this.delegate = delegate;
+        this.cache = new BoundedCache<>(maxSize);
+        this.positiveTtlNanos = unit.toNanos(positiveTtl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+        this.staleTtlNanos = unit.toNanos(staleTtl);
+        this.executor = executor;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0];
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? defaultValue : addresses[0].getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0].getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses.clone();
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.delegate.getLocalAddressOfType(cl);
+    }
+
+    /**
+     * Gets the addresses of a host from the cache, resolving it if it is
+     * not there or is dead.
+     *
+     * @return the addresses, never empty, or null if the host does not
+     * resolve.
+     */
+    private InetAddress[] resolve(final String host) {
+
+        // The loopback address, not worth caching.
+        if (host == null)
+            return nonEmpty(this.delegate.tryGetAllByName(null));
+
+        final Resolution cached = this.cache.get(host);
+        final long       now    = System.nanoTime();
+
+        if (cached != null) {
+            if (now - cached.expireAt < 0) {
+                this.hits.incrementAndGet();
+                return cached.addresses;
+            }
+            if (now - cached.staleUntil < 0) {
+                this.staleHits.incrementAndGet();
+                this.refresh(host, cached);
+                return cached.addresses;
+            }
+        }
+
+        this.misses.incrementAndGet();
+        return this.load(host).addresses;
+    }
+
+    private void refresh(final String host, final Resolution stale) {
+
+        if (!stale.refreshing.compareAndSet(false, true))
+            return;
+
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        CachingNetRequest.this.reload(host);
+                    }
+                    finally {
+                        // Let a later caller try again, if this one failed.
+                        stale.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            // Let a later caller try again.
+            stale.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Resolves a stale host again, replacing its record only if it still
+     * resolves.
+     */
+    private void reload(final String host) {
+
+        final InetAddress[] addresses = nonEmpty(this.delegate.tryGetAllByName(host));
+        if (addresses != null)
+            this.cache.put(host, this.resolved(addresses));
+    }
+
+    private Resolution load(final String host) {
+
+        final InetAddress[] addresses = nonEmpty(this.delegate.tryGetAllByName(host));
+
+        final Resolution resolution;
+        if (addresses != null) {
+            resolution = this.resolved(addresses);
+        }
+        else {
+            final long expireAt = System.nanoTime() + this.negativeTtlNanos;
+            resolution = new Resolution(null, expireAt, expireAt);
+        }
+
+        if (addresses == null && this.negativeTtlNanos == 0) {
+            this.cache.remove(host);
+            return resolution;
+        }
+
+        this.cache.put(host, resolution);
+        return resolution;
+    }
+
+    private Resolution resolved(final InetAddress[] addresses) {
+
+        final long expireAt = System.nanoTime() + this.positiveTtlNanos;
+        return new Resolution(addresses, expireAt, expireAt + this.staleTtlNanos);
+    }
+
+    private static InetAddress[] nonEmpty(final InetAddress[] addresses) {
+
+        return addresses == null || addresses.length == 0 ? null : addresses;
+    }
+
+    /**
+     * Drops all records.
+     */
+    public void flush() {
+
+        this.cache.clear();
+    }
+
+    /**
+     * Number of lookups served by a live record.
+     */
+    public long hits() {
+
+        return this.hits.get();
+    }
+
+    /**
+     * Number of lookups served by a stale record, while refreshed.
+     */
+    public long staleHits() {
+
+        return this.staleHits.get();
+    }
+
+    /**
+     * Number of lookups which had to wait for the delegate.
+     */
+    public long misses() {
+
+        return this.misses.get();
+    }
+
+}
@@ -0,0 +1,146 @@
+package cc.koosha.pac.pac;
+
+import java.util.Arrays;
+
+
+/**
+ * The CLOCK eviction policy: nodes sit in a ring of fixed size, a hit only
+ * marks its node referenced, and adding to a full ring sweeps it from the
+ * hand, sparing (and unmarking) referenced nodes until it finds one to
+ * evict. Each node spared is unmarked, so a sweep visits every slot at most
+ * twice, and one slot on average.
+ * <p>
+ * Only {@link #hit(Node)} is safe without a lock, the rest must be guarded
+ * by the caller.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class ClockRing<N extends ClockRing.Node> {
+
+    /**
+     * What the ring holds, extended by the nodes of a cache.
+     */
+    public static class Node {
+
+        volatile boolean referenced = false;
+
+        // Position in the ring, guarded by the caller's lock.
+        int slot = -1;
+
+        /**
+         * @return true to have the node evicted even if referenced, such as
+         * once it expired.
+         */
+        protected boolean isEvictable() {
+
+            return false;
+        }
+    }
+
+    private final Node[] ring;
+    private final int[]  free;
+
+    private int freeCount;
+    private int hand = 0;
+
+    /**
+     * @param size max number of nodes held.
+     */
+    public ClockRing(final int size) {
+
+        if (size < 1)
+            throw new IllegalStateException("size must be >= 1: " + size);
+
+        this.ring = new Node[size];
+        this.free = new int[size];
+        this.clear();
+    }
+
+    /**
+     * Marks a node referenced, sparing it the next time the hand passes.
+     */
+    public static void hit(final Node node) {
+
+        // Written only if not already, to keep hits from invalidating the
+        // cache line of popular nodes on other cores.
+        if (!node.referenced)
+            node.referenced = true;
+    }
+
+    /**
+     * Adds a node, in the place of the previous node of its key if that one
+     * is still held, else in a free slot, else in the place of a node
+     * evicted.
+     *
+     * @param previous the node to replace, or null.
+     *
+     * @return the node evicted, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public N add(final N previous, final N node) {
+
+        if (previous != null && previous.slot >= 0 && this.ring[previous.slot] == previous) {
+            node.slot = previous.slot;
+            this.ring[node.slot] = node;
+            return null;
+        }
+
+        if (this.freeCount > 0) {
+            node.slot = this.free[--this.freeCount];
+            this.ring[node.slot] = node;
+            return null;
+        }
+
+        final int slot    = this.sweep();
+        final N   evicted = (N) this.ring[slot];
+
+        evicted.slot = -1;
+        node.slot = slot;
+        this.ring[slot] = node;
+        return evicted;
+    }
+
+    /**
+     * Frees the slot of a node, if it is held.
+     */
+    public void remove(final N node) {
+
+        if (node.slot >= 0 && this.ring[node.slot] == node) {
+            this.ring[node.slot] = null;
+            this.free[this.freeCount++] = node.slot;
+            node.slot = -1;
+        }
+    }
+
+    public void clear() {
+
+        Arrays.fill(this.ring, null);
+        for (int i = 0; i < this.free.length; i++)
+            this.free[i] = this.free.length - 1 - i;
+
+        this.freeCount = this.free.length;
+        this.hand = 0;
+    }
+
+    /**
+     * Moves the hand to a node not referenced since it last passed, or
+     * evictable. The ring is full.
+     *
+     * @return the slot of the node.
+     */
+    private int sweep() {
+
+        while (true) {
+            final int  slot = this.hand;
+            final Node node = this.ring[slot];
+
+            this.hand = slot + 1 == this.ring.length ? 0 : slot + 1;
+
+            if (!node.referenced || node.isEvictable())
+                return slot;
+
+            node.referenced = false;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package cc.koosha.pac.pac;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coalesces concurrent lookups of a {@link NetRequest}: while a lookup of a
+ * host is in flight, other threads asking about the same host wait for it
+ * and share its result, instead of making a resolver round trip of their
+ * own. A host is resolved through the delegate's
+ * {@link NetRequest#tryGetAllByName(String)}, whichever of the four lookup
+ * methods is called, so that all of them share one flight.
+ * <p>
+ * Nothing is kept once the lookup completes, so this is best put under a
+ * cache, as in
+ * <code>new CachingNetRequest(new CoalescingNetRequest(net), ...)</code>,
+ * where it keeps a popular host expiring from the cache from being resolved
+ * by every evaluation that misses it at once.
+ * <p>
+ * A waiting thread which is interrupted stops waiting and gets the result
+ * of a failed lookup, with its interrupt flag set.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class CoalescingNetRequest implements NetRequest {
+
+    private final ConcurrentHashMap<String, FutureTask<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final NetRequest delegate;
+
+    private final AtomicLong lookups   = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CoalescingNetRequest(final NetRequest delegate) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+
+        this.delegate = delegate;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0];
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? defaultValue : addresses[0].getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0].getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+
+        // Shared by all waiters.
+        return addresses == null ? null : addresses.clone();
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.delegate.getLocalAddressOfType(cl);
+    }
+
+    /**
+     * Resolves a host through the delegate's
+     * {@link NetRequest#tryGetAllByName(String)}, or waits for the
+     * resolution in flight.
+     *
+     * @return the addresses, never empty, or null if the host does not
+     * resolve or waiting was interrupted. Shared, not to be modified.
+     */
+    private InetAddress[] resolve(final String host) {
+
+        // The loopback address, nothing to wait for.
+        if (host == null)
+            return nonEmpty(this.delegate.tryGetAllByName(null));
+
+        return nonEmpty(this.coalesce(host, new Callable<InetAddress[]>() {
+            @Override
+            public InetAddress[] call() {
+
+                return CoalescingNetRequest.this.delegate.tryGetAllByName(host);
+            }
+        }));
+    }
+
+    private static InetAddress[] nonEmpty(final InetAddress[] addresses) {
+
+        return addresses == null || addresses.length == 0 ? null : addresses;
+    }
+
+    /**
+     * Runs the lookup on this thread, unless the same lookup is already in
+     * flight, in which case waits for it.
+     *
+     * @return result of the lookup, null if waiting was interrupted.
+     */
+    private InetAddress[] coalesce(final String key, final Callable<InetAddress[]> lookup) {
+
+        final FutureTask<InetAddress[]> task    = new FutureTask<>(lookup);
+        final FutureTask<InetAddress[]> running = this.inFlight.putIfAbsent(key, task);
+
+        if (running == null) {
+            this.lookups.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                this.inFlight.remove(key, task);
+            }
+        }
+        else {
+            this.coalesced.incrementAndGet();
+        }
+
+        final FutureTask<InetAddress[]> shared = running == null ? task : running;
+        try {
+            return shared.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Number of lookups actually made through the delegate.
+     */
+    public long lookups() {
+
+        return this.lookups.get();
+    }
+
+    /**
+     * Number of lookups served by waiting for one in flight.
+     */
+    public long coalesced() {
+
+        return this.coalesced.get();
+    }
+
+}
@@ -0,0 +1,37 @@
+package cc.koosha.pac.pac;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates daemon threads named by a prefix and a counter, for the background
+ * work of parsers, resolvers and caches which must not keep the JVM alive.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String        prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param prefix prefix of thread names, such as "pac-deadline".
+     */
+    public DaemonThreadFactory(final String prefix) {
+
+        if (prefix == null)
+            throw new NullPointerException("prefix");
+
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+
+        final Thread thread = new Thread(r, this.prefix + "-" + this.count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
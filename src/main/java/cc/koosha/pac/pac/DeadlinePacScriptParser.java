@@ -0,0 +1,233 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounds the time a {@link PacScriptParser} may take to evaluate a single
+ * url, so that a looping script or a black-holed resolver does not hold the
+ * calling thread.
+ * <p>
+ * Each evaluation is run on a watchdog executor while the caller waits at
+ * most the configured deadline. Past the deadline the evaluation is
+ * interrupted and abandoned, and the fallback result is returned instead
+ * (or a {@link ProxyEvaluationException} is thrown, if there is no
+ * fallback). {@link BuiltinPacScriptParser} stops on interruption, an
+ * engine in {@link JavaxPacScriptParser} may keep running until the script
+ * returns, on a thread of its own.
+ * <p>
+ * As an abandoned evaluation may still be running when the next one starts,
+ * the wrapped parser must be safe for concurrent use, such as
+ * {@link BuiltinPacScriptParser}, {@link PooledPacScriptParser} or
+ * {@link JavaxPacScriptParser} in
+ * {@link JavaxPacScriptParser.EvalMode#EVAL_MODE_SHARED}; a
+ * {@link JavaxPacScriptParser} in another mode is rejected. The threads
+ * running evaluations are bounded, once all are taken (by abandoned
+ * evaluations, typically) new ones fail fast, with the fallback if any.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class DeadlinePacScriptParser implements PacScriptParser {
+
+    private final PacScriptParser delegate;
+    private final long            deadlineNanos;
+    private final String          fallback;
+    private final ExecutorService executor;
+
+    /**
+     * Default max number of threads running evaluations.
+     */
+    public static final int DEFAULT_MAX_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong timeouts    = new AtomicLong();
+    private final AtomicLong failures    = new AtomicLong();
+
+    /**
+     * Runs evaluations on at most {@link #DEFAULT_MAX_THREADS} daemon
+     * threads.
+     *
+     * @param delegate the parser to bound.
+     * @param deadline max time an evaluation may take.
+     * @param unit     unit of deadline.
+     * @param fallback result returned for evaluations past the deadline, in
+     *                 the PAC result format (such as "DIRECT"), or null to
+     *                 throw a {@link ProxyEvaluationException} instead.
+     */
+    public DeadlinePacScriptParser(final PacScriptParser delegate,
+                                   final long deadline,
+                                   final TimeUnit unit,
+                                   final String fallback) {
+
+        this(delegate, deadline, unit, fallback, DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * Runs evaluations on a bounded pool of daemon threads.
+     *
+     * @param delegate   the parser to bound.
+     * @param deadline   max time an evaluation may take.
+     * @param unit       unit of deadline.
+     * @param fallback   result returned for evaluations past the deadline,
+     *                   or null to throw a {@link ProxyEvaluationException}.
+     * @param maxThreads max number of evaluations running at once, counting
+     *                   abandoned ones still running.
+     */
+    public DeadlinePacScriptParser(final PacScriptParser delegate,
+                                   final long deadline,
+                                   final TimeUnit unit,
+                                   final String fallback,
+                                   final int maxThreads) {
+
+        this(delegate, deadline, unit, fallback, pool(maxThreads));
+    }
+
+    /**
+     * @param delegate the parser to bound.
+     * @param deadline max time an evaluation may take.
+     * @param unit     unit of deadline.
+     * @param fallback result returned for evaluations past the deadline, or
+     *                 null to throw a {@link ProxyEvaluationException}.
+     * @param executor runs the evaluations, must not queue them as an
+     *                 abandoned evaluation may hold its thread indefinitely,
+     *                 and should be bounded.
+     */
+    public DeadlinePacScriptParser(final PacScriptParser delegate,
+                                   final long deadline,
+                                   final TimeUnit unit,
+                                   final String fallback,
+                                   final ExecutorService executor) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+        if (unit == null)
+            throw new NullPointerException("unit");
+        if (executor == null)
+            throw new NullPointerException("executor");
+
+        if (deadline < 1)
+            throw new IllegalStateException("deadline must be >= 1: " + deadline);
+
+        if (delegate instanceof JavaxPacScriptParser
+                && ((JavaxPacScriptParser) delegate).getEvalMode() != JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED)
+            throw new IllegalStateException("delegate must be safe for concurrent use, " +
+                    "JavaxPacScriptParser must be in EVAL_MODE_SHARED: " +
+                    ((JavaxPacScriptParser) delegate).getEvalMode());
+
+        this.delegate = delegate;
+        this.deadlineNanos = unit.toNanos(deadline);
+        this.fallback = fallback;
+        this.executor = executor;
+    }
+
+    private static ExecutorService pool(final int maxThreads) {
+
+        if (maxThreads < 1)
+            throw new IllegalStateException("maxThreads must be >= 1: " + maxThreads);
+
+        return new ThreadPoolExecutor(
+                0, maxThreads,
+                60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new DaemonThreadFactory("pac-deadline"));
+    }
+
+    @Override
+    public String evaluate(final String url,
+                           final String host) throws ProxyEvaluationException {
+
+        this.evaluations.incrementAndGet();
+
+        // What the evaluation collected on the executor's thread, to pass on
+        // to the caller's context.
+        final long[] expiresAt = {Long.MAX_VALUE};
+
+        final Future<String> future;
+        try {
+            future = this.executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws ProxyEvaluationException {
+
+                    final EvaluationContext context = EvaluationContext.begin();
+                    try {
+                        return DeadlinePacScriptParser.this.delegate.evaluate(url, host);
+                    }
+                    finally {
+                        context.end();
+                        expiresAt[0] = context.expiresAt();
+                    }
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            this.failures.incrementAndGet();
+            if (this.fallback == null)
+                throw new ProxyEvaluationException(e);
+            EvaluationContext.expireCurrentAt(System.currentTimeMillis());
+            return this.fallback;
+        }
+
+        try {
+            final String result = future.get(this.deadlineNanos, TimeUnit.NANOSECONDS);
+            EvaluationContext.expireCurrentAt(expiresAt[0]);
+            return result;
+        }
+        catch (final TimeoutException e) {
+            future.cancel(true);
+            this.timeouts.incrementAndGet();
+            if (this.fallback == null)
+                throw new ProxyEvaluationException(e);
+            // Not a result of the script, not to be cached.
+            EvaluationContext.expireCurrentAt(System.currentTimeMillis());
+            return this.fallback;
+        }
+        catch (final ExecutionException e) {
+            this.failures.incrementAndGet();
+            if (e.getCause() instanceof ProxyEvaluationException)
+                throw (ProxyEvaluationException) e.getCause();
+            throw new ProxyEvaluationException(e.getCause());
+        }
+        catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ProxyEvaluationException(e);
+        }
+    }
+
+    /**
+     * Total number of evaluations requested.
+     */
+    public long evaluations() {
+
+        return this.evaluations.get();
+    }
+
+    /**
+     * Number of evaluations abandoned past the deadline.
+     */
+    public long timeouts() {
+
+        return this.timeouts.get();
+    }
+
+    /**
+     * Number of evaluations which failed before the deadline, or could not
+     * start as all threads were taken.
+     */
+    public long failures() {
+
+        return this.failures.get();
+    }
+
+    /**
+     * Stops the executor, interrupting running evaluations.
+     */
+    public void shutdown() {
+
+        this.executor.shutdownNow();
+    }
+
+}
@@ -1,17 +1,35 @@
 package cc.koosha.pac.pac;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
 import java.net.UnknownHostException;
-import java.util.Enumeration;
 
 
 /**
+ * Resolves through {@link InetAddress}, and answers local addresses from
+ * {@link LocalAddresses}.
+ *
  * @author Koosha Hosseiny, Copyright 2017
  */
 public final class DefaultNetRequest implements NetRequest {
 
+    private final LocalAddresses localAddresses;
+
+    /**
+     * Uses the shared {@link LocalAddresses}.
+     */
+    public DefaultNetRequest() {
+
+        this(LocalAddresses.shared());
+    }
+
+    public DefaultNetRequest(final LocalAddresses localAddresses) {
+
+        if (localAddresses == null)
+            throw new NullPointerException("localAddresses");
+
+        this.localAddresses = localAddresses;
+    }
+
     @Override
     public InetAddress tryGet(final String host) {
 
@@ -59,30 +77,7 @@ public final class DefaultNetRequest implements NetRequest {
     @Override
     public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
 
-        final String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
-        if (overrideIP != null && !overrideIP.trim().isEmpty())
-            return System.getProperty(OVERRIDE_LOCAL_IP);
-
-        final Enumeration<NetworkInterface> interfaces;
-
-        try {
-            interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                final NetworkInterface current = interfaces.nextElement();
-                if (!current.isUp() || current.isLoopback() || current.isVirtual())
-                    continue;
-                final Enumeration<InetAddress> addresses = current.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    final InetAddress adr = addresses.nextElement();
-                    if (cl.isInstance(adr))
-                        return adr.getHostAddress();
-                }
-            }
-            return "";
-        }
-        catch (final IOException e) {
-            return "";
-        }
+        return this.localAddresses.get(cl);
     }
 
 }
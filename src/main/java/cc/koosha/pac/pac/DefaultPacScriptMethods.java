@@ -13,7 +13,9 @@ import java.util.regex.Pattern;
  * Implementation of PAC JavaScript functions.
  * <p>
  * This class does not make any external network request by itself, but the
- * {@link NetRequest} object provided to it may.
+ * {@link NetRequest} object provided to it may. Within an
+ * {@link EvaluationContext}, lookups of the same host are made once and
+ * kept for the rest of the evaluation, see {@link MemoizingNetRequest}.
  *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -64,7 +66,7 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
 
     public DefaultPacScriptMethods(final NetRequest netRequest) {
 
-        this.netRequest = netRequest;
+        this.netRequest = new MemoizingNetRequest(netRequest);
     }
 
     @Override
@@ -96,13 +98,12 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
                            final String pattern,
                            final String mask) {
 
-        final String dnsResolve = dnsResolve(host);
-        if (dnsResolve == null || dnsResolve.length() == 0)
+        final Long lHost = resolveToLong(host);
+        if (lHost == null)
             return false;
 
-        final long lHost    = parseIpAddressToLong(dnsResolve);
-        final long lPattern = parseIpAddressToLong(pattern);
-        final long lMask    = parseIpAddressToLong(mask);
+        final long lPattern = ipAddressToLong(pattern);
+        final long lMask    = ipAddressToLong(mask);
 
         return (lHost & lMask) == lPattern;
     }
@@ -150,6 +151,7 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
 
         final boolean  useGmt = GMT.equalsIgnoreCase(wd2) || GMT.equalsIgnoreCase(gmt);
         final Calendar cal    = getCurrentTime(useGmt);
+        expireAtNextDay(cal);
 
         final int currentDay = cal.get(Calendar.DAY_OF_WEEK) - 1;
         final int from = DAYS.indexOf(wd1 == null
@@ -189,6 +191,7 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
         final boolean  useGmt  = params.get("gmt") != null;
         final Calendar cal     = getCurrentTime(useGmt);
         final Date     current = cal.getTime();
+        expireAtNextDay(cal);
 
         // Build the "from" date
         if (params.get("day1") != null)
@@ -244,6 +247,7 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
         final Calendar cal = getCurrentTime(useGmt);
         cal.set(Calendar.MILLISECOND, 0);
         final Date current = cal.getTime();
+        final long nextDay = nextDay(cal);
         final Date from;
         Date       to;
 
@@ -298,6 +302,15 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
             to = cal.getTime();
         }
 
+        // The answer flips when entering from, when leaving to, or when both
+        // move to the next day.
+        long flip = nextDay;
+        if (from.after(current))
+            flip = Math.min(flip, from.getTime());
+        if (to.getTime() + 1000 > current.getTime())
+            flip = Math.min(flip, to.getTime() + 1000);
+        EvaluationContext.expireCurrentAt(flip);
+
         return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
     }
 
@@ -411,6 +424,53 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
         return matcher.matches();
     }
 
+    /**
+     * Resolves the host and parses the address, memoized for the current
+     * evaluation.
+     *
+     * @return the address, null if host could not be resolved.
+     */
+    private Long resolveToLong(final String host) {
+
+        final EvaluationContext context = EvaluationContext.current();
+        final String            key     = "resolveToLong\0" + host;
+
+        if (context != null) {
+            final Object value = context.memo(key);
+            if (value != EvaluationContext.MISSING)
+                return (Long) value;
+        }
+
+        final String dnsResolve = dnsResolve(host);
+        final Long   address    = dnsResolve == null || dnsResolve.length() == 0
+                                  ? null
+                                  : parseIpAddressToLong(dnsResolve);
+
+        if (context != null)
+            context.memo(key, address);
+
+        return address;
+    }
+
+    /**
+     * Parses the address, memoized for the current evaluation.
+     */
+    private long ipAddressToLong(final String address) {
+
+        final EvaluationContext context = EvaluationContext.current();
+        if (context == null)
+            return parseIpAddressToLong(address);
+
+        final String key   = "ipAddressToLong\0" + address;
+        final Object value = context.memo(key);
+        if (value != EvaluationContext.MISSING)
+            return (Long) value;
+
+        final long parsed = parseIpAddressToLong(address);
+        context.memo(key, parsed);
+        return parsed;
+    }
+
     private long parseIpAddressToLong(final String address) {
 
         final String[] parts = address.split("\\.");
@@ -461,6 +521,30 @@ public final class DefaultPacScriptMethods implements ScriptMethods {
         }
     }
 
+    /**
+     * Gets the next midnight after the given time, in its time zone.
+     */
+    private static long nextDay(final Calendar now) {
+
+        final Calendar next = (Calendar) now.clone();
+        next.set(Calendar.HOUR_OF_DAY, 0);
+        next.set(Calendar.MINUTE, 0);
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        next.add(Calendar.DATE, 1);
+
+        return next.getTimeInMillis();
+    }
+
+    /**
+     * Records that answers based on the given time, with a granularity of a
+     * day, hold until the next midnight at most.
+     */
+    private static void expireAtNextDay(final Calendar now) {
+
+        EvaluationContext.expireCurrentAt(nextDay(now));
+    }
+
     private Calendar getCurrentTime(final boolean useGmt) {
 
         // Used by unit tests
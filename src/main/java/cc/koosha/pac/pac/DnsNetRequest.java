@@ -0,0 +1,890 @@
+package cc.koosha.pac.pac;
+
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Resolves hosts by speaking DNS to the configured servers directly, instead
+ * of through {@link InetAddress}, so that a lookup is bounded by a deadline
+ * and its result is kept exactly as long as the server says.
+ * <p>
+ * A lookup sends an A and an AAAA query in parallel, each to the servers in
+ * turn over UDP, retrying over TCP if the answer is truncated, until one
+ * answers or the deadline passes. The addresses found, IPv4 first, are
+ * cached for the smallest ttl of the records; hosts which do not exist or
+ * have no address are cached for the negative ttl of the zone, as of its
+ * SOA record. Lookups which fail or time out are not cached. Concurrent
+ * lookups of the same host share one resolution.
+ * <p>
+ * Names are taken as fully qualified, no search domains are applied. IP
+ * literals are returned as is and local addresses are found as in
+ * {@link DefaultNetRequest}.
+ * <p>
+ * {@link #lookup(String)} starts a lookup without waiting for it, such as to
+ * prefetch hosts a PAC evaluation is about to ask about, see
+ * {@link AsyncNetRequest}.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class DnsNetRequest implements AsyncNetRequest {
+
+    /**
+     * Default port of DNS servers.
+     */
+    public static final int PORT = 53;
+
+    /**
+     * Max number of threads running queries by default, each lookup taking
+     * one or two.
+     */
+    public static final int DEFAULT_MAX_THREADS = 64;
+
+    static final int TYPE_A     = 1;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA   = 6;
+    static final int TYPE_AAAA  = 28;
+
+    static final int CLASS_IN = 1;
+
+    static final int RCODE_NO_ERROR  = 0;
+    static final int RCODE_NX_DOMAIN = 3;
+
+    // Max size of a UDP answer, as queries are sent without EDNS.
+    private static final int MAX_UDP_SIZE = 512;
+
+    private static final InetAddress[] NONE = new InetAddress[0];
+
+    /**
+     * Answer of a server to a single query.
+     */
+    private static final class Answer {
+
+        final List<InetAddress> addresses;
+        final long              ttl;
+
+        /**
+         * @param addresses addresses found, may be empty.
+         * @param ttl       seconds the answer may be kept for.
+         */
+        Answer(final List<InetAddress> addresses, final long ttl) {
+
+            this.addresses = addresses;
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * A cached lookup.
+     */
+    private static final class Record {
+
+        final InetAddress[] addresses;
+        final long          expireAt;
+
+        Record(final InetAddress[] addresses, final long expireAt) {
+
+            this.addresses = addresses;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * A lookup in flight, forgotten once done.
+     */
+    private final class Lookup extends FutureTask<InetAddress[]> {
+
+        private final String key;
+
+        Lookup(final String key) {
+
+            super(new Callable<InetAddress[]>() {
+                @Override
+                public InetAddress[] call() {
+
+                    return DnsNetRequest.this.resolve(key);
+                }
+            });
+
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+
+            DnsNetRequest.this.inFlight.remove(this.key, this);
+        }
+    }
+
+    private final BoundedCache<String, Record>      cache;
+    private final ConcurrentHashMap<String, Lookup> inFlight = new ConcurrentHashMap<>();
+
+    private final List<InetSocketAddress> servers;
+    private final long                    timeoutNanos;
+    private final ExecutorService         executor;
+    private final NetRequest              local = new DefaultNetRequest();
+    private final Random                  ids   = new SecureRandom();
+
+    private final AtomicLong hits     = new AtomicLong();
+    private final AtomicLong queries  = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Caches up to 1024 hosts, and runs the queries on at most
+     * {@link #DEFAULT_MAX_THREADS} daemon threads. Lookups finding no
+     * thread free fail at once, the A and AAAA queries of a lookup run in
+     * the same thread then.
+     *
+     * @param servers the servers to ask, in order.
+     * @param timeout max time a lookup may take.
+     * @param unit    unit of timeout.
+     */
+    public DnsNetRequest(final List<InetSocketAddress> servers,
+                         final long timeout,
+                         final TimeUnit unit) {
+
+        this(servers, timeout, unit, 1024,
+                new ThreadPoolExecutor(
+                        0, DEFAULT_MAX_THREADS,
+                        60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(),
+                        new DaemonThreadFactory("pac-dns")));
+    }
+
+    /**
+     * @param servers  the servers to ask, in order.
+     * @param timeout  max time a lookup may take.
+     * @param unit     unit of timeout.
+     * @param maxSize  max number of hosts to cache.
+     * @param executor runs the queries, must not queue them as a lookup waits
+     *                 for the queries it runs in parallel, and should be
+     *                 bounded.
+     */
+    public DnsNetRequest(final List<InetSocketAddress> servers,
+                         final long timeout,
+                         final TimeUnit unit,
+                         final int maxSize,
+                         final ExecutorService executor) {
+
+        if (servers == null)
+            throw new NullPointerException("servers");
+        if (unit == null)
+            throw new NullPointerException("unit");
+        if (executor == null)
+            throw new NullPointerException("executor");
+
+        if (servers.isEmpty())
+            throw new IllegalStateException("servers must not be empty");
+        if (timeout < 1)
+            throw new IllegalStateException("timeout must be >= 1: " + timeout);
+        if (maxSize < 1)
+            throw new IllegalStateException("maxSize must be >= 1: " + maxSize);
+
+        this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.cache = new BoundedCache<>(maxSize);
+        this.executor = executor;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final InetAddress[] addresses = this.get(host);
+        return addresses == null ? null : addresses[0];
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final InetAddress[] addresses = this.get(host);
+        return addresses == null ? defaultValue : addresses[0].getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final InetAddress[] addresses = this.get(host);
+        return addresses == null ? null : addresses[0].getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final InetAddress[] addresses = this.get(host);
+        return addresses == null ? null : addresses.clone();
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.local.getLocalAddressOfType(cl);
+    }
+
+    /**
+     * Starts looking up a host, unless it is cached or already being looked
+     * up.
+     *
+     * @param host the host to look up.
+     *
+     * @return the lookup, resulting in the addresses of the host, IPv4
+     * first, or in null if it has none or the lookup failed. The array is
+     * shared, and must not be modified.
+     */
+    @Override
+    public Future<InetAddress[]> lookup(final String host) {
+
+        if (host == null)
+            throw new NullPointerException("host");
+
+        final byte[] literal = parseLiteral(host);
+        if (literal != null)
+            try {
+                return done(new InetAddress[]{InetAddress.getByAddress(literal)});
+            }
+            catch (final UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+
+        final String key    = host.toLowerCase(Locale.ROOT);
+        final Record cached = this.cache.get(key);
+        if (cached != null && System.nanoTime() - cached.expireAt < 0) {
+            this.hits.incrementAndGet();
+            return done(cached.addresses.length == 0 ? null : cached.addresses);
+        }
+
+        final Lookup lookup  = new Lookup(key);
+        final Lookup running = this.inFlight.putIfAbsent(key, lookup);
+        if (running != null)
+            return running;
+
+        try {
+            this.executor.execute(lookup);
+        }
+        catch (final RejectedExecutionException e) {
+            this.inFlight.remove(key, lookup);
+            throw e;
+        }
+
+        return lookup;
+    }
+
+    /**
+     * Looks up a host and waits for it.
+     */
+    private InetAddress[] get(final String host) {
+
+        if (host == null)
+            return this.local.tryGetAllByName(null);
+
+        final Future<InetAddress[]> lookup;
+        try {
+            lookup = this.lookup(host);
+        }
+        catch (final RejectedExecutionException e) {
+            this.failures.incrementAndGet();
+            return null;
+        }
+
+        try {
+            // The lookup bounds itself, this only guards against it waiting
+            // for a thread to run on.
+            return lookup.get(2 * this.timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (final TimeoutException e) {
+            this.failures.incrementAndGet();
+            return null;
+        }
+        catch (final ExecutionException e) {
+            this.failures.incrementAndGet();
+            return null;
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Queries A and AAAA records of a host in parallel, and caches what they
+     * found.
+     */
+    private InetAddress[] resolve(final String host) {
+
+        final long deadline = System.nanoTime() + this.timeoutNanos;
+
+        Future<Answer> ipv6;
+        try {
+            ipv6 = this.executor.submit(new Callable<Answer>() {
+                @Override
+                public Answer call() {
+
+                    return DnsNetRequest.this.query(host, TYPE_AAAA, deadline);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            ipv6 = null;
+        }
+
+        final Answer a    = this.query(host, TYPE_A, deadline);
+        final Answer aaaa = ipv6 == null
+                            ? this.query(host, TYPE_AAAA, deadline)
+                            : await(ipv6, deadline);
+
+        if (a == null && aaaa == null) {
+            this.failures.incrementAndGet();
+            return null;
+        }
+
+        final List<InetAddress> addresses = new ArrayList<>();
+        long                    ttl       = Long.MAX_VALUE;
+
+        for (final Answer answer : new Answer[]{a, aaaa})
+            if (answer != null && !answer.addresses.isEmpty()) {
+                addresses.addAll(answer.addresses);
+                ttl = Math.min(ttl, answer.ttl);
+            }
+
+        if (addresses.isEmpty())
+            // Cached only if both queries were answered, as having no address.
+            ttl = a == null || aaaa == null ? 0 : Math.min(a.ttl, aaaa.ttl);
+
+        final InetAddress[] result = addresses.toArray(NONE);
+        if (ttl > 0)
+            this.cache(host, result, ttl);
+
+        return result.length == 0 ? null : result;
+    }
+
+    private static Answer await(final Future<Answer> answer, final long deadline) {
+
+        try {
+            return answer.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+        catch (final TimeoutException | ExecutionException e) {
+            answer.cancel(true);
+            return null;
+        }
+        catch (final InterruptedException e) {
+            answer.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void cache(final String host, final InetAddress[] addresses, final long ttl) {
+
+        this.cache.put(host, new Record(addresses, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl)));
+    }
+
+    /**
+     * Asks the servers in turn, giving each an equal share of the time left.
+     *
+     * @return the answer, or null if no server answered in time.
+     */
+    private Answer query(final String host, final int type, final long deadline) {
+
+        final int    id = this.ids.nextInt(0x10000);
+        final byte[] query;
+        try {
+            query = encodeQuery(id, host, type);
+        }
+        catch (final IOException e) {
+            // Not a valid name, nothing to ask about.
+            return new Answer(Collections.<InetAddress>emptyList(), 0);
+        }
+
+        for (int i = 0; i < this.servers.size(); i++) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0)
+                break;
+
+            final long attemptDeadline = System.nanoTime() + left / (this.servers.size() - i);
+
+            try {
+                this.queries.incrementAndGet();
+                final InetSocketAddress server = this.servers.get(i);
+
+                byte[] response = udp(server, query, attemptDeadline);
+                if (isTruncated(response))
+                    response = tcp(server, query, attemptDeadline);
+
+                final Answer answer = decodeAnswer(host, query, response, type);
+                if (answer != null)
+                    return answer;
+            }
+            catch (final IOException e) {
+                // Timed out, refused or garbled, on to the next server.
+            }
+        }
+
+        return null;
+    }
+
+    private static byte[] udp(final InetSocketAddress server,
+                              final byte[] query,
+                              final long deadline) throws IOException {
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(server);
+            socket.send(new DatagramPacket(query, query.length));
+
+            final byte[] buffer = new byte[MAX_UDP_SIZE];
+            while (true) {
+                socket.setSoTimeout(millisLeft(deadline));
+
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+
+                // Anything else is late or spoofed, keep waiting.
+                if (packet.getLength() >= 12 && buffer[0] == query[0] && buffer[1] == query[1])
+                    return Arrays.copyOf(buffer, packet.getLength());
+            }
+        }
+    }
+
+    private static byte[] tcp(final InetSocketAddress server,
+                              final byte[] query,
+                              final long deadline) throws IOException {
+
+        try (Socket socket = new Socket()) {
+            socket.connect(server, millisLeft(deadline));
+            socket.setSoTimeout(millisLeft(deadline));
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeShort(query.length);
+            out.write(query);
+            out.flush();
+
+            final DataInputStream in       = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final byte[]          response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+
+            if (response.length < 12 || response[0] != query[0] || response[1] != query[1])
+                throw new IOException("unexpected response");
+
+            return response;
+        }
+    }
+
+    private static int millisLeft(final long deadline) throws SocketTimeoutException {
+
+        final long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left < 1)
+            throw new SocketTimeoutException();
+        return (int) Math.min(left, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses a host if it is an IP literal, which needs no lookup: a dotted
+     * IPv4 address, or an IPv6 address, possibly in brackets, compressed or
+     * ending in a dotted IPv4 address. Anything else, such as 999.1.1.1,
+     * is not a literal, and must not be handed to {@link InetAddress}
+     * which would look it up.
+     *
+     * @return the 4 or 16 bytes of the address, or null.
+     */
+    static byte[] parseLiteral(final String host) {
+
+        if (host.indexOf(':') < 0)
+            return parseIpv4(host, 0, host.length());
+
+        final int start = host.startsWith("[") && host.endsWith("]") ? 1 : 0;
+        return parseIpv6(host, start, host.length() - start);
+    }
+
+    /**
+     * @return the address in host[from, to), or null.
+     */
+    private static byte[] parseIpv4(final String host, final int from, final int to) {
+
+        final byte[] address = new byte[4];
+
+        int part   = 0;
+        int value  = 0;
+        int digits = 0;
+        for (int i = from; i <= to; i++) {
+            final char c = i == to ? '.' : host.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || part == 4)
+                    return null;
+                address[part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            }
+            else if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + c - '0';
+                digits++;
+                if (value > 255)
+                    return null;
+            }
+            else {
+                return null;
+            }
+        }
+
+        return part == 4 ? address : null;
+    }
+
+    /**
+     * @return the address in host[from, to), or null.
+     */
+    private static byte[] parseIpv6(final String host, final int from, final int to) {
+
+        final byte[] address = new byte[16];
+
+        // Where the groups after "::" start, in bytes, or -1.
+        int gap   = -1;
+        int count = 0;
+        int i     = from;
+
+        if (host.startsWith("::", i)) {
+            gap = 0;
+            i += 2;
+            if (i == to)
+                return address;
+        }
+
+        while (true) {
+            int end = i;
+            while (end < to && host.charAt(end) != ':')
+                end++;
+
+            if (end == to && host.lastIndexOf('.', to - 1) >= i) {
+                // Ends in an IPv4 address, two groups.
+                final byte[] ipv4 = count <= 12 ? parseIpv4(host, i, to) : null;
+                if (ipv4 == null)
+                    return null;
+                System.arraycopy(ipv4, 0, address, count, 4);
+                count += 4;
+                break;
+            }
+
+            if (end == i || end - i > 4 || count == 16)
+                return null;
+
+            int value = 0;
+            for (int j = i; j < end; j++) {
+                final int digit = Character.digit(host.charAt(j), 16);
+                if (digit < 0)
+                    return null;
+                value = value << 4 | digit;
+            }
+            address[count++] = (byte) (value >>> 8);
+            address[count++] = (byte) value;
+
+            if (end == to)
+                break;
+
+            i = end + 1;
+            if (i < to && host.charAt(i) == ':') {
+                if (gap >= 0)
+                    return null;
+                gap = count;
+                i++;
+                if (i == to)
+                    break;
+            }
+            else if (i == to) {
+                return null;
+            }
+        }
+
+        if (gap < 0)
+            return count == 16 ? address : null;
+
+        if (count == 16)
+            return null;
+
+        // Moves the groups after the gap to the end, zeros in between.
+        final int tail = count - gap;
+        System.arraycopy(address, gap, address, 16 - tail, tail);
+        Arrays.fill(address, gap, 16 - tail, (byte) 0);
+        return address;
+    }
+
+    private static <T> Future<T> done(final T value) {
+
+        final FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+
+                return value;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Encodes a recursive query for a single record type of a name.
+     */
+    private static byte[] encodeQuery(final int id,
+                                      final String host,
+                                      final int type) throws IOException {
+
+        final String name;
+        try {
+            name = IDN.toASCII(host.endsWith(".")
+                               ? host.substring(0, host.length() - 1)
+                               : host);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IOException("invalid name: " + host, e);
+        }
+
+        if (name.isEmpty() || name.length() > 253)
+            throw new IOException("invalid name: " + host);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(18 + name.length());
+
+        out.write(id >> 8);
+        out.write(id);
+        // Recursion desired.
+        out.write(0x01);
+        out.write(0x00);
+        // One question, no answer, authority or additional records.
+        out.write(new byte[]{0, 1, 0, 0, 0, 0, 0, 0});
+
+        for (final String label : name.split("\\.", -1)) {
+            if (label.isEmpty() || label.length() > 63)
+                throw new IOException("invalid name: " + host);
+            out.write(label.length());
+            for (int i = 0; i < label.length(); i++)
+                out.write(label.charAt(i));
+        }
+        out.write(0);
+
+        out.write(type >> 8);
+        out.write(type);
+        out.write(CLASS_IN >> 8);
+        out.write(CLASS_IN);
+
+        return out.toByteArray();
+    }
+
+    private static boolean isTruncated(final byte[] response) {
+
+        return (response[2] & 0x02) != 0;
+    }
+
+    /**
+     * Decodes the answer to a query.
+     *
+     * @return the answer, or null if the server could not answer, in which
+     * case another server should be asked.
+     *
+     * @throws IOException if the response is garbled.
+     */
+    private static Answer decodeAnswer(final String host,
+                                       final byte[] query,
+                                       final byte[] response,
+                                       final int type) throws IOException {
+
+        final Reader reader = new Reader(response);
+
+        reader.skip(2);
+        final int flags   = reader.u16();
+        final int qdCount = reader.u16();
+        final int anCount = reader.u16();
+        final int nsCount = reader.u16();
+        reader.skip(2);
+
+        if ((flags & 0x8000) == 0)
+            throw new IOException("not a response");
+
+        final int rcode = flags & 0x0F;
+        if (rcode != RCODE_NO_ERROR && rcode != RCODE_NX_DOMAIN)
+            return null;
+
+        // The question must be echoed as asked.
+        if (qdCount != 1 || !sameQuestion(query, response))
+            throw new IOException("unexpected question");
+        reader.skip(query.length - 12);
+
+        final List<InetAddress> addresses = new ArrayList<>();
+        long                    ttl       = Long.MAX_VALUE;
+
+        for (int i = 0; i < anCount; i++) {
+            reader.skipName();
+            final int  rType   = reader.u16();
+            final int  rClass  = reader.u16();
+            final long rTtl    = ttl(reader.u32());
+            final int  rLength = reader.u16();
+
+            // The records of the name, and of the aliases leading to it.
+            if (rClass == CLASS_IN && rType == type && rLength == (type == TYPE_A ? 4 : 16)) {
+                addresses.add(InetAddress.getByAddress(host, reader.bytes(rLength)));
+                ttl = Math.min(ttl, rTtl);
+            }
+            else {
+                if (rClass == CLASS_IN && rType == TYPE_CNAME)
+                    ttl = Math.min(ttl, rTtl);
+                reader.skip(rLength);
+            }
+        }
+
+        if (!addresses.isEmpty())
+            return new Answer(addresses, ttl);
+
+        // No address, kept as long as the SOA of the zone says.
+        long negativeTtl = 0;
+        for (int i = 0; i < nsCount; i++) {
+            reader.skipName();
+            final int  rType   = reader.u16();
+            reader.skip(2);
+            final long rTtl    = ttl(reader.u32());
+            final int  rLength = reader.u16();
+            final int  end     = reader.position() + rLength;
+
+            if (rType == TYPE_SOA) {
+                reader.skipName();
+                reader.skipName();
+                reader.skip(16);
+                negativeTtl = Math.min(rTtl, ttl(reader.u32()));
+            }
+
+            reader.seek(end);
+        }
+
+        return new Answer(Collections.<InetAddress>emptyList(), Math.min(ttl, negativeTtl));
+    }
+
+    private static boolean sameQuestion(final byte[] query, final byte[] response) {
+
+        if (response.length < query.length)
+            return false;
+
+        for (int i = 12; i < query.length; i++)
+            if (Character.toLowerCase((char) (query[i] & 0xFF))
+                    != Character.toLowerCase((char) (response[i] & 0xFF)))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * TTLs with the high bit set are to be taken as 0, RFC 2181.
+     */
+    private static long ttl(final long ttl) {
+
+        return ttl > Integer.MAX_VALUE ? 0 : ttl;
+    }
+
+    /**
+     * Reads a DNS message.
+     */
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private int          position = 0;
+
+        Reader(final byte[] buffer) {
+
+            this.buffer = buffer;
+        }
+
+        int position() {
+
+            return this.position;
+        }
+
+        void seek(final int position) throws IOException {
+
+            if (position > this.buffer.length)
+                throw new EOFException("truncated message");
+            this.position = position;
+        }
+
+        void skip(final int count) throws IOException {
+
+            this.seek(this.position + count);
+        }
+
+        int u8() throws IOException {
+
+            if (this.position >= this.buffer.length)
+                throw new EOFException("truncated message");
+            return this.buffer[this.position++] & 0xFF;
+        }
+
+        int u16() throws IOException {
+
+            return this.u8() << 8 | this.u8();
+        }
+
+        long u32() throws IOException {
+
+            return (long) this.u16() << 16 | this.u16();
+        }
+
+        byte[] bytes(final int count) throws IOException {
+
+            final int from = this.position;
+            this.skip(count);
+            return Arrays.copyOfRange(this.buffer, from, from + count);
+        }
+
+        void skipName() throws IOException {
+
+            while (true) {
+                final int length = this.u8();
+                if (length == 0)
+                    return;
+                if ((length & 0xC0) == 0xC0) {
+                    // Compressed, the rest is elsewhere.
+                    this.u8();
+                    return;
+                }
+                if ((length & 0xC0) != 0)
+                    throw new IOException("invalid label");
+                this.skip(length);
+            }
+        }
+    }
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    public long hits() {
+
+        return this.hits.get();
+    }
+
+    /**
+     * Number of queries sent to servers.
+     */
+    public long queries() {
+
+        return this.queries.get();
+    }
+
+    /**
+     * Number of lookups which got no answer in time.
+     */
+    public long failures() {
+
+        return this.failures.get();
+    }
+
+    /**
+     * Drops all cached hosts.
+     */
+    public void flush() {
+
+        this.cache.clear();
+    }
+
+    /**
+     * Stops the executor, abandoning running lookups.
+     */
+    public void shutdown() {
+
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,155 @@
+package cc.koosha.pac.pac;
+
+import java.util.HashMap;
+
+
+/**
+ * State of the evaluation(s) running on the current thread, collected by
+ * the script methods and read by whoever started the evaluation, such as a
+ * cache.
+ * <p>
+ * Contexts nest: a context begun while another is current becomes its
+ * child, and when it ends what it collected is merged into the parent.
+ * Script methods record into the current context, if any, so evaluations
+ * run outside any context cost nothing extra.
+ * <p>
+ * Currently collected: the instant the result stops being valid, as time
+ * functions (<code>timeRange</code>, <code>dateRange</code>,
+ * <code>weekdayRange</code>) would answer differently from then on. The
+ * context also memoizes lookups made by the script methods, such as DNS
+ * resolutions, for the duration of the evaluation; memos are not merged
+ * into the parent.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class EvaluationContext {
+
+    /**
+     * Returned by {@link #memo(String)} if nothing is memoized for a key.
+     */
+    static final Object MISSING = new Object();
+
+    private static final ThreadLocal<EvaluationContext> CURRENT = new ThreadLocal<>();
+
+    private final EvaluationContext parent;
+
+    private long    expiresAt = Long.MAX_VALUE;
+    private boolean ended     = false;
+
+    // Created on first use, most evaluations of simple scripts need none.
+    private HashMap<String, Object> memo;
+
+    private EvaluationContext(final EvaluationContext parent) {
+
+        this.parent = parent;
+    }
+
+    /**
+     * Begins a new context on the current thread, to be ended by
+     * {@link #end()} in a finally block.
+     *
+     * @return the new context.
+     */
+    public static EvaluationContext begin() {
+
+        final EvaluationContext context = new EvaluationContext(CURRENT.get());
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * Gets the current context of the thread.
+     *
+     * @return the context, or null if none was begun.
+     */
+    public static EvaluationContext current() {
+
+        return CURRENT.get();
+    }
+
+    /**
+     * Ends this context, making its parent the current context again and
+     * merging into it what this context collected.
+     */
+    public void end() {
+
+        if (this.ended)
+            return;
+
+        if (CURRENT.get() != this)
+            throw new IllegalStateException("not the current context");
+
+        this.ended = true;
+
+        if (this.parent == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(this.parent);
+            this.parent.expireAt(this.expiresAt);
+        }
+    }
+
+    /**
+     * Records that the result is valid until the given instant at most.
+     *
+     * @param millis the instant, as of {@link System#currentTimeMillis()}.
+     */
+    public void expireAt(final long millis) {
+
+        if (millis < this.expiresAt)
+            this.expiresAt = millis;
+    }
+
+    /**
+     * Records, into the current context if there is one, that the result is
+     * valid until the given instant at most.
+     *
+     * @param millis the instant, as of {@link System#currentTimeMillis()}.
+     */
+    public static void expireCurrentAt(final long millis) {
+
+        final EvaluationContext context = CURRENT.get();
+        if (context != null)
+            context.expireAt(millis);
+    }
+
+    /**
+     * Gets a memoized value.
+     *
+     * @param key key of the value, prefixed with its kind.
+     *
+     * @return the value, which may be null, or {@link #MISSING} if
+     * nothing is memoized for the key.
+     */
+    Object memo(final String key) {
+
+        if (this.memo == null)
+            return MISSING;
+
+        final Object value = this.memo.get(key);
+        return value != null || this.memo.containsKey(key)
+               ? value
+               : MISSING;
+    }
+
+    void memo(final String key, final Object value) {
+
+        if (this.memo == null)
+            this.memo = new HashMap<>();
+
+        this.memo.put(key, value);
+    }
+
+    /**
+     * The instant the result stops being valid.
+     *
+     * @return the instant, as of {@link System#currentTimeMillis()}, or
+     * {@link Long#MAX_VALUE} if nothing limits it.
+     */
+    public long expiresAt() {
+
+        return this.expiresAt;
+    }
+
+}
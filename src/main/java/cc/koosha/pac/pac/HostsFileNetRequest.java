@@ -0,0 +1,585 @@
+package cc.koosha.pac.pac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Answers lookups from a file in the hosts format, falling back to a
+ * delegate for hosts not in it, or answering them as unresolvable if there
+ * is no delegate.
+ * <p>
+ * The file is memory-mapped and indexed by a hash table of int offsets
+ * into it, so that even files of hundreds of thousands of entries cost a
+ * few ints per name on the heap, and looking up a name compares it to the
+ * mapped bytes directly. Addresses are parsed only for the names looked
+ * up. Names are matched case-insensitively, an address may be listed for a
+ * name on several lines, all of them are returned in file order.
+ * <p>
+ * The file is checked for changes, by its size and modification time, at
+ * most once per check period, on lookups. A changed file is mapped and
+ * indexed again by the thread which noticed, while the others keep using
+ * the previous index, which is then replaced at once. The file should be
+ * replaced by renaming a new one over it, rather than rewritten in place,
+ * as a mapping sees the file as it changes.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class HostsFileNetRequest implements NetRequest {
+
+    // Longest name and address taken, longer ones are ignored.
+    private static final int MAX_NAME_LENGTH    = 255;
+    private static final int MAX_ADDRESS_LENGTH = 63;
+
+    /**
+     * Hash table over a mapped hosts file.
+     * <p>
+     * Each name on each line is an entry of three ints: offset of the name,
+     * offset of the address, and their lengths packed. The table holds
+     * entry numbers plus one, 0 being empty, probed linearly.
+     */
+    private static final class Index {
+
+        final ByteBuffer buffer;
+        final int[]      entries;
+        final int[]      table;
+        final int        size;
+        final long       modified;
+        final long       length;
+
+        private Index(final ByteBuffer buffer,
+                      final int[] entries,
+                      final int size,
+                      final long modified,
+                      final long length) {
+
+            this.buffer = buffer;
+            this.entries = entries;
+            this.size = size;
+            this.modified = modified;
+            this.length = length;
+
+            int capacity = 2;
+            while (capacity < size * 2)
+                capacity <<= 1;
+            this.table = new int[capacity];
+
+            final int mask = capacity - 1;
+            for (int e = 0; e < size; e++) {
+                int slot = this.hashOf(e) & mask;
+                while (this.table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                this.table[slot] = e + 1;
+            }
+        }
+
+        static Index load(final File file) throws IOException {
+
+            final long modified = file.lastModified();
+
+            final ByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("hosts file too large: " + file);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            final int length  = buffer.limit();
+            int[]     entries = new int[3 * 1024];
+            int       size    = 0;
+
+            int pos = 0;
+            while (pos < length) {
+                pos = skipBlanks(buffer, pos, length);
+
+                final int addressStart = pos;
+                pos = skipToken(buffer, pos, length);
+                final int addressLength = pos - addressStart;
+
+                if (addressLength > 0 && addressLength <= MAX_ADDRESS_LENGTH
+                        && isAddressLike(buffer, addressStart, pos))
+                    while (true) {
+                        pos = skipBlanks(buffer, pos, length);
+                        final int nameStart = pos;
+                        pos = skipToken(buffer, pos, length);
+                        final int nameLength = pos - nameStart;
+
+                        if (nameLength == 0)
+                            break;
+                        if (nameLength > MAX_NAME_LENGTH)
+                            continue;
+
+                        if (entries.length < 3 * size + 3)
+                            entries = Arrays.copyOf(entries, entries.length * 2);
+                        entries[3 * size] = nameStart;
+                        entries[3 * size + 1] = addressStart;
+                        entries[3 * size + 2] = nameLength << 8 | addressLength;
+                        size++;
+                    }
+
+                // Comment or garbage, to the end of line.
+                while (pos < length && buffer.get(pos) != '\n')
+                    pos++;
+                pos++;
+            }
+
+            return new Index(buffer, entries, size, modified, length);
+        }
+
+        /**
+         * Finds all addresses of a name, lower case ASCII.
+         */
+        InetAddress[] find(final String host) {
+
+            final int length = host.length();
+            final int mask   = this.table.length - 1;
+
+            List<InetAddress> found = null;
+
+            int slot = hash(host) & mask;
+            int e;
+            while ((e = this.table[slot]) != 0) {
+                e--;
+                if (this.nameEquals(e, host, length)) {
+                    final InetAddress address = this.address(e, host);
+                    if (address != null) {
+                        if (found == null)
+                            found = new ArrayList<>(2);
+                        found.add(address);
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return found == null ? null : found.toArray(new InetAddress[found.size()]);
+        }
+
+        private boolean nameEquals(final int e, final String host, final int length) {
+
+            if (this.entries[3 * e + 2] >>> 8 != length)
+                return false;
+
+            final int offset = this.entries[3 * e];
+            for (int i = 0; i < length; i++)
+                if (lower(this.buffer.get(offset + i)) != host.charAt(i))
+                    return false;
+
+            return true;
+        }
+
+        private int hashOf(final int e) {
+
+            final int offset = this.entries[3 * e];
+            final int length = this.entries[3 * e + 2] >>> 8;
+
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < length; i++)
+                hash = (hash ^ lower(this.buffer.get(offset + i))) * 0x01000193;
+            return mix(hash);
+        }
+
+        private InetAddress address(final int entry, final String host) {
+
+            final int offset = this.entries[3 * entry + 1];
+            final int length = this.entries[3 * entry + 2] & 0xFF;
+
+            final byte[] ipv4 = parseIpv4(this.buffer, offset, offset + length);
+            try {
+                if (ipv4 != null)
+                    return InetAddress.getByAddress(host, ipv4);
+
+                // Anything but an IPv6 literal would be looked up.
+                final String literal = ascii(this.buffer, offset, offset + length);
+                final byte[] ipv6    = literal.indexOf(':') < 0 ? null : DnsNetRequest.parseLiteral(literal);
+                if (ipv6 == null)
+                    return null;
+
+                return InetAddress.getByAddress(host, ipv6);
+            }
+            catch (final UnknownHostException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File       file;
+    private final NetRequest delegate;
+    private final long       checkPeriodNanos;
+
+    private volatile Index index;
+    private volatile long  nextCheck;
+
+    private final AtomicLong hits     = new AtomicLong();
+    private final AtomicLong misses   = new AtomicLong();
+    private final AtomicLong reloads  = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Answers hosts not in the file as unresolvable, and local addresses
+     * from the shared {@link LocalAddresses}.
+     *
+     * @param file        the hosts file.
+     * @param checkPeriod how often to check the file for changes.
+     * @param unit        unit of checkPeriod.
+     *
+     * @throws IOException if the file can not be read.
+     */
+    public HostsFileNetRequest(final File file,
+                               final long checkPeriod,
+                               final TimeUnit unit) throws IOException {
+
+        this(file, null, checkPeriod, unit);
+    }
+
+    /**
+     * @param file        the hosts file.
+     * @param delegate    answers hosts not in the file, and local addresses,
+     *                    may be null to answer them as in
+     *                    {@link #HostsFileNetRequest(File, long, TimeUnit)}.
+     * @param checkPeriod how often to check the file for changes.
+     * @param unit        unit of checkPeriod.
+     *
+     * @throws IOException if the file can not be read.
+     */
+    public HostsFileNetRequest(final File file,
+                               final NetRequest delegate,
+                               final long checkPeriod,
+                               final TimeUnit unit) throws IOException {
+
+        if (file == null)
+            throw new NullPointerException("file");
+        if (unit == null)
+            throw new NullPointerException("unit");
+
+        if (checkPeriod < 1)
+            throw new IllegalStateException("checkPeriod must be >= 1: " + checkPeriod);
+
+        this.file = file;
+        this.delegate = delegate;
+        this.checkPeriodNanos = unit.toNanos(checkPeriod);
+
+        this.index = Index.load(file);
+        this.nextCheck = System.nanoTime() + this.checkPeriodNanos;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final InetAddress[] addresses = this.find(host);
+        if (addresses != null)
+            return addresses[0];
+
+        return this.delegate != null
+               ? this.delegate.tryGet(host)
+               : first(literal(host));
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final InetAddress[] addresses = this.find(host);
+        if (addresses != null)
+            return addresses[0].getHostAddress();
+
+        if (this.delegate != null)
+            return this.delegate.dnsResolve(host, defaultValue);
+
+        final InetAddress literal = first(literal(host));
+        return literal == null ? defaultValue : literal.getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final InetAddress[] addresses = this.find(host);
+        if (addresses != null)
+            return addresses[0].getAddress();
+
+        if (this.delegate != null)
+            return this.delegate.tryGetAddress(host);
+
+        final InetAddress literal = first(literal(host));
+        return literal == null ? null : literal.getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final InetAddress[] addresses = this.find(host);
+        if (addresses != null)
+            return addresses;
+
+        return this.delegate != null
+               ? this.delegate.tryGetAllByName(host)
+               : literal(host);
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.delegate != null
+               ? this.delegate.getLocalAddressOfType(cl)
+               : LocalAddresses.shared().get(cl);
+    }
+
+    /**
+     * Maps and indexes the file again, now.
+     *
+     * @throws IOException if the file can not be read, the previous index
+     *                     is kept then.
+     */
+    public synchronized void reload() throws IOException {
+
+        try {
+            this.index = Index.load(this.file);
+            this.reloads.incrementAndGet();
+        }
+        catch (final IOException e) {
+            this.failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of hosts in the file, counting each name on each line.
+     */
+    public int size() {
+
+        return this.index.size;
+    }
+
+    /**
+     * Number of lookups answered from the file.
+     */
+    public long hits() {
+
+        return this.hits.get();
+    }
+
+    /**
+     * Number of lookups of hosts not in the file.
+     */
+    public long misses() {
+
+        return this.misses.get();
+    }
+
+    /**
+     * Number of times the file was indexed again.
+     */
+    public long reloads() {
+
+        return this.reloads.get();
+    }
+
+    /**
+     * Number of times indexing the file again failed.
+     */
+    public long failures() {
+
+        return this.failures.get();
+    }
+
+    private InetAddress[] find(final String host) {
+
+        final String name = normalize(host);
+        if (name == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+
+        final InetAddress[] addresses = this.index().find(name);
+        if (addresses == null)
+            this.misses.incrementAndGet();
+        else
+            this.hits.incrementAndGet();
+        return addresses;
+    }
+
+    private Index index() {
+
+        final long now = System.nanoTime();
+        if (now - this.nextCheck >= 0)
+            this.check(now);
+
+        return this.index;
+    }
+
+    private synchronized void check(final long now) {
+
+        // Checked by another thread meanwhile.
+        if (now - this.nextCheck < 0)
+            return;
+        this.nextCheck = now + this.checkPeriodNanos;
+
+        final Index index = this.index;
+        if (this.file.lastModified() == index.modified && this.file.length() == index.length)
+            return;
+
+        try {
+            this.reload();
+        }
+        catch (final IOException e) {
+            // Counted, the previous index is still good.
+        }
+    }
+
+    /**
+     * Lower cases a host and drops its trailing dot.
+     *
+     * @return the name, or null if it can not be in a hosts file.
+     */
+    private static String normalize(final String host) {
+
+        if (host == null)
+            return null;
+
+        final int length = host.endsWith(".") ? host.length() - 1 : host.length();
+        if (length == 0 || length > MAX_NAME_LENGTH)
+            return null;
+
+        boolean lower = true;
+        for (int i = 0; i < length; i++) {
+            final char c = host.charAt(i);
+            if (c > 0x7F)
+                return null;
+            if (c >= 'A' && c <= 'Z')
+                lower = false;
+        }
+
+        if (lower && length == host.length())
+            return host;
+
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) lower((byte) host.charAt(i));
+        return new String(chars);
+    }
+
+    private static InetAddress[] literal(final String host) {
+
+        final byte[] literal = host == null ? null : DnsNetRequest.parseLiteral(host);
+        if (literal == null)
+            return null;
+
+        try {
+            return new InetAddress[]{InetAddress.getByAddress(literal)};
+        }
+        catch (final UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static InetAddress first(final InetAddress[] addresses) {
+
+        return addresses == null ? null : addresses[0];
+    }
+
+    private static int hash(final String name) {
+
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < name.length(); i++)
+            hash = (hash ^ name.charAt(i)) * 0x01000193;
+        return mix(hash);
+    }
+
+    private static int mix(final int hash) {
+
+        return hash ^ hash >>> 16;
+    }
+
+    private static int lower(final byte b) {
+
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    private static boolean isBlank(final byte b) {
+
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static int skipBlanks(final ByteBuffer buffer, int pos, final int length) {
+
+        while (pos < length && isBlank(buffer.get(pos)))
+            pos++;
+        return pos;
+    }
+
+    /**
+     * Skips a token, stopping at blanks, end of line and comments.
+     */
+    private static int skipToken(final ByteBuffer buffer, int pos, final int length) {
+
+        while (pos < length) {
+            final byte b = buffer.get(pos);
+            if (isBlank(b) || b == '\n' || b == '#')
+                break;
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isAddressLike(final ByteBuffer buffer, final int from, final int to) {
+
+        for (int i = from; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b == ':' || b == '.')
+                return true;
+        }
+        return false;
+    }
+
+    private static String ascii(final ByteBuffer buffer, final int from, final int to) {
+
+        final char[] chars = new char[to - from];
+        for (int i = from; i < to; i++)
+            chars[i - from] = (char) (buffer.get(i) & 0xFF);
+        return new String(chars);
+    }
+
+    /**
+     * Parses a dotted quad.
+     *
+     * @return the address, or null if it is not one.
+     */
+    private static byte[] parseIpv4(final ByteBuffer buffer, final int from, final int to) {
+
+        final byte[] address = new byte[4];
+
+        int part  = 0;
+        int value = -1;
+        for (int i = from; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+                if (value > 255)
+                    return null;
+            }
+            else if (b == '.' && value >= 0 && part < 3) {
+                address[part++] = (byte) value;
+                value = -1;
+            }
+            else {
+                return null;
+            }
+        }
+
+        if (part != 3 || value < 0)
+            return null;
+
+        address[3] = (byte) value;
+        return address;
+    }
+
+}
@@ -2,10 +2,10 @@ package cc.koosha.pac.pac;
 
 import cc.koosha.pac.ProxyEvaluationException;
 import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.VersionedStringProvider;
+import cc.koosha.pac.VersionedStringProviderAdapter;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import javax.script.*;
 import java.lang.reflect.Method;
 
 
@@ -15,6 +15,16 @@ import java.lang.reflect.Method;
  * More information about PAC can be found there:
  * <p>
  * <a href="http://en.wikipedia.org/wiki/Proxy_auto-config">Wikipedia: PAC</a>
+ * <p>
+ * The way the script is run is controlled by {@link EvalMode}, see each
+ * constant for details. In the modes which keep the script loaded, it is
+ * reloaded only when the {@link VersionedStringProvider#version()} of the
+ * source moves, into fresh bindings so that nothing of the previous script
+ * is left. The new bindings replace the old ones only once the script
+ * loaded, so a broken version keeps the last good one evaluating, and is
+ * not tried again until the version moves once more. Plain
+ * {@link StringProvider}s are adapted with
+ * {@link VersionedStringProviderAdapter}, reading them once.
  *
  * @author Koosha Hosseiny, Copyright 2017
  * @author Markus Bernhardt, Copyright 2016
@@ -22,17 +32,125 @@ import java.lang.reflect.Method;
  */
 public final class JavaxPacScriptParser implements PacScriptParser {
 
+    /**
+     * Define the available ways of running the script.
+     */
+    public enum EvalMode {
+
+        /**
+         * The script source is fetched and evaluated as a whole, followed by
+         * a <code>FindProxyForURL(url, host)</code> call spliced into the
+         * source text, on every evaluation.
+         */
+        EVAL_MODE_SOURCE,
+
+        /**
+         * The script source is fetched and compiled (if the engine is
+         * {@link Compilable}) once, and <code>FindProxyForURL</code> is then
+         * invoked as a function through {@link Invocable}, with url and host
+         * passed as values.
+         */
+        EVAL_MODE_COMPILED,
+
+        /**
+         * The script source is fetched and compiled once into a
+         * {@link CompiledScript} shared by all threads, each thread evaluates
+         * it against its own lightweight {@link ScriptContext} holding the
+         * {@link ScriptMethods}. Unlike the other modes, a parser in this mode
+         * is safe for concurrent use without keeping one engine per thread.
+         * The engine must be {@link Compilable}.
+         */
+        EVAL_MODE_SHARED
+    }
+
     static final String SCRIPT_METHODS_OBJECT = "__pacutil";
 
-    private final StringProvider scriptSource;
-    private final ScriptEngine   engine;
+    static final String FIND_PROXY_FOR_URL = "FindProxyForURL";
+
+    private static final String URL_VARIABLE  = "__pacurl";
+    private static final String HOST_VARIABLE = "__pachost";
+
+    /**
+     * Shims of all the {@link ScriptMethods}, generated once and installed
+     * into an engine with a single eval (or compiled once, in shared mode).
+     */
+    private static final String SHIMS = shims();
+
+    /**
+     * A version of the script, as loaded into the engine.
+     */
+    private static final class Loaded {
+
+        final long           version;
+        final CompiledScript script; // Only in shared mode.
+
+        Loaded(final long version, final CompiledScript script) {
+
+            this.version = version;
+            this.script = script;
+        }
+    }
+
+    /**
+     * A version of the script which failed to load.
+     */
+    private static final class Failed {
+
+        final long            version;
+        final ScriptException cause;
 
+        Failed(final long version, final ScriptException cause) {
+
+            this.version = version;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * A thread's context in shared mode and the script version it was
+     * initialized with.
+     */
+    private static final class ThreadContext {
+
+        final Loaded        loaded;
+        final ScriptContext context;
+
+        ThreadContext(final Loaded loaded, final ScriptContext context) {
+
+            this.loaded = loaded;
+            this.context = context;
+        }
+    }
+
+    private final StringProvider          source;
+    private final VersionedStringProvider scriptSource;
+    private final ScriptEngine            engine;
+    private final EvalMode                evalMode;
+    private final ScriptMethods           methods;
+
+    // Only used in shared mode.
+    private final CompiledScript             compiledShims;
+    private final CompiledScript             compiledCall;
+    private final ThreadLocal<ThreadContext> contexts = new ThreadLocal<>();
+
+    private volatile Loaded loaded;
+    private volatile Failed failed;
+
+    /**
+     * Uses the JVM's bundled JavaScript engine in source mode.
+     *
+     * @param scriptSource the pac script source.
+     *
+     * @throws ProxyEvaluationException if script methods could not be
+     *                                  installed into the engine.
+     */
     public JavaxPacScriptParser(final StringProvider scriptSource) throws ProxyEvaluationException {
 
         this(
                 scriptSource,
                 new ScriptEngineManager().getEngineByMimeType("text/javascript"),
-                new DefaultNetRequest()
+                new DefaultNetRequest(),
+                EvalMode.EVAL_MODE_SOURCE
         );
     }
 
@@ -40,59 +158,148 @@ public final class JavaxPacScriptParser implements PacScriptParser {
                                 final ScriptEngine engine,
                                 final NetRequest netRequest) throws ProxyEvaluationException {
 
-        this.scriptSource = scriptSource;
-        this.engine = engine;
+        this(scriptSource, engine, netRequest, EvalMode.EVAL_MODE_SOURCE);
+    }
 
-        engine.put(SCRIPT_METHODS_OBJECT, new DefaultPacScriptMethods(netRequest));
+    public JavaxPacScriptParser(final StringProvider scriptSource,
+                                final ScriptEngine engine,
+                                final NetRequest netRequest,
+                                final EvalMode evalMode) throws ProxyEvaluationException {
 
-        for (final Method method : ScriptMethods.class.getMethods()) {
-            final String        name   = method.getName();
-            final int           args   = method.getParameterTypes().length;
-            final StringBuilder toEval = new StringBuilder(name).append(" = function(");
+        if (evalMode == null)
+            throw new NullPointerException("evalMode");
 
-            for (int i = 0; i < args; i++) {
-                if (i > 0)
-                    toEval.append(",");
-                toEval.append("arg").append(i);
-            }
+        if (evalMode == EvalMode.EVAL_MODE_COMPILED && !(engine instanceof Invocable))
+            throw new IllegalStateException(
+                    "engine must implement Invocable in compiled mode: " + engine);
 
-            toEval.append(") {return ");
-
-            final StringBuilder functionCall1 = new StringBuilder();
-            functionCall1.append(SCRIPT_METHODS_OBJECT)
-                         .append(".")
-                         .append(name)
-                         .append("(");
-            for (int i = 0; i < args; i++) {
-                if (i > 0)
-                    functionCall1.append(",");
-                functionCall1.append("arg").append(i);
-            }
-            functionCall1.append(")");
-            String functionCall = functionCall1.toString();
+        if (evalMode == EvalMode.EVAL_MODE_SHARED && !(engine instanceof Compilable))
+            throw new IllegalStateException(
+                    "engine must implement Compilable in shared mode: " + engine);
 
-            // If return type is java.lang.String convert it to a JS string
-            if (String.class.isAssignableFrom(method.getReturnType()))
-                functionCall = "String(" + functionCall + ")";
+        if (scriptSource == null)
+            throw new NullPointerException("scriptSource");
 
-            toEval.append(functionCall).append("; }");
+        this.source = scriptSource;
+        this.scriptSource = VersionedStringProviderAdapter.of(scriptSource);
+        this.engine = engine;
+        this.evalMode = evalMode;
+        this.methods = new DefaultPacScriptMethods(netRequest);
 
+        if (evalMode == EvalMode.EVAL_MODE_SHARED) {
+            // Shims go into each thread's own bindings, see newContext().
             try {
-                engine.eval(toEval.toString());
+                this.compiledShims = ((Compilable) engine).compile(SHIMS);
+                this.compiledCall = ((Compilable) engine).compile(
+                        FIND_PROXY_FOR_URL + "(" + URL_VARIABLE + ", " + HOST_VARIABLE + ")");
             }
             catch (final ScriptException e) {
                 throw new ProxyEvaluationException(e);
             }
+
+            return;
+        }
+
+        this.compiledShims = null;
+        this.compiledCall = null;
+
+        try {
+            this.engine.setBindings(this.newBindings(), ScriptContext.ENGINE_SCOPE);
+        }
+        catch (final ScriptException e) {
+            throw new ProxyEvaluationException(e);
+        }
+    }
+
+    /**
+     * Creates fresh bindings holding only the script methods and their
+     * shims.
+     */
+    private Bindings newBindings() throws ScriptException {
+
+        final Bindings bindings = this.engine.createBindings();
+        bindings.put(SCRIPT_METHODS_OBJECT, this.methods);
+
+        this.engine.eval(SHIMS, bindings);
+        return bindings;
+    }
+
+    /**
+     * Creates the bootstrap script, defining the shims of all the
+     * {@link ScriptMethods} at once.
+     */
+    private static String shims() {
+
+        final StringBuilder shims = new StringBuilder();
+        for (final Method method : ScriptMethods.class.getMethods())
+            shims.append(shim(method)).append(";\n");
+
+        return shims.toString();
+    }
+
+    /**
+     * Creates the JS function which delegates the call to the given method of
+     * the {@link #SCRIPT_METHODS_OBJECT}.
+     */
+    private static String shim(final Method method) {
+
+        final String        name   = method.getName();
+        final int           args   = method.getParameterTypes().length;
+        final StringBuilder toEval = new StringBuilder(name).append(" = function(");
+
+        for (int i = 0; i < args; i++) {
+            if (i > 0)
+                toEval.append(",");
+            toEval.append("arg").append(i);
         }
+
+        toEval.append(") {return ");
+
+        final StringBuilder functionCall1 = new StringBuilder();
+        functionCall1.append(SCRIPT_METHODS_OBJECT)
+                     .append(".")
+                     .append(name)
+                     .append("(");
+        for (int i = 0; i < args; i++) {
+            if (i > 0)
+                functionCall1.append(",");
+            functionCall1.append("arg").append(i);
+        }
+        functionCall1.append(")");
+        String functionCall = functionCall1.toString();
+
+        // If return type is java.lang.String convert it to a JS string
+        if (String.class.isAssignableFrom(method.getReturnType()))
+            functionCall = "String(" + functionCall + ")";
+
+        return toEval.append(functionCall).append("; }").toString();
     }
 
     public String evaluate(final String url,
                            final String host) throws ProxyEvaluationException {
 
+        final EvaluationContext context = EvaluationContext.begin();
+        try {
+            if (this.evalMode == EvalMode.EVAL_MODE_COMPILED)
+                return this.invoke(url, host);
+
+            if (this.evalMode == EvalMode.EVAL_MODE_SHARED)
+                return this.evaluateShared(url, host);
+
+            return this.evaluateSource(url, host);
+        }
+        finally {
+            context.end();
+        }
+    }
+
+    private String evaluateSource(final String url,
+                                  final String host) throws ProxyEvaluationException {
+
         try {
             final String evalMethod = String.format(
                     " ;FindProxyForURL (\"%s\",\"%s\")", url, host);
-            final String script = this.scriptSource.get() + evalMethod;
+            final String script = this.source.get() + evalMethod;
             return (String) this.engine.eval(script);
         }
         catch (final Exception e) {
@@ -100,6 +307,142 @@ public final class JavaxPacScriptParser implements PacScriptParser {
         }
     }
 
+    private String invoke(final String url,
+                          final String host) throws ProxyEvaluationException {
+
+        this.current();
+
+        try {
+            final Object result = ((Invocable) this.engine)
+                    .invokeFunction(FIND_PROXY_FOR_URL, url, host);
+            return result == null ? null : result.toString();
+        }
+        catch (final Exception e) {
+            throw new ProxyEvaluationException(e);
+        }
+    }
+
+    private String evaluateShared(final String url,
+                                  final String host) throws ProxyEvaluationException {
+
+        final Loaded loaded = this.current();
+
+        try {
+            ThreadContext threadContext = this.contexts.get();
+            if (threadContext == null || threadContext.loaded != loaded) {
+                threadContext = new ThreadContext(loaded, this.newContext(loaded.script));
+                this.contexts.set(threadContext);
+            }
+
+            final ScriptContext context  = threadContext.context;
+            final Bindings      bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            bindings.put(URL_VARIABLE, url);
+            bindings.put(HOST_VARIABLE, host);
+
+            final Object result = this.compiledCall.eval(context);
+            return result == null ? null : result.toString();
+        }
+        catch (final Exception e) {
+            throw new ProxyEvaluationException(e);
+        }
+    }
+
+    /**
+     * Creates the calling thread's context: fresh bindings with the script
+     * methods and their shims installed, and the shared compiled script run
+     * against them so that FindProxyForURL is defined.
+     */
+    private ScriptContext newContext(final CompiledScript script) throws ScriptException {
+
+        final Bindings bindings = this.engine.createBindings();
+        bindings.put(SCRIPT_METHODS_OBJECT, this.methods);
+
+        final ScriptContext context = new SimpleScriptContext();
+        context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+
+        this.compiledShims.eval(context);
+        script.eval(context);
+
+        return context;
+    }
+
+    /**
+     * Gets the loaded script, loading it first if the source version moved.
+     */
+    private Loaded current() throws ProxyEvaluationException {
+
+        final long   version = this.scriptSource.version();
+        final Loaded loaded  = this.loaded;
+
+        if (loaded != null && loaded.version == version)
+            return loaded;
+
+        final Failed failed = this.failed;
+        if (failed != null && failed.version == version)
+            return this.lastGood(failed);
+
+        return this.load(version);
+    }
+
+    /**
+     * @return the script loaded before the failed one, if any.
+     */
+    private Loaded lastGood(final Failed failed) throws ProxyEvaluationException {
+
+        final Loaded loaded = this.loaded;
+        if (loaded == null)
+            throw new ProxyEvaluationException(failed.cause);
+
+        return loaded;
+    }
+
+    /**
+     * Loads the script into fresh bindings, and makes them the engine's, so
+     * that FindProxyForURL is defined and can be invoked directly (in
+     * shared mode, only compiles it). If the script fails to load, the
+     * engine keeps the previous one.
+     */
+    private synchronized Loaded load(final long version) throws ProxyEvaluationException {
+
+        Loaded loaded = this.loaded;
+        if (loaded != null && loaded.version == version)
+            return loaded;
+
+        final Failed failed = this.failed;
+        if (failed != null && failed.version == version)
+            return this.lastGood(failed);
+
+        final String script = this.scriptSource.get();
+
+        try {
+            if (this.evalMode == EvalMode.EVAL_MODE_SHARED)
+                loaded = new Loaded(version, ((Compilable) this.engine).compile(script));
+            else {
+                final Bindings bindings = this.newBindings();
+
+                if (this.engine instanceof Compilable)
+                    ((Compilable) this.engine).compile(script).eval(bindings);
+                else
+                    this.engine.eval(script, bindings);
+
+                this.engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+                loaded = new Loaded(version, null);
+            }
+        }
+        catch (final ScriptException e) {
+            this.failed = new Failed(version, e);
+            return this.lastGood(this.failed);
+        }
+
+        this.failed = null;
+        return this.loaded = loaded;
+    }
+
+    public EvalMode getEvalMode() {
+
+        return this.evalMode;
+    }
+
     @SuppressWarnings("unused")
     public static boolean isScriptValid(final String script) {
 
@@ -0,0 +1,23 @@
+package cc.koosha.pac.pac;
+
+
+/**
+ * Syntax or runtime error of a script run by {@link BuiltinPacScriptParser}.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class JsException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    JsException(final String message) {
+
+        super(message);
+    }
+
+    JsException(final String message, final int line) {
+
+        super(message + " (line " + line + ")");
+    }
+
+}
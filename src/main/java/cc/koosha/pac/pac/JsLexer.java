@@ -0,0 +1,364 @@
+package cc.koosha.pac.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Splits the source of a script into tokens, for {@link JsParser}.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class JsLexer {
+
+    enum Type {
+        NAME,
+        NUMBER,
+        STRING,
+        REGEX,
+        PUNCT,
+        EOF
+    }
+
+    static final class Token {
+
+        final Type    type;
+        final String  text;
+        final Object  value;
+        final int     line;
+        final boolean newlineBefore;
+
+        Token(final Type type,
+              final String text,
+              final Object value,
+              final int line,
+              final boolean newlineBefore) {
+
+            this.type = type;
+            this.text = text;
+            this.value = value;
+            this.line = line;
+            this.newlineBefore = newlineBefore;
+        }
+
+        boolean is(final String punctOrName) {
+
+            return (this.type == Type.PUNCT || this.type == Type.NAME)
+                    && this.text.equals(punctOrName);
+        }
+
+        @Override
+        public String toString() {
+
+            return this.type == Type.EOF ? "end of script" : "'" + this.text + "'";
+        }
+    }
+
+    // Longest first, so that the first match is the longest one.
+    private static final String[] PUNCTUATORS = {
+            ">>>=", "===", "!==", ">>>", "<<=", ">>=",
+            "==", "!=", "<=", ">=", "&&", "||", "++", "--", "+=", "-=", "*=",
+            "/=", "%=", "&=", "|=", "^=", "<<", ">>",
+            "{", "}", "(", ")", "[", "]", ";", ",", ".", "?", ":", "+", "-",
+            "*", "/", "%", "<", ">", "=", "!", "~", "&", "|", "^",
+    };
+
+    private final String source;
+    private final List<Token> tokens = new ArrayList<>();
+
+    private int     pos  = 0;
+    private int     line = 1;
+    private boolean newline;
+
+    private JsLexer(final String source) {
+
+        this.source = source;
+    }
+
+    static List<Token> tokenize(final String source) {
+
+        final JsLexer lexer = new JsLexer(source);
+        lexer.run();
+        return lexer.tokens;
+    }
+
+    private void run() {
+
+        while (true) {
+            this.skipSpaceAndComments();
+
+            if (this.pos >= this.source.length()) {
+                this.add(Type.EOF, "", null);
+                return;
+            }
+
+            final char c = this.source.charAt(this.pos);
+
+            if (Character.isJavaIdentifierStart(c))
+                this.name();
+            else if (isDigit(c) || c == '.' && isDigit(this.peek(1)))
+                this.number();
+            else if (c == '"' || c == '\'')
+                this.string(c);
+            else if (c == '/' && this.regexAllowed())
+                this.regex();
+            else
+                this.punctuator();
+        }
+    }
+
+    private void add(final Type type, final String text, final Object value) {
+
+        this.tokens.add(new Token(type, text, value, this.line, this.newline));
+        this.newline = false;
+    }
+
+    private char peek(final int offset) {
+
+        final int at = this.pos + offset;
+        return at < this.source.length() ? this.source.charAt(at) : '\0';
+    }
+
+    private void skipSpaceAndComments() {
+
+        final String s = this.source;
+
+        while (this.pos < s.length()) {
+            final char c = s.charAt(this.pos);
+
+            if (c == '\n') {
+                this.line++;
+                this.newline = true;
+                this.pos++;
+            }
+            else if (Character.isWhitespace(c) || Character.isSpaceChar(c) || c == '\ufeff') {
+                this.pos++;
+            }
+            else if (c == '/' && this.peek(1) == '/') {
+                while (this.pos < s.length() && s.charAt(this.pos) != '\n')
+                    this.pos++;
+            }
+            else if (c == '/' && this.peek(1) == '*') {
+                final int end = s.indexOf("*/", this.pos + 2);
+                if (end < 0)
+                    throw new JsException("unterminated comment", this.line);
+                for (int i = this.pos; i < end; i++)
+                    if (s.charAt(i) == '\n') {
+                        this.line++;
+                        this.newline = true;
+                    }
+                this.pos = end + 2;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A slash starts a regex literal unless it follows something which ends
+     * an expression, in which case it's a division.
+     */
+    private boolean regexAllowed() {
+
+        if (this.tokens.isEmpty())
+            return true;
+
+        final Token last = this.tokens.get(this.tokens.size() - 1);
+
+        switch (last.type) {
+            case NUMBER:
+            case STRING:
+            case REGEX:
+                return false;
+
+            case NAME:
+                return JsParser.isKeyword(last.text)
+                        && !last.text.equals("this")
+                        && !last.text.equals("true")
+                        && !last.text.equals("false")
+                        && !last.text.equals("null");
+
+            default:
+                return !last.text.equals(")") && !last.text.equals("]");
+        }
+    }
+
+    private void name() {
+
+        final int start = this.pos;
+        while (this.pos < this.source.length()
+                && Character.isJavaIdentifierPart(this.source.charAt(this.pos)))
+            this.pos++;
+
+        this.add(Type.NAME, this.source.substring(start, this.pos), null);
+    }
+
+    private void number() {
+
+        final String s     = this.source;
+        final int    start = this.pos;
+        final double value;
+
+        if (s.charAt(this.pos) == '0' && (this.peek(1) == 'x' || this.peek(1) == 'X')) {
+            this.pos += 2;
+            while (this.pos < s.length() && Character.digit(s.charAt(this.pos), 16) >= 0)
+                this.pos++;
+            value = Long.parseLong(s.substring(start + 2, this.pos), 16);
+        }
+        else {
+            while (this.pos < s.length() && isDigit(s.charAt(this.pos)))
+                this.pos++;
+            if (this.pos < s.length() && s.charAt(this.pos) == '.') {
+                this.pos++;
+                while (this.pos < s.length() && isDigit(s.charAt(this.pos)))
+                    this.pos++;
+            }
+            if (this.pos < s.length() && (s.charAt(this.pos) == 'e' || s.charAt(this.pos) == 'E')) {
+                this.pos++;
+                if (this.pos < s.length() && (s.charAt(this.pos) == '+' || s.charAt(this.pos) == '-'))
+                    this.pos++;
+                while (this.pos < s.length() && isDigit(s.charAt(this.pos)))
+                    this.pos++;
+            }
+            value = Double.parseDouble(s.substring(start, this.pos));
+        }
+
+        this.add(Type.NUMBER, s.substring(start, this.pos), value);
+    }
+
+    private void string(final char quote) {
+
+        final String        s     = this.source;
+        final StringBuilder value = new StringBuilder();
+        final int           start = this.pos++;
+
+        while (true) {
+            if (this.pos >= s.length() || s.charAt(this.pos) == '\n')
+                throw new JsException("unterminated string", this.line);
+
+            final char c = s.charAt(this.pos++);
+            if (c == quote)
+                break;
+
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            if (this.pos >= s.length())
+                throw new JsException("unterminated string", this.line);
+
+            final char e = s.charAt(this.pos++);
+            switch (e) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'v':
+                    value.append('\u000b');
+                    break;
+                case '0':
+                    value.append('\0');
+                    break;
+                case 'x':
+                    value.append((char) this.hex(2));
+                    break;
+                case 'u':
+                    value.append((char) this.hex(4));
+                    break;
+                case '\r':
+                    if (this.peek(0) == '\n')
+                        this.pos++;
+                    this.line++;
+                    break;
+                case '\n':
+                    // Line continuation.
+                    this.line++;
+                    break;
+                default:
+                    value.append(e);
+            }
+        }
+
+        this.add(Type.STRING, s.substring(start, this.pos), value.toString());
+    }
+
+    private int hex(final int digits) {
+
+        if (this.pos + digits > this.source.length())
+            throw new JsException("bad escape sequence", this.line);
+
+        try {
+            final int value = Integer.parseInt(
+                    this.source.substring(this.pos, this.pos + digits), 16);
+            this.pos += digits;
+            return value;
+        }
+        catch (final NumberFormatException e) {
+            throw new JsException("bad escape sequence", this.line);
+        }
+    }
+
+    private void regex() {
+
+        final String s       = this.source;
+        final int    start   = this.pos++;
+        boolean      inClass = false;
+
+        while (true) {
+            if (this.pos >= s.length() || s.charAt(this.pos) == '\n')
+                throw new JsException("unterminated regex", this.line);
+
+            final char c = s.charAt(this.pos++);
+            if (c == '\\')
+                this.pos++;
+            else if (c == '[')
+                inClass = true;
+            else if (c == ']')
+                inClass = false;
+            else if (c == '/' && !inClass)
+                break;
+        }
+
+        final String pattern = s.substring(start + 1, this.pos - 1);
+
+        final int flagsStart = this.pos;
+        while (this.pos < s.length() && Character.isLetter(s.charAt(this.pos)))
+            this.pos++;
+
+        this.add(Type.REGEX,
+                s.substring(start, this.pos),
+                new String[]{pattern, s.substring(flagsStart, this.pos)});
+    }
+
+    private void punctuator() {
+
+        for (final String p : PUNCTUATORS)
+            if (this.source.startsWith(p, this.pos)) {
+                this.pos += p.length();
+                this.add(Type.PUNCT, p, null);
+                return;
+            }
+
+        throw new JsException("unexpected character '"
+                + this.source.charAt(this.pos) + "'", this.line);
+    }
+
+    private static boolean isDigit(final char c) {
+
+        return c >= '0' && c <= '9';
+    }
+
+}
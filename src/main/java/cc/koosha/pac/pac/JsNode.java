@@ -0,0 +1,1122 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.pac.JsRuntime.JsArray;
+import cc.koosha.pac.pac.JsRuntime.JsFunction;
+import cc.koosha.pac.pac.JsRuntime.JsObject;
+
+import java.util.Collections;
+import java.util.List;
+
+import static cc.koosha.pac.pac.JsRuntime.*;
+
+
+/**
+ * Syntax tree of a script run by {@link BuiltinPacScriptParser}. Each node
+ * knows how to evaluate (expressions) or execute (statements) itself.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+abstract class JsNode {
+
+    // Completion of a statement.
+    static final int NORMAL   = 0;
+    static final int BREAK    = 1;
+    static final int CONTINUE = 2;
+    static final int RETURN   = 3;
+
+    final int line;
+
+    JsNode(final int line) {
+
+        this.line = line;
+    }
+
+    /**
+     * Adds the direct children of this node to the given list, used to walk
+     * the tree.
+     */
+    abstract void children(List<JsNode> out);
+
+    static void add(final List<JsNode> out, final JsNode... nodes) {
+
+        for (final JsNode node : nodes)
+            if (node != null)
+                out.add(node);
+    }
+
+    abstract static class Expr extends JsNode {
+
+        Expr(final int line) {
+
+            super(line);
+        }
+
+        abstract Object eval(JsScope scope);
+    }
+
+    abstract static class Stmt extends JsNode {
+
+        Stmt(final int line) {
+
+            super(line);
+        }
+
+        abstract int exec(JsScope scope);
+    }
+
+    static Object[] evalAll(final Expr[] exprs, final JsScope scope) {
+
+        if (exprs.length == 0)
+            return NO_ARGS;
+
+        final Object[] values = new Object[exprs.length];
+        for (int i = 0; i < exprs.length; i++)
+            values[i] = exprs[i].eval(scope);
+
+        return values;
+    }
+
+    // ____________________________________________________________ FUNCTIONS
+
+    /**
+     * A function's parameters, body and the declarations hoisted to its top.
+     */
+    static final class FunctionDef {
+
+        final String            name;
+        final String[]          params;
+        final Stmt[]            body;
+        final List<String>      vars;
+        final List<FunctionDef> functions;
+        final boolean           usesThis;
+        final boolean           usesArguments;
+        final int               line;
+
+        FunctionDef(final String name,
+                    final String[] params,
+                    final Stmt[] body,
+                    final List<String> vars,
+                    final List<FunctionDef> functions,
+                    final boolean usesThis,
+                    final boolean usesArguments,
+                    final int line) {
+
+            this.name = name;
+            this.params = params;
+            this.body = body;
+            this.vars = vars;
+            this.functions = functions;
+            this.usesThis = usesThis;
+            this.usesArguments = usesArguments;
+            this.line = line;
+        }
+
+        /**
+         * Declares the hoisted variables and functions into the given scope.
+         */
+        void hoist(final JsScope scope) {
+
+            for (final String var : this.vars)
+                scope.declare(var);
+
+            for (final FunctionDef function : this.functions)
+                scope.define(function.name, new Closure(function, scope));
+        }
+    }
+
+    static final class Closure extends JsFunction {
+
+        final FunctionDef def;
+        final JsScope     scope;
+
+        Closure(final FunctionDef def, final JsScope scope) {
+
+            super(def.name == null ? "anonymous" : def.name);
+            this.def = def;
+            this.scope = scope;
+        }
+
+        @Override
+        Object call(final Object thiz, final Object[] args, final JsScope caller) {
+
+            // Functions defined in the global scope see the global scope of the
+            // calling evaluation, see JsScope.
+            final JsScope parent = this.scope.isGlobal() ? caller.global : this.scope;
+            final JsScope local  = JsScope.function(parent, caller.global);
+
+            final String[] params = this.def.params;
+            for (int i = 0; i < params.length; i++)
+                local.define(params[i], i < args.length ? args[i] : UNDEFINED);
+
+            if (this.def.usesThis)
+                local.define("this", thiz);
+
+            if (this.def.usesArguments) {
+                final JsArray arguments = new JsArray();
+                Collections.addAll(arguments.items, args);
+                local.define("arguments", arguments);
+            }
+
+            if (Thread.currentThread().isInterrupted())
+                throw new JsException("interrupted", this.def.line);
+
+            this.def.hoist(local);
+
+            for (final Stmt stmt : this.def.body)
+                if (stmt.exec(local) == RETURN)
+                    return local.returnValue;
+
+            return UNDEFINED;
+        }
+    }
+
+    // __________________________________________________________ EXPRESSIONS
+
+    static final class Literal extends Expr {
+
+        final Object value;
+
+        Literal(final int line, final Object value) {
+
+            super(line);
+            this.value = value;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return this.value;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+        }
+    }
+
+    static final class RegExpLiteral extends Expr {
+
+        final String source;
+        final String flags;
+
+        RegExpLiteral(final int line, final String source, final String flags) {
+
+            super(line);
+            this.source = source;
+            this.flags = flags;
+
+            // Fail early on bad patterns.
+            new JsRegExp(source, flags);
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return new JsRegExp(this.source, this.flags);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+        }
+    }
+
+    static final class Ident extends Expr {
+
+        final String name;
+
+        Ident(final int line, final String name) {
+
+            super(line);
+            this.name = name;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return scope.lookup(this.name);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+        }
+    }
+
+    static final class ArrayLiteral extends Expr {
+
+        final Expr[] items;
+
+        ArrayLiteral(final int line, final Expr[] items) {
+
+            super(line);
+            this.items = items;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            final JsArray array = new JsArray();
+            array.items.ensureCapacity(this.items.length);
+
+            for (final Expr item : this.items)
+                array.items.add(item.eval(scope));
+
+            return array;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.items);
+        }
+    }
+
+    static final class ObjectLiteral extends Expr {
+
+        final String[] keys;
+        final Expr[]   values;
+
+        ObjectLiteral(final int line, final String[] keys, final Expr[] values) {
+
+            super(line);
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            final JsObject object = new JsObject();
+
+            for (int i = 0; i < this.keys.length; i++)
+                object.props.put(this.keys[i], this.values[i].eval(scope));
+
+            return object;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.values);
+        }
+    }
+
+    static final class Function extends Expr {
+
+        final FunctionDef def;
+
+        Function(final int line, final FunctionDef def) {
+
+            super(line);
+            this.def = def;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return new Closure(this.def, scope);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.def.body);
+        }
+    }
+
+    static final class Member extends Expr {
+
+        final Expr   object;
+        final String name;
+
+        Member(final int line, final Expr object, final String name) {
+
+            super(line);
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return getMember(this.object.eval(scope), this.name);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.object);
+        }
+    }
+
+    static final class Index extends Expr {
+
+        final Expr object;
+        final Expr key;
+
+        Index(final int line, final Expr object, final Expr key) {
+
+            super(line);
+            this.object = object;
+            this.key = key;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            final Object object = this.object.eval(scope);
+            return getMember(object, this.key.eval(scope));
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.object, this.key);
+        }
+    }
+
+    static final class Call extends Expr {
+
+        final Expr   callee;
+        final Expr[] args;
+
+        Call(final int line, final Expr callee, final Expr[] args) {
+
+            super(line);
+            this.callee = callee;
+            this.args = args;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            if (this.callee instanceof Member) {
+                final Member member = (Member) this.callee;
+                final Object object = member.object.eval(scope);
+                return callMethod(object, member.name, evalAll(this.args, scope), scope);
+            }
+
+            if (this.callee instanceof Index) {
+                final Index  index  = (Index) this.callee;
+                final Object object = index.object.eval(scope);
+                final Object key    = index.key.eval(scope);
+                return call(getMember(object, key), object, evalAll(this.args, scope), scope, toStr(key));
+            }
+
+            final Object fn = this.callee.eval(scope);
+            return call(fn, UNDEFINED, evalAll(this.args, scope), scope, this.name());
+        }
+
+        String name() {
+
+            return this.callee instanceof Ident ? ((Ident) this.callee).name : "expression";
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.callee);
+            add(out, this.args);
+        }
+    }
+
+    static final class New extends Expr {
+
+        final Expr   callee;
+        final Expr[] args;
+
+        New(final int line, final Expr callee, final Expr[] args) {
+
+            super(line);
+            this.callee = callee;
+            this.args = args;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return construct(this.callee.eval(scope),
+                    evalAll(this.args, scope),
+                    scope,
+                    this.callee instanceof Ident ? ((Ident) this.callee).name : "expression");
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.callee);
+            add(out, this.args);
+        }
+    }
+
+    static final class Unary extends Expr {
+
+        final String op;
+        final Expr   operand;
+
+        Unary(final int line, final String op, final Expr operand) {
+
+            super(line);
+            this.op = op;
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            if ("typeof".equals(this.op)) {
+                if (this.operand instanceof Ident
+                        && scope.find(((Ident) this.operand).name) == JsScope.MISSING)
+                    return "undefined";
+                return typeOf(this.operand.eval(scope));
+            }
+
+            final Object value = this.operand.eval(scope);
+
+            switch (this.op) {
+                case "!":
+                    return !toBoolean(value);
+                case "-":
+                    return number(-toNumber(value));
+                case "+":
+                    return number(toNumber(value));
+                case "~":
+                    return (double) ~toInt32(value);
+                case "void":
+                    return UNDEFINED;
+                default:
+                    throw new JsException("SyntaxError: unsupported operator " + this.op, this.line);
+            }
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.operand);
+        }
+    }
+
+    static final class Binary extends Expr {
+
+        final String op;
+        final Expr   left;
+        final Expr   right;
+
+        Binary(final int line, final String op, final Expr left, final Expr right) {
+
+            super(line);
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return apply(this.op, this.left.eval(scope), this.right.eval(scope), this.line);
+        }
+
+        static Object apply(final String op, final Object a, final Object b, final int line) {
+
+            switch (op) {
+                case "+":
+                    return JsRuntime.add(a, b);
+                case "-":
+                    return number(toNumber(a) - toNumber(b));
+                case "*":
+                    return number(toNumber(a) * toNumber(b));
+                case "/":
+                    return number(toNumber(a) / toNumber(b));
+                case "%":
+                    return number(toNumber(a) % toNumber(b));
+                case "==":
+                    return looseEquals(a, b);
+                case "!=":
+                    return !looseEquals(a, b);
+                case "===":
+                    return strictEquals(a, b);
+                case "!==":
+                    return !strictEquals(a, b);
+                case "<": {
+                    final Integer c = compare(a, b);
+                    return c != null && c < 0;
+                }
+                case ">": {
+                    final Integer c = compare(a, b);
+                    return c != null && c > 0;
+                }
+                case "<=": {
+                    final Integer c = compare(a, b);
+                    return c != null && c <= 0;
+                }
+                case ">=": {
+                    final Integer c = compare(a, b);
+                    return c != null && c >= 0;
+                }
+                case "&":
+                    return (double) (toInt32(a) & toInt32(b));
+                case "|":
+                    return (double) (toInt32(a) | toInt32(b));
+                case "^":
+                    return (double) (toInt32(a) ^ toInt32(b));
+                case "<<":
+                    return (double) (toInt32(a) << (toInt32(b) & 31));
+                case ">>":
+                    return (double) (toInt32(a) >> (toInt32(b) & 31));
+                case ">>>":
+                    return (double) ((toInt32(a) & 0xffffffffL) >>> (toInt32(b) & 31));
+                case "in":
+                    return hasMember(b, a);
+                default:
+                    throw new JsException("SyntaxError: unsupported operator " + op, line);
+            }
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.left, this.right);
+        }
+    }
+
+    static final class Logical extends Expr {
+
+        final boolean and;
+        final Expr    left;
+        final Expr    right;
+
+        Logical(final int line, final boolean and, final Expr left, final Expr right) {
+
+            super(line);
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            final Object left = this.left.eval(scope);
+            return toBoolean(left) == this.and ? this.right.eval(scope) : left;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.left, this.right);
+        }
+    }
+
+    static final class Conditional extends Expr {
+
+        final Expr test;
+        final Expr then;
+        final Expr otherwise;
+
+        Conditional(final int line, final Expr test, final Expr then, final Expr otherwise) {
+
+            super(line);
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            return toBoolean(this.test.eval(scope))
+                   ? this.then.eval(scope)
+                   : this.otherwise.eval(scope);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.test, this.then, this.otherwise);
+        }
+    }
+
+    /**
+     * Assignment, compound assignment and increment / decrement.
+     */
+    static final class Assign extends Expr {
+
+        final String  op; // Binary operator of compound assignment, or null.
+        final Expr    target;
+        final Expr    value;
+        final boolean update; // ++ or --, the old value is converted to number.
+        final boolean postfix;
+
+        Assign(final int line,
+               final String op,
+               final Expr target,
+               final Expr value,
+               final boolean update,
+               final boolean postfix) {
+
+            super(line);
+            this.op = op;
+            this.target = target;
+            this.value = value;
+            this.update = update;
+            this.postfix = postfix;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            if (this.target instanceof Ident) {
+                final String name  = ((Ident) this.target).name;
+                final Object old   = this.op == null ? null : scope.lookup(name);
+                final Object value = this.compute(old, scope);
+                scope.assign(name, value);
+                return this.postfix ? number(toNumber(old)) : value;
+            }
+
+            final Object object;
+            final Object key;
+
+            if (this.target instanceof Member) {
+                object = ((Member) this.target).object.eval(scope);
+                key = ((Member) this.target).name;
+            }
+            else {
+                object = ((Index) this.target).object.eval(scope);
+                key = ((Index) this.target).key.eval(scope);
+            }
+
+            final Object old   = this.op == null ? null : getMember(object, key);
+            final Object value = this.compute(old, scope);
+            setMember(object, key, value);
+            return this.postfix ? number(toNumber(old)) : value;
+        }
+
+        private Object compute(final Object old, final JsScope scope) {
+
+            final Object value = this.value.eval(scope);
+
+            if (this.op == null)
+                return value;
+
+            return Binary.apply(this.op,
+                    this.update ? number(toNumber(old)) : old,
+                    value,
+                    this.line);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.target, this.value);
+        }
+    }
+
+    static final class Sequence extends Expr {
+
+        final Expr[] exprs;
+
+        Sequence(final int line, final Expr[] exprs) {
+
+            super(line);
+            this.exprs = exprs;
+        }
+
+        @Override
+        Object eval(final JsScope scope) {
+
+            Object value = UNDEFINED;
+            for (final Expr expr : this.exprs)
+                value = expr.eval(scope);
+
+            return value;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.exprs);
+        }
+    }
+
+    // ___________________________________________________________ STATEMENTS
+
+    static final class ExprStmt extends Stmt {
+
+        final Expr expr;
+
+        ExprStmt(final int line, final Expr expr) {
+
+            super(line);
+            this.expr = expr;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            this.expr.eval(scope);
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.expr);
+        }
+    }
+
+    static final class Var extends Stmt {
+
+        final String[] names;
+        final Expr[]   inits; // Null items for declarations without value.
+
+        Var(final int line, final String[] names, final Expr[] inits) {
+
+            super(line);
+            this.names = names;
+            this.inits = inits;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            for (int i = 0; i < this.names.length; i++)
+                if (this.inits[i] != null)
+                    scope.assign(this.names[i], this.inits[i].eval(scope));
+
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.inits);
+        }
+    }
+
+    static final class FunctionDecl extends Stmt {
+
+        final FunctionDef def;
+
+        FunctionDecl(final int line, final FunctionDef def) {
+
+            super(line);
+            this.def = def;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            // Hoisted, see FunctionDef.hoist().
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.def.body);
+        }
+    }
+
+    static final class Block extends Stmt {
+
+        final Stmt[] body;
+
+        Block(final int line, final Stmt[] body) {
+
+            super(line);
+            this.body = body;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            for (final Stmt stmt : this.body) {
+                final int completion = stmt.exec(scope);
+                if (completion != NORMAL)
+                    return completion;
+            }
+
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.body);
+        }
+    }
+
+    static final class If extends Stmt {
+
+        final Expr test;
+        final Stmt then;
+        final Stmt otherwise;
+
+        If(final int line, final Expr test, final Stmt then, final Stmt otherwise) {
+
+            super(line);
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            if (toBoolean(this.test.eval(scope)))
+                return this.then.exec(scope);
+
+            return this.otherwise == null ? NORMAL : this.otherwise.exec(scope);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.test, this.then, this.otherwise);
+        }
+    }
+
+    /**
+     * for, while and do-while loops.
+     */
+    static final class Loop extends Stmt {
+
+        final Stmt    init;
+        final Expr    test;
+        final Expr    update;
+        final Stmt    body;
+        final boolean testFirst;
+
+        Loop(final int line,
+             final Stmt init,
+             final Expr test,
+             final Expr update,
+             final Stmt body,
+             final boolean testFirst) {
+
+            super(line);
+            this.init = init;
+            this.test = test;
+            this.update = update;
+            this.body = body;
+            this.testFirst = testFirst;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            if (this.init != null)
+                this.init.exec(scope);
+
+            boolean first = true;
+
+            while (true) {
+                // Lets DeadlinePacScriptParser stop runaway loops.
+                if (Thread.currentThread().isInterrupted())
+                    throw new JsException("interrupted", this.line);
+
+                if ((this.testFirst || !first)
+                        && this.test != null
+                        && !toBoolean(this.test.eval(scope)))
+                    return NORMAL;
+                first = false;
+
+                final int completion = this.body.exec(scope);
+                if (completion == BREAK)
+                    return NORMAL;
+                if (completion == RETURN)
+                    return RETURN;
+
+                if (this.update != null)
+                    this.update.eval(scope);
+            }
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.init, this.test, this.update, this.body);
+        }
+    }
+
+    static final class ForIn extends Stmt {
+
+        final Expr target;
+        final Expr object;
+        final Stmt body;
+
+        ForIn(final int line, final Expr target, final Expr object, final Stmt body) {
+
+            super(line);
+            this.target = target;
+            this.object = object;
+            this.body = body;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            for (final Object key : keys(this.object.eval(scope))) {
+                new Assign(this.line, null, this.target, new Literal(this.line, key), false, false)
+                        .eval(scope);
+
+                final int completion = this.body.exec(scope);
+                if (completion == BREAK)
+                    return NORMAL;
+                if (completion == RETURN)
+                    return RETURN;
+            }
+
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.target, this.object, this.body);
+        }
+    }
+
+    static final class Switch extends Stmt {
+
+        final Expr     discriminant;
+        final Expr[]   tests; // Null item for the default case.
+        final Stmt[][] bodies;
+
+        Switch(final int line, final Expr discriminant, final Expr[] tests, final Stmt[][] bodies) {
+
+            super(line);
+            this.discriminant = discriminant;
+            this.tests = tests;
+            this.bodies = bodies;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            final Object value = this.discriminant.eval(scope);
+
+            int start = -1;
+            for (int i = 0; i < this.tests.length && start < 0; i++)
+                if (this.tests[i] != null && strictEquals(value, this.tests[i].eval(scope)))
+                    start = i;
+
+            for (int i = 0; i < this.tests.length && start < 0; i++)
+                if (this.tests[i] == null)
+                    start = i;
+
+            if (start < 0)
+                return NORMAL;
+
+            for (int i = start; i < this.bodies.length; i++)
+                for (final Stmt stmt : this.bodies[i]) {
+                    final int completion = stmt.exec(scope);
+                    if (completion == BREAK)
+                        return NORMAL;
+                    if (completion != NORMAL)
+                        return completion;
+                }
+
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.discriminant);
+            add(out, this.tests);
+            for (final Stmt[] body : this.bodies)
+                add(out, body);
+        }
+    }
+
+    static final class Return extends Stmt {
+
+        final Expr value;
+
+        Return(final int line, final Expr value) {
+
+            super(line);
+            this.value = value;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            scope.returnValue = this.value == null ? UNDEFINED : this.value.eval(scope);
+            return RETURN;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.value);
+        }
+    }
+
+    static final class Jump extends Stmt {
+
+        final int completion;
+
+        Jump(final int line, final int completion) {
+
+            super(line);
+            this.completion = completion;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            return this.completion;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+        }
+    }
+
+    static final class Throw extends Stmt {
+
+        final Expr value;
+
+        Throw(final int line, final Expr value) {
+
+            super(line);
+            this.value = value;
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            throw new JsException("uncaught " + toStr(this.value.eval(scope)), this.line);
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+            add(out, this.value);
+        }
+    }
+
+    static final class Empty extends Stmt {
+
+        Empty(final int line) {
+
+            super(line);
+        }
+
+        @Override
+        int exec(final JsScope scope) {
+
+            return NORMAL;
+        }
+
+        @Override
+        void children(final List<JsNode> out) {
+
+        }
+    }
+
+}
@@ -0,0 +1,727 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.pac.JsLexer.Token;
+import cc.koosha.pac.pac.JsLexer.Type;
+import cc.koosha.pac.pac.JsNode.*;
+
+import java.util.*;
+
+
+/**
+ * Parses the JavaScript subset used by PAC scripts into a {@link JsNode}
+ * tree.
+ * <p>
+ * Supported: function declarations and expressions, var / let / const (all
+ * function scoped), if / else, for, for-in, while, do-while, switch, break,
+ * continue, return, throw, and all expression operators of ES5 except
+ * <code>delete</code> and <code>instanceof</code>. Not supported: try /
+ * catch, labels, getters / setters, and everything newer than ES5.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class JsParser {
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "break", "case", "catch", "const", "continue", "default", "delete",
+            "do", "else", "false", "finally", "for", "function", "if", "in",
+            "instanceof", "let", "new", "null", "return", "switch", "this",
+            "throw", "true", "try", "typeof", "var", "void", "while", "with"
+    ));
+
+    private static final Set<String> ASSIGN_OPS = new HashSet<>(Arrays.asList(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", ">>>="
+    ));
+
+    // Binary operators by precedence, lowest first. Logical operators are
+    // handled separately as they short circuit.
+    private static final String[][] BINARY_OPS = {
+            {"|"},
+            {"^"},
+            {"&"},
+            {"==", "!=", "===", "!=="},
+            {"<", ">", "<=", ">=", "in", "instanceof"},
+            {"<<", ">>", ">>>"},
+            {"+", "-"},
+            {"*", "/", "%"},
+    };
+
+    /**
+     * Collects the declarations to hoist, and what a function uses, while
+     * parsing its body.
+     */
+    private static final class FunctionContext {
+
+        final List<String>      vars      = new ArrayList<>();
+        final List<FunctionDef> functions = new ArrayList<>();
+        boolean usesThis;
+        boolean usesArguments;
+    }
+
+    private final List<Token>            tokens;
+    private final Deque<FunctionContext> functions = new ArrayDeque<>();
+
+    private int pos = 0;
+
+    private JsParser(final List<Token> tokens) {
+
+        this.tokens = tokens;
+    }
+
+    static boolean isKeyword(final String name) {
+
+        return KEYWORDS.contains(name);
+    }
+
+    /**
+     * Parses a whole script.
+     *
+     * @param source the script.
+     *
+     * @return the script as a function with no parameters, its body being
+     * the top level statements.
+     *
+     * @throws JsException on syntax errors.
+     */
+    static FunctionDef parse(final String source) {
+
+        final JsParser parser = new JsParser(JsLexer.tokenize(source));
+        parser.functions.push(new FunctionContext());
+
+        final List<Stmt> body = new ArrayList<>();
+        while (parser.peek().type != Type.EOF)
+            body.add(parser.statement());
+
+        return parser.endFunction(null, new String[0], body, 1);
+    }
+
+    // _______________________________________________________________ TOKENS
+
+    private Token peek() {
+
+        return this.tokens.get(this.pos);
+    }
+
+    private Token peek(final int ahead) {
+
+        return this.tokens.get(Math.min(this.pos + ahead, this.tokens.size() - 1));
+    }
+
+    private Token next() {
+
+        final Token token = this.tokens.get(this.pos);
+        if (token.type != Type.EOF)
+            this.pos++;
+        return token;
+    }
+
+    private boolean at(final String punctOrName) {
+
+        return this.peek().is(punctOrName);
+    }
+
+    private boolean accept(final String punctOrName) {
+
+        if (!this.at(punctOrName))
+            return false;
+
+        this.next();
+        return true;
+    }
+
+    private Token expect(final String punctOrName) {
+
+        if (!this.at(punctOrName))
+            throw this.unexpected();
+
+        return this.next();
+    }
+
+    private String name() {
+
+        final Token token = this.next();
+        if (token.type != Type.NAME || isKeyword(token.text))
+            throw this.unexpected(token);
+
+        return token.text;
+    }
+
+    private JsException unexpected() {
+
+        return this.unexpected(this.peek());
+    }
+
+    private JsException unexpected(final Token token) {
+
+        return new JsException("SyntaxError: unexpected " + token, token.line);
+    }
+
+    /**
+     * Automatic semicolon insertion, simplified: a semicolon may be left out
+     * before a closing brace, at the end of the script or at a line break.
+     */
+    private void semicolon() {
+
+        if (this.accept(";"))
+            return;
+
+        final Token token = this.peek();
+        if (token.type == Type.EOF || token.is("}") || token.newlineBefore)
+            return;
+
+        throw this.unexpected(token);
+    }
+
+    // ____________________________________________________________ FUNCTIONS
+
+    private FunctionDef function(final String name, final int line) {
+
+        this.expect("(");
+        final List<String> params = new ArrayList<>();
+        if (!this.at(")"))
+            do {
+                params.add(this.name());
+            } while (this.accept(","));
+        this.expect(")");
+
+        this.functions.push(new FunctionContext());
+
+        this.expect("{");
+        final List<Stmt> body = new ArrayList<>();
+        while (!this.accept("}")) {
+            if (this.peek().type == Type.EOF)
+                throw this.unexpected();
+            body.add(this.statement());
+        }
+
+        return this.endFunction(name, params.toArray(new String[params.size()]), body, line);
+    }
+
+    private FunctionDef endFunction(final String name,
+                                    final String[] params,
+                                    final List<Stmt> body,
+                                    final int line) {
+
+        final FunctionContext context = this.functions.pop();
+
+        return new FunctionDef(
+                name,
+                params,
+                body.toArray(new Stmt[body.size()]),
+                context.vars,
+                context.functions,
+                context.usesThis,
+                context.usesArguments,
+                line
+        );
+    }
+
+    // ___________________________________________________________ STATEMENTS
+
+    private Stmt statement() {
+
+        final Token token = this.peek();
+        final int   line  = token.line;
+
+        if (token.type == Type.PUNCT) {
+            if (this.accept("{"))
+                return this.block(line);
+            if (this.accept(";"))
+                return new Empty(line);
+        }
+
+        if (token.type == Type.NAME)
+            switch (token.text) {
+                case "function": {
+                    this.next();
+                    final FunctionDef def = this.function(this.name(), line);
+                    this.functions.peek().functions.add(def);
+                    return new FunctionDecl(line, def);
+                }
+
+                case "var":
+                case "let":
+                case "const": {
+                    this.next();
+                    final Stmt var = this.var(line);
+                    this.semicolon();
+                    return var;
+                }
+
+                case "if": {
+                    this.next();
+                    this.expect("(");
+                    final Expr test = this.expression();
+                    this.expect(")");
+                    final Stmt then      = this.statement();
+                    final Stmt otherwise = this.accept("else") ? this.statement() : null;
+                    return new If(line, test, then, otherwise);
+                }
+
+                case "for":
+                    this.next();
+                    return this.forLoop(line);
+
+                case "while": {
+                    this.next();
+                    this.expect("(");
+                    final Expr test = this.expression();
+                    this.expect(")");
+                    return new Loop(line, null, test, null, this.statement(), true);
+                }
+
+                case "do": {
+                    this.next();
+                    final Stmt body = this.statement();
+                    this.expect("while");
+                    this.expect("(");
+                    final Expr test = this.expression();
+                    this.expect(")");
+                    this.accept(";");
+                    return new Loop(line, null, test, null, body, false);
+                }
+
+                case "switch":
+                    this.next();
+                    return this.switchStatement(line);
+
+                case "return": {
+                    this.next();
+                    final Token after = this.peek();
+                    final Expr value = after.is(";") || after.is("}")
+                            || after.type == Type.EOF || after.newlineBefore
+                                       ? null
+                                       : this.expression();
+                    this.semicolon();
+                    return new Return(line, value);
+                }
+
+                case "break":
+                case "continue": {
+                    this.next();
+                    if (this.peek().type == Type.NAME && !this.peek().newlineBefore
+                            && !isKeyword(this.peek().text))
+                        throw new JsException("SyntaxError: labels are not supported", line);
+                    this.semicolon();
+                    return new Jump(line, "break".equals(token.text) ? JsNode.BREAK : JsNode.CONTINUE);
+                }
+
+                case "throw": {
+                    this.next();
+                    final Expr value = this.expression();
+                    this.semicolon();
+                    return new Throw(line, value);
+                }
+
+                case "try":
+                case "with":
+                    throw new JsException("SyntaxError: '" + token.text + "' is not supported", line);
+            }
+
+        final Expr expr = this.expression();
+        this.semicolon();
+        return new ExprStmt(line, expr);
+    }
+
+    private Block block(final int line) {
+
+        final List<Stmt> body = new ArrayList<>();
+        while (!this.accept("}")) {
+            if (this.peek().type == Type.EOF)
+                throw this.unexpected();
+            body.add(this.statement());
+        }
+
+        return new Block(line, body.toArray(new Stmt[body.size()]));
+    }
+
+    private Var var(final int line) {
+
+        final List<String> names = new ArrayList<>();
+        final List<Expr>   inits = new ArrayList<>();
+
+        do {
+            final String name = this.name();
+            names.add(name);
+            this.functions.peek().vars.add(name);
+            inits.add(this.accept("=") ? this.assignment(false) : null);
+        } while (this.accept(","));
+
+        return new Var(line,
+                names.toArray(new String[names.size()]),
+                inits.toArray(new Expr[inits.size()]));
+    }
+
+    private Stmt forLoop(final int line) {
+
+        this.expect("(");
+
+        // for (var x in o) / for (x in o)
+        final boolean declares = this.at("var") || this.at("let") || this.at("const");
+        if (this.peek(declares ? 1 : 0).type == Type.NAME && this.peek(declares ? 2 : 1).is("in")) {
+            if (declares)
+                this.next();
+            final Token  target = this.next();
+            if (declares)
+                this.functions.peek().vars.add(target.text);
+            this.expect("in");
+            final Expr object = this.expression();
+            this.expect(")");
+            return new ForIn(line, new Ident(target.line, target.text), object, this.statement());
+        }
+
+        Stmt init = null;
+        if (declares) {
+            this.next();
+            init = this.var(line);
+        }
+        else if (!this.at(";")) {
+            init = new ExprStmt(line, this.expression());
+        }
+        this.expect(";");
+
+        final Expr test = this.at(";") ? null : this.expression();
+        this.expect(";");
+
+        final Expr update = this.at(")") ? null : this.expression();
+        this.expect(")");
+
+        return new Loop(line, init, test, update, this.statement(), true);
+    }
+
+    private Stmt switchStatement(final int line) {
+
+        this.expect("(");
+        final Expr discriminant = this.expression();
+        this.expect(")");
+        this.expect("{");
+
+        final List<Expr>   tests  = new ArrayList<>();
+        final List<Stmt[]> bodies = new ArrayList<>();
+
+        while (!this.accept("}")) {
+            if (this.accept("case"))
+                tests.add(this.expression());
+            else if (this.accept("default"))
+                tests.add(null);
+            else
+                throw this.unexpected();
+            this.expect(":");
+
+            final List<Stmt> body = new ArrayList<>();
+            while (!this.at("case") && !this.at("default") && !this.at("}")) {
+                if (this.peek().type == Type.EOF)
+                    throw this.unexpected();
+                body.add(this.statement());
+            }
+            bodies.add(body.toArray(new Stmt[body.size()]));
+        }
+
+        return new Switch(line,
+                discriminant,
+                tests.toArray(new Expr[tests.size()]),
+                bodies.toArray(new Stmt[bodies.size()][]));
+    }
+
+    // __________________________________________________________ EXPRESSIONS
+
+    private Expr expression() {
+
+        final int  line  = this.peek().line;
+        final Expr first = this.assignment(true);
+
+        if (!this.at(","))
+            return first;
+
+        final List<Expr> exprs = new ArrayList<>();
+        exprs.add(first);
+        while (this.accept(","))
+            exprs.add(this.assignment(true));
+
+        return new Sequence(line, exprs.toArray(new Expr[exprs.size()]));
+    }
+
+    private Expr assignment(final boolean allowIn) {
+
+        final int  line = this.peek().line;
+        final Expr left = this.conditional(allowIn);
+
+        final Token token = this.peek();
+        if (token.type != Type.PUNCT || !ASSIGN_OPS.contains(token.text))
+            return left;
+
+        this.checkTarget(left);
+        this.next();
+
+        final Expr   value = this.assignment(allowIn);
+        final String op    = token.text.equals("=")
+                             ? null
+                             : token.text.substring(0, token.text.length() - 1);
+
+        return new Assign(line, op, left, value, false, false);
+    }
+
+    private void checkTarget(final Expr target) {
+
+        if (!(target instanceof Ident) && !(target instanceof Member) && !(target instanceof Index))
+            throw new JsException("SyntaxError: invalid assignment target", target.line);
+    }
+
+    private Expr conditional(final boolean allowIn) {
+
+        final int  line = this.peek().line;
+        final Expr test = this.logical(allowIn, false);
+
+        if (!this.accept("?"))
+            return test;
+
+        final Expr then = this.assignment(true);
+        this.expect(":");
+        final Expr otherwise = this.assignment(allowIn);
+
+        return new Conditional(line, test, then, otherwise);
+    }
+
+    private Expr logical(final boolean allowIn, final boolean and) {
+
+        Expr left = and ? this.binary(allowIn, 0) : this.logical(allowIn, true);
+
+        final String op = and ? "&&" : "||";
+        while (this.at(op)) {
+            final int line = this.next().line;
+            final Expr right = and ? this.binary(allowIn, 0) : this.logical(allowIn, true);
+            left = new Logical(line, and, left, right);
+        }
+
+        return left;
+    }
+
+    private Expr binary(final boolean allowIn, final int level) {
+
+        if (level == BINARY_OPS.length)
+            return this.unary();
+
+        Expr left = this.binary(allowIn, level + 1);
+
+        while (true) {
+            final Token token = this.peek();
+            if (token.type != Type.PUNCT && token.type != Type.NAME)
+                return left;
+
+            boolean matched = false;
+            for (final String op : BINARY_OPS[level])
+                if (token.text.equals(op)) {
+                    matched = true;
+                    break;
+                }
+
+            if (!matched || !allowIn && token.text.equals("in"))
+                return left;
+
+            if (token.text.equals("instanceof"))
+                throw new JsException("SyntaxError: 'instanceof' is not supported", token.line);
+
+            this.next();
+            left = new Binary(token.line, token.text, left, this.binary(allowIn, level + 1));
+        }
+    }
+
+    private Expr unary() {
+
+        final Token token = this.peek();
+        final int   line  = token.line;
+
+        if (token.type == Type.PUNCT)
+            switch (token.text) {
+                case "!":
+                case "-":
+                case "+":
+                case "~":
+                    this.next();
+                    return new Unary(line, token.text, this.unary());
+
+                case "++":
+                case "--": {
+                    this.next();
+                    final Expr target = this.unary();
+                    this.checkTarget(target);
+                    return new Assign(line, token.text.substring(1), target,
+                            new Literal(line, 1.0), true, false);
+                }
+            }
+
+        if (token.is("typeof") || token.is("void")) {
+            this.next();
+            return new Unary(line, token.text, this.unary());
+        }
+
+        if (token.is("delete"))
+            throw new JsException("SyntaxError: 'delete' is not supported", line);
+
+        final Expr expr = this.postfix();
+
+        final Token after = this.peek();
+        if ((after.is("++") || after.is("--")) && !after.newlineBefore) {
+            this.next();
+            this.checkTarget(expr);
+            return new Assign(line, after.text.substring(1), expr,
+                    new Literal(line, 1.0), true, true);
+        }
+
+        return expr;
+    }
+
+    private Expr postfix() {
+
+        Expr expr;
+
+        if (this.at("new")) {
+            final int line = this.next().line;
+            Expr callee = this.primary();
+            while (this.at("."))
+                callee = this.member(callee);
+            final Expr[] args = this.at("(") ? this.arguments() : new Expr[0];
+            expr = new New(line, callee, args);
+        }
+        else {
+            expr = this.primary();
+        }
+
+        while (true) {
+            final Token token = this.peek();
+
+            if (token.is("."))
+                expr = this.member(expr);
+            else if (token.is("[")) {
+                this.next();
+                final Expr key = this.expression();
+                this.expect("]");
+                expr = new Index(token.line, expr, key);
+            }
+            else if (token.is("("))
+                expr = new Call(token.line, expr, this.arguments());
+            else
+                return expr;
+        }
+    }
+
+    private Expr member(final Expr object) {
+
+        final int   line = this.expect(".").line;
+        final Token name = this.next();
+
+        // Keywords are fine as property names.
+        if (name.type != Type.NAME)
+            throw this.unexpected(name);
+
+        return new Member(line, object, name.text);
+    }
+
+    private Expr[] arguments() {
+
+        this.expect("(");
+
+        final List<Expr> args = new ArrayList<>();
+        if (!this.at(")"))
+            do {
+                args.add(this.assignment(true));
+            } while (this.accept(","));
+
+        this.expect(")");
+
+        return args.toArray(new Expr[args.size()]);
+    }
+
+    private Expr primary() {
+
+        final Token token = this.next();
+        final int   line  = token.line;
+
+        switch (token.type) {
+            case NUMBER:
+                return new Literal(line, token.value);
+
+            case STRING:
+                return new Literal(line, token.value);
+
+            case REGEX: {
+                final String[] regex = (String[]) token.value;
+                try {
+                    return new RegExpLiteral(line, regex[0], regex[1]);
+                }
+                catch (final JsException e) {
+                    throw new JsException(e.getMessage(), line);
+                }
+            }
+
+            case NAME:
+                switch (token.text) {
+                    case "true":
+                        return new Literal(line, Boolean.TRUE);
+                    case "false":
+                        return new Literal(line, Boolean.FALSE);
+                    case "null":
+                        return new Literal(line, null);
+                    case "this":
+                        this.functions.peek().usesThis = true;
+                        return new Ident(line, "this");
+                    case "function": {
+                        final String name = this.peek().type == Type.NAME ? this.name() : null;
+                        return new Function(line, this.function(name, line));
+                    }
+                    case "arguments":
+                        this.functions.peek().usesArguments = true;
+                        return new Ident(line, token.text);
+                }
+
+                if (isKeyword(token.text))
+                    throw this.unexpected(token);
+
+                return new Ident(line, token.text);
+
+            case PUNCT:
+                switch (token.text) {
+                    case "(": {
+                        final Expr expr = this.expression();
+                        this.expect(")");
+                        return expr;
+                    }
+
+                    case "[": {
+                        final List<Expr> items = new ArrayList<>();
+                        while (!this.accept("]")) {
+                            items.add(this.assignment(true));
+                            if (!this.at("]"))
+                                this.expect(",");
+                        }
+                        return new ArrayLiteral(line, items.toArray(new Expr[items.size()]));
+                    }
+
+                    case "{": {
+                        final List<String> keys   = new ArrayList<>();
+                        final List<Expr>   values = new ArrayList<>();
+                        while (!this.accept("}")) {
+                            final Token key = this.next();
+                            if (key.type == Type.STRING)
+                                keys.add((String) key.value);
+                            else if (key.type == Type.NUMBER)
+                                keys.add(JsRuntime.numberToString((Double) key.value));
+                            else if (key.type == Type.NAME)
+                                keys.add(key.text);
+                            else
+                                throw this.unexpected(key);
+                            this.expect(":");
+                            values.add(this.assignment(true));
+                            if (!this.at("}"))
+                                this.expect(",");
+                        }
+                        return new ObjectLiteral(line,
+                                keys.toArray(new String[keys.size()]),
+                                values.toArray(new Expr[values.size()]));
+                    }
+                }
+        }
+
+        throw this.unexpected(token);
+    }
+
+}
@@ -0,0 +1,1292 @@
+package cc.koosha.pac.pac;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Values, conversions and the standard library of the JavaScript subset run by
+ * {@link BuiltinPacScriptParser}.
+ * <p>
+ * JavaScript values are represented by plain Java objects: strings by
+ * {@link String}, numbers by {@link Double}, booleans by {@link Boolean},
+ * null by null and undefined by {@link #UNDEFINED}. Arrays, objects, functions
+ * and regular expressions have their own types, nested in this class.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class JsRuntime {
+
+    static final Object UNDEFINED = new Object() {
+        @Override
+        public String toString() {
+            return "undefined";
+        }
+    };
+
+    static final Object[] NO_ARGS = new Object[0];
+
+    private static final Double ZERO = 0.0;
+    private static final Double NAN  = Double.NaN;
+
+    // Arrays are dense, writes growing one past this fail rather than fill
+    // the heap with holes.
+    private static final int MAX_ARRAY_LENGTH = 1 << 20;
+
+    // Integers up to this are exact, their digits are the shortest.
+    private static final double MAX_SAFE_INTEGER = 9007199254740991.0;
+
+    private JsRuntime() {
+
+    }
+
+    // ________________________________________________________________ TYPES
+
+    static final class JsArray {
+
+        final ArrayList<Object> items;
+
+        JsArray(final ArrayList<Object> items) {
+
+            this.items = items;
+        }
+
+        JsArray() {
+
+            this(new ArrayList<Object>());
+        }
+    }
+
+    static final class JsObject {
+
+        final LinkedHashMap<String, Object> props = new LinkedHashMap<>();
+    }
+
+    static final class JsRegExp {
+
+        final Pattern pattern;
+        final String  source;
+        final boolean global;
+
+        JsRegExp(final String source, final String flags) {
+
+            int f = 0;
+            for (int i = 0; i < flags.length(); i++)
+                switch (flags.charAt(i)) {
+                    case 'i':
+                        f |= Pattern.CASE_INSENSITIVE;
+                        break;
+                    case 'm':
+                        f |= Pattern.MULTILINE;
+                        break;
+                    case 'g':
+                        break;
+                    default:
+                        throw new JsException("SyntaxError: invalid regex flag: " + flags);
+                }
+
+            this.source = source;
+            this.global = flags.indexOf('g') >= 0;
+
+            try {
+                this.pattern = Pattern.compile(source, f);
+            }
+            catch (final RuntimeException e) {
+                throw new JsException("SyntaxError: invalid regex: /" + source + "/");
+            }
+        }
+    }
+
+    abstract static class JsFunction {
+
+        final String name;
+
+        JsFunction(final String name) {
+
+            this.name = name;
+        }
+
+        abstract Object call(Object thiz, Object[] args, JsScope caller);
+
+        Object construct(final Object[] args, final JsScope caller) {
+
+            throw new JsException("TypeError: " + this.name + " is not a constructor");
+        }
+
+        static Object arg(final Object[] args, final int index) {
+
+            return index < args.length ? args[index] : UNDEFINED;
+        }
+    }
+
+    // __________________________________________________________ CONVERSIONS
+
+    static boolean toBoolean(final Object value) {
+
+        if (value instanceof Boolean)
+            return (Boolean) value;
+
+        if (value instanceof String)
+            return !((String) value).isEmpty();
+
+        if (value instanceof Double) {
+            final double d = (Double) value;
+            return d != 0 && !Double.isNaN(d);
+        }
+
+        return value != null && value != UNDEFINED;
+    }
+
+    static double toNumber(final Object value) {
+
+        if (value instanceof Double)
+            return (Double) value;
+
+        if (value instanceof Boolean)
+            return (Boolean) value ? 1 : 0;
+
+        if (value == null)
+            return 0;
+
+        if (value instanceof String)
+            return toNumber((String) value);
+
+        if (value instanceof JsArray)
+            return toNumber(toStr(value));
+
+        return Double.NaN;
+    }
+
+    private static double toNumber(final String value) {
+
+        final String s = value.trim();
+
+        if (s.isEmpty())
+            return 0;
+
+        if (s.startsWith("0x") || s.startsWith("0X"))
+            try {
+                return Long.parseLong(s.substring(2), 16);
+            }
+            catch (final NumberFormatException e) {
+                return Double.NaN;
+            }
+
+        switch (s) {
+            case "Infinity":
+            case "+Infinity":
+                return Double.POSITIVE_INFINITY;
+            case "-Infinity":
+                return Double.NEGATIVE_INFINITY;
+        }
+
+        final char last = s.charAt(s.length() - 1);
+        if (last != '.' && (last < '0' || last > '9'))
+            return Double.NaN;
+
+        try {
+            return Double.parseDouble(s);
+        }
+        catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    static Double number(final double d) {
+
+        return d == 0 && 1 / d > 0 ? ZERO : d;
+    }
+
+    static int toInt32(final Object value) {
+
+        final double d = toNumber(value);
+        return Double.isNaN(d) || Double.isInfinite(d) ? 0 : (int) (long) d;
+    }
+
+    static String toStr(final Object value) {
+
+        if (value instanceof String)
+            return (String) value;
+
+        if (value instanceof Double)
+            return numberToString((Double) value);
+
+        if (value == null)
+            return "null";
+
+        if (value instanceof JsArray)
+            return join((JsArray) value, ",");
+
+        if (value instanceof JsObject)
+            return "[object Object]";
+
+        if (value instanceof JsRegExp)
+            return "/" + ((JsRegExp) value).source + "/";
+
+        if (value instanceof JsFunction)
+            return "function " + ((JsFunction) value).name + "() { [code] }";
+
+        return value.toString();
+    }
+
+    /**
+     * Formats a number as ECMAScript's Number::toString does: the shortest
+     * digits which read back as the same number, written plainly from 1e-6
+     * up to 1e21, in exponent notation otherwise.
+     */
+    static String numberToString(final double d) {
+
+        if (Double.isNaN(d))
+            return "NaN";
+
+        if (Double.isInfinite(d))
+            return d > 0 ? "Infinity" : "-Infinity";
+
+        if (d == 0)
+            return "0";
+
+        if (d == Math.rint(d) && Math.abs(d) <= MAX_SAFE_INTEGER)
+            return Long.toString((long) d);
+
+        // The value is 0.digits * 10^n.
+        final BigDecimal shortest = shortest(Math.abs(d));
+        final String     digits   = shortest.unscaledValue().toString();
+        final int        k        = digits.length();
+        final int        n        = k - shortest.scale();
+
+        final StringBuilder out = new StringBuilder(d < 0 ? "-" : "");
+
+        if (k <= n && n <= 21) {
+            out.append(digits);
+            for (int i = k; i < n; i++)
+                out.append('0');
+        }
+        else if (0 < n && n <= 21) {
+            out.append(digits, 0, n).append('.').append(digits, n, k);
+        }
+        else if (-6 < n && n <= 0) {
+            out.append("0.");
+            for (int i = n; i < 0; i++)
+                out.append('0');
+            out.append(digits);
+        }
+        else {
+            out.append(digits.charAt(0));
+            if (k > 1)
+                out.append('.').append(digits, 1, k);
+            out.append('e').append(n - 1 < 0 ? '-' : '+').append(Math.abs(n - 1));
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * @return the decimal of fewest digits which reads back as the given
+     * positive number, the closest one if several have as few, without
+     * trailing zeros.
+     */
+    private static BigDecimal shortest(final double d) {
+
+        final BigDecimal exact = new BigDecimal(d);
+
+        for (int precision = 1; precision < 17; precision++) {
+            final BigDecimal rounded = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+            if (rounded.doubleValue() == d)
+                return rounded.stripTrailingZeros();
+        }
+
+        // Seventeen digits always read back.
+        return exact.round(new MathContext(17, RoundingMode.HALF_EVEN)).stripTrailingZeros();
+    }
+
+    /**
+     * Formats a number in the given radix, with as many fraction digits as
+     * tell it apart from its neighbours, as V8 does.
+     */
+    static String numberToString(final double d, final int radix) {
+
+        if (radix == 10 || Double.isNaN(d) || Double.isInfinite(d))
+            return numberToString(d);
+
+        final double value    = Math.abs(d);
+        final double integer  = Math.floor(value);
+        double       fraction = value - integer;
+
+        // Half the distance to the next number, what digits need to resolve.
+        double delta = Math.max(0.5 * (Math.nextUp(value) - value), Double.MIN_VALUE);
+
+        final StringBuilder digits = new StringBuilder();
+        boolean             carry  = false;
+
+        if (fraction >= delta) {
+            do {
+                fraction *= radix;
+                delta *= radix;
+
+                final int digit = (int) fraction;
+                digits.append(Character.forDigit(digit, radix));
+                fraction -= digit;
+
+                if ((fraction > 0.5 || fraction == 0.5 && (digit & 1) != 0) && fraction + delta > 1) {
+                    // Round up, carrying into the integer part past the
+                    // first fraction digit.
+                    while (true) {
+                        final int last = digits.length() - 1;
+                        if (last < 0) {
+                            carry = true;
+                            break;
+                        }
+
+                        final int up = Character.digit(digits.charAt(last), radix) + 1;
+                        digits.setLength(last);
+                        if (up < radix) {
+                            digits.append(Character.forDigit(up, radix));
+                            break;
+                        }
+                    }
+                    break;
+                }
+            }
+            while (fraction >= delta);
+        }
+
+        BigDecimal whole = new BigDecimal(integer);
+        if (carry)
+            whole = whole.add(BigDecimal.ONE);
+
+        final StringBuilder out = new StringBuilder(d < 0 ? "-" : "");
+        out.append(whole.toBigInteger().toString(radix));
+        if (digits.length() > 0)
+            out.append('.').append(digits);
+
+        return out.toString();
+    }
+
+    static String typeOf(final Object value) {
+
+        if (value == UNDEFINED)
+            return "undefined";
+        if (value instanceof String)
+            return "string";
+        if (value instanceof Double)
+            return "number";
+        if (value instanceof Boolean)
+            return "boolean";
+        if (value instanceof JsFunction)
+            return "function";
+        return "object";
+    }
+
+    // ____________________________________________________________ OPERATORS
+
+    static Object add(final Object a, final Object b) {
+
+        if (a instanceof Double && b instanceof Double)
+            return number((Double) a + (Double) b);
+
+        final Object pa = toPrimitive(a);
+        final Object pb = toPrimitive(b);
+
+        if (pa instanceof String || pb instanceof String)
+            return toStr(pa).concat(toStr(pb));
+
+        return number(toNumber(pa) + toNumber(pb));
+    }
+
+    private static Object toPrimitive(final Object value) {
+
+        return value instanceof JsArray
+                || value instanceof JsObject
+                || value instanceof JsRegExp
+                || value instanceof JsFunction
+               ? toStr(value)
+               : value;
+    }
+
+    static boolean strictEquals(final Object a, final Object b) {
+
+        if (a == b)
+            return !(a instanceof Double) || !Double.isNaN((Double) a);
+
+        if (a instanceof Double && b instanceof Double)
+            return ((Double) a).doubleValue() == (Double) b;
+
+        if (a instanceof String && b instanceof String
+                || a instanceof Boolean && b instanceof Boolean)
+            return a.equals(b);
+
+        return false;
+    }
+
+    static boolean looseEquals(final Object a, final Object b) {
+
+        if ((a == null || a == UNDEFINED) && (b == null || b == UNDEFINED))
+            return true;
+
+        if (a == null || a == UNDEFINED || b == null || b == UNDEFINED)
+            return false;
+
+        if (a.getClass() == b.getClass())
+            return strictEquals(a, b);
+
+        if (a instanceof Boolean || b instanceof Boolean)
+            return looseEquals(
+                    a instanceof Boolean ? (Object) toNumber(a) : a,
+                    b instanceof Boolean ? (Object) toNumber(b) : b);
+
+        final Object pa = toPrimitive(a);
+        final Object pb = toPrimitive(b);
+
+        if (pa != a || pb != b)
+            return looseEquals(pa, pb);
+
+        if (a instanceof Double || b instanceof Double)
+            return toNumber(a) == toNumber(b);
+
+        return false;
+    }
+
+    /**
+     * Compares for the relational operators.
+     *
+     * @return negative, zero or positive like a comparator, or null if any of
+     * the operands is NaN.
+     */
+    static Integer compare(final Object a, final Object b) {
+
+        final Object pa = toPrimitive(a);
+        final Object pb = toPrimitive(b);
+
+        if (pa instanceof String && pb instanceof String)
+            return ((String) pa).compareTo((String) pb);
+
+        final double da = toNumber(pa);
+        final double db = toNumber(pb);
+
+        if (Double.isNaN(da) || Double.isNaN(db))
+            return null;
+
+        return da < db ? -1 : da == db ? 0 : 1;
+    }
+
+    // ______________________________________________________________ MEMBERS
+
+    static Object getMember(final Object obj, final Object key) {
+
+        if (obj instanceof String) {
+            final String s = (String) obj;
+            if ("length".equals(key))
+                return (double) s.length();
+            final int index = index(key);
+            return index >= 0 && index < s.length()
+                   ? String.valueOf(s.charAt(index))
+                   : UNDEFINED;
+        }
+
+        if (obj instanceof JsArray) {
+            final ArrayList<Object> items = ((JsArray) obj).items;
+            if ("length".equals(key))
+                return (double) items.size();
+            final int index = index(key);
+            return index >= 0 && index < items.size() ? items.get(index) : UNDEFINED;
+        }
+
+        if (obj instanceof JsObject) {
+            final LinkedHashMap<String, Object> props = ((JsObject) obj).props;
+            final String                        name  = toStr(key);
+            final Object                        value = props.get(name);
+            return value != null || props.containsKey(name) ? value : UNDEFINED;
+        }
+
+        if (obj instanceof JsRegExp) {
+            if ("source".equals(key))
+                return ((JsRegExp) obj).source;
+            if ("global".equals(key))
+                return ((JsRegExp) obj).global;
+            return UNDEFINED;
+        }
+
+        if (obj == null || obj == UNDEFINED)
+            throw new JsException("TypeError: cannot read property '"
+                    + toStr(key) + "' of " + toStr(obj));
+
+        return UNDEFINED;
+    }
+
+    static void setMember(final Object obj, final Object key, final Object value) {
+
+        if (obj instanceof JsArray) {
+            final ArrayList<Object> items = ((JsArray) obj).items;
+            final int               index = index(key);
+
+            if ("length".equals(key)) {
+                final double length = toNumber(value);
+                if (length != (int) length || length < 0)
+                    throw new JsException("RangeError: invalid array length: " + toStr(value));
+                if (length > MAX_ARRAY_LENGTH)
+                    throw new JsException("RangeError: array length not supported: " + toStr(value));
+                while (items.size() > length)
+                    items.remove(items.size() - 1);
+                while (items.size() < length)
+                    items.add(UNDEFINED);
+            }
+            else if (index >= 0) {
+                if (index >= MAX_ARRAY_LENGTH)
+                    throw new JsException("RangeError: array index not supported: " + toStr(key));
+                while (items.size() <= index)
+                    items.add(UNDEFINED);
+                items.set(index, value);
+            }
+
+            return;
+        }
+
+        if (obj instanceof JsObject) {
+            ((JsObject) obj).props.put(toStr(key), value);
+            return;
+        }
+
+        if (obj == null || obj == UNDEFINED)
+            throw new JsException("TypeError: cannot set property '"
+                    + toStr(key) + "' of " + toStr(obj));
+
+        // Silently ignored on primitives, as in JavaScript.
+    }
+
+    /**
+     * @return the array index the key represents, or -1.
+     */
+    private static int index(final Object key) {
+
+        if (key instanceof Double) {
+            final double d = (Double) key;
+            return d >= 0 && d == (int) d ? (int) d : -1;
+        }
+
+        if (key instanceof String) {
+            final String s = (String) key;
+            if (s.isEmpty() || s.length() > 9)
+                return -1;
+            for (int i = 0; i < s.length(); i++)
+                if (s.charAt(i) < '0' || s.charAt(i) > '9')
+                    return -1;
+            return Integer.parseInt(s);
+        }
+
+        return -1;
+    }
+
+    static boolean hasMember(final Object obj, final Object key) {
+
+        if (obj instanceof JsArray) {
+            final int index = index(key);
+            return "length".equals(key) || index >= 0 && index < ((JsArray) obj).items.size();
+        }
+
+        if (obj instanceof JsObject)
+            return ((JsObject) obj).props.containsKey(toStr(key));
+
+        throw new JsException("TypeError: cannot use 'in' operator on " + toStr(obj));
+    }
+
+    /**
+     * Keys iterated by a for-in loop.
+     */
+    static List<Object> keys(final Object obj) {
+
+        final List<Object> keys = new ArrayList<>();
+
+        if (obj instanceof JsArray)
+            for (int i = 0; i < ((JsArray) obj).items.size(); i++)
+                keys.add(String.valueOf(i));
+        else if (obj instanceof JsObject)
+            keys.addAll(((JsObject) obj).props.keySet());
+        else if (obj instanceof String)
+            for (int i = 0; i < ((String) obj).length(); i++)
+                keys.add(String.valueOf(i));
+
+        return keys;
+    }
+
+    // ______________________________________________________________ CALLING
+
+    static Object call(final Object fn,
+                       final Object thiz,
+                       final Object[] args,
+                       final JsScope caller,
+                       final String name) {
+
+        if (!(fn instanceof JsFunction))
+            throw new JsException("TypeError: " + name + " is not a function");
+
+        return ((JsFunction) fn).call(thiz, args, caller);
+    }
+
+    static Object construct(final Object fn,
+                            final Object[] args,
+                            final JsScope caller,
+                            final String name) {
+
+        if (!(fn instanceof JsFunction))
+            throw new JsException("TypeError: " + name + " is not a constructor");
+
+        return ((JsFunction) fn).construct(args, caller);
+    }
+
+    /**
+     * Calls <code>obj.name(args)</code>, which is either a method of the
+     * standard library or a function stored in an object.
+     */
+    static Object callMethod(final Object obj,
+                             final String name,
+                             final Object[] args,
+                             final JsScope caller) {
+
+        if (obj instanceof String)
+            return stringMethod((String) obj, name, args, caller);
+
+        if (obj instanceof JsArray)
+            return arrayMethod((JsArray) obj, name, args, caller);
+
+        if (obj instanceof JsRegExp)
+            return regExpMethod((JsRegExp) obj, name, args);
+
+        if (obj instanceof JsObject) {
+            final Object fn = ((JsObject) obj).props.get(name);
+            if (fn == null && "hasOwnProperty".equals(name))
+                return ((JsObject) obj).props.containsKey(toStr(JsFunction.arg(args, 0)));
+            return call(fn, obj, args, caller, name);
+        }
+
+        if (obj instanceof Double && "toString".equals(name)) {
+            final Object radix = JsFunction.arg(args, 0);
+            if (radix == UNDEFINED)
+                return toStr(obj);
+
+            final double r = toNumber(radix);
+            if (!(r >= 2 && r <= 36))
+                throw new JsException("RangeError: toString() radix must be between 2 and 36");
+            return numberToString((Double) obj, (int) r);
+        }
+
+        if (obj instanceof Boolean && "toString".equals(name))
+            return toStr(obj);
+
+        return call(getMember(obj, name), obj, args, caller, name);
+    }
+
+    private static Object stringMethod(final String s,
+                                       final String name,
+                                       final Object[] args,
+                                       final JsScope caller) {
+
+        final Object a0 = JsFunction.arg(args, 0);
+        final Object a1 = JsFunction.arg(args, 1);
+
+        switch (name) {
+            case "indexOf":
+                return (double) s.indexOf(toStr(a0), a1 == UNDEFINED ? 0 : clamp(a1, s.length()));
+
+            case "lastIndexOf":
+                return (double) s.lastIndexOf(toStr(a0), a1 == UNDEFINED ? s.length() : clamp(a1, s.length()));
+
+            case "charAt": {
+                final int i = (int) toNumber(a0 == UNDEFINED ? ZERO : a0);
+                return i >= 0 && i < s.length() ? String.valueOf(s.charAt(i)) : "";
+            }
+
+            case "charCodeAt": {
+                final int i = (int) toNumber(a0 == UNDEFINED ? ZERO : a0);
+                return i >= 0 && i < s.length() ? (double) s.charAt(i) : NAN;
+            }
+
+            case "substring": {
+                int start = clamp(a0, s.length());
+                int end   = a1 == UNDEFINED ? s.length() : clamp(a1, s.length());
+                if (start > end) {
+                    final int t = start;
+                    start = end;
+                    end = t;
+                }
+                return s.substring(start, end);
+            }
+
+            case "substr": {
+                final int start  = relative(a0, s.length());
+                final int length = a1 == UNDEFINED ? s.length() - start : clamp(a1, s.length() - start);
+                return s.substring(start, start + length);
+            }
+
+            case "slice": {
+                final int start = relative(a0, s.length());
+                final int end   = a1 == UNDEFINED ? s.length() : relative(a1, s.length());
+                return start < end ? s.substring(start, end) : "";
+            }
+
+            case "toLowerCase":
+            case "toLocaleLowerCase":
+                return s.toLowerCase(Locale.ROOT);
+
+            case "toUpperCase":
+            case "toLocaleUpperCase":
+                return s.toUpperCase(Locale.ROOT);
+
+            case "trim":
+                return s.trim();
+
+            case "startsWith":
+                return s.startsWith(toStr(a0));
+
+            case "endsWith":
+                return s.endsWith(toStr(a0));
+
+            case "concat": {
+                final StringBuilder sb = new StringBuilder(s);
+                for (final Object arg : args)
+                    sb.append(toStr(arg));
+                return sb.toString();
+            }
+
+            case "split":
+                return split(s, a0, a1);
+
+            case "replace":
+                return replace(s, a0, a1, caller);
+
+            case "match":
+                return match(s, a0);
+
+            case "search": {
+                final Matcher m = regExp(a0).pattern.matcher(s);
+                return m.find() ? (double) m.start() : -1.0;
+            }
+
+            case "toString":
+            case "valueOf":
+                return s;
+
+            default:
+                throw new JsException("TypeError: string has no method " + name);
+        }
+    }
+
+    private static Object arrayMethod(final JsArray array,
+                                      final String name,
+                                      final Object[] args,
+                                      final JsScope caller) {
+
+        final ArrayList<Object> items = array.items;
+        final Object            a0    = JsFunction.arg(args, 0);
+        final Object            a1    = JsFunction.arg(args, 1);
+
+        switch (name) {
+            case "indexOf":
+                for (int i = a1 == UNDEFINED ? 0 : relative(a1, items.size()); i < items.size(); i++)
+                    if (strictEquals(items.get(i), a0))
+                        return (double) i;
+                return -1.0;
+
+            case "lastIndexOf":
+                for (int i = items.size() - 1; i >= 0; i--)
+                    if (strictEquals(items.get(i), a0))
+                        return (double) i;
+                return -1.0;
+
+            case "push":
+                Collections.addAll(items, args);
+                return (double) items.size();
+
+            case "pop":
+                return items.isEmpty() ? UNDEFINED : items.remove(items.size() - 1);
+
+            case "shift":
+                return items.isEmpty() ? UNDEFINED : items.remove(0);
+
+            case "unshift":
+                items.addAll(0, Arrays.asList(args));
+                return (double) items.size();
+
+            case "join":
+                return join(array, a0 == UNDEFINED ? "," : toStr(a0));
+
+            case "toString":
+                return join(array, ",");
+
+            case "slice": {
+                final int start = relative(a0, items.size());
+                final int end   = a1 == UNDEFINED ? items.size() : relative(a1, items.size());
+                return new JsArray(start < end
+                                   ? new ArrayList<Object>(items.subList(start, end))
+                                   : new ArrayList<Object>());
+            }
+
+            case "concat": {
+                final JsArray result = new JsArray(new ArrayList<Object>(items));
+                for (final Object arg : args)
+                    if (arg instanceof JsArray)
+                        result.items.addAll(((JsArray) arg).items);
+                    else
+                        result.items.add(arg);
+                return result;
+            }
+
+            case "reverse":
+                Collections.reverse(items);
+                return array;
+
+            case "sort": {
+                final Object fn = a0;
+                Collections.sort(items, new Comparator<Object>() {
+                    @Override
+                    public int compare(final Object o1, final Object o2) {
+                        if (fn == UNDEFINED)
+                            return toStr(o1).compareTo(toStr(o2));
+                        final double d = toNumber(call(fn, UNDEFINED, new Object[]{o1, o2}, caller, "comparator"));
+                        return d < 0 ? -1 : d > 0 ? 1 : 0;
+                    }
+                });
+                return array;
+            }
+
+            default:
+                throw new JsException("TypeError: array has no method " + name);
+        }
+    }
+
+    private static Object regExpMethod(final JsRegExp re,
+                                       final String name,
+                                       final Object[] args) {
+
+        final String s = toStr(JsFunction.arg(args, 0));
+
+        switch (name) {
+            case "test":
+                return re.pattern.matcher(s).find();
+
+            case "exec": {
+                final Matcher m = re.pattern.matcher(s);
+                return m.find() ? groups(m) : null;
+            }
+
+            case "toString":
+                return toStr(re);
+
+            default:
+                throw new JsException("TypeError: regex has no method " + name);
+        }
+    }
+
+    static String join(final JsArray array, final String separator) {
+
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < array.items.size(); i++) {
+            if (i > 0)
+                sb.append(separator);
+            final Object item = array.items.get(i);
+            if (item != null && item != UNDEFINED)
+                sb.append(toStr(item));
+        }
+
+        return sb.toString();
+    }
+
+    private static JsArray split(final String s, final Object separator, final Object limit) {
+
+        final ArrayList<Object> items = new ArrayList<>();
+        final int max = limit == UNDEFINED ? Integer.MAX_VALUE : (int) toNumber(limit);
+
+        if (separator == UNDEFINED) {
+            items.add(s);
+        }
+        else if (separator instanceof JsRegExp) {
+            Collections.addAll(items, (Object[]) ((JsRegExp) separator).pattern.split(s, -1));
+        }
+        else {
+            final String sep = toStr(separator);
+            if (sep.isEmpty()) {
+                for (int i = 0; i < s.length(); i++)
+                    items.add(String.valueOf(s.charAt(i)));
+            }
+            else {
+                int start = 0;
+                int at;
+                while ((at = s.indexOf(sep, start)) >= 0) {
+                    items.add(s.substring(start, at));
+                    start = at + sep.length();
+                }
+                items.add(s.substring(start));
+            }
+        }
+
+        while (items.size() > max)
+            items.remove(items.size() - 1);
+
+        return new JsArray(items);
+    }
+
+    private static String replace(final String s,
+                                  final Object pattern,
+                                  final Object replacement,
+                                  final JsScope caller) {
+
+        if (!(pattern instanceof JsRegExp)) {
+            final String p  = toStr(pattern);
+            final int    at = s.indexOf(p);
+            if (at < 0)
+                return s;
+            final String r = replacement instanceof JsFunction
+                             ? toStr(call(replacement, UNDEFINED, new Object[]{p}, caller, "replacer"))
+                             : expand(toStr(replacement), p, new String[0]);
+            return s.substring(0, at) + r + s.substring(at + p.length());
+        }
+
+        final JsRegExp      re   = (JsRegExp) pattern;
+        final Matcher       m    = re.pattern.matcher(s);
+        final StringBuilder sb   = new StringBuilder();
+        int                 last = 0;
+        int                 from = 0;
+
+        while (from <= s.length() && m.find(from)) {
+            sb.append(s, last, m.start());
+
+            final String[] groups = new String[m.groupCount()];
+            for (int i = 0; i < groups.length; i++)
+                groups[i] = m.group(i + 1);
+
+            if (replacement instanceof JsFunction) {
+                final Object[] fnArgs = new Object[groups.length + 1];
+                fnArgs[0] = m.group();
+                for (int i = 0; i < groups.length; i++)
+                    fnArgs[i + 1] = groups[i] == null ? UNDEFINED : groups[i];
+                sb.append(toStr(call(replacement, UNDEFINED, fnArgs, caller, "replacer")));
+            }
+            else {
+                sb.append(expand(toStr(replacement), m.group(), groups));
+            }
+
+            last = m.end();
+            if (!re.global)
+                break;
+
+            // Step over empty matches.
+            from = m.end() == m.start() ? m.end() + 1 : m.end();
+        }
+
+        return sb.append(s, last, s.length()).toString();
+    }
+
+    /**
+     * Expands $&amp;, $1..$9 and $$ in a replacement string.
+     */
+    private static String expand(final String replacement,
+                                 final String matched,
+                                 final String[] groups) {
+
+        if (replacement.indexOf('$') < 0)
+            return replacement;
+
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < replacement.length(); i++) {
+            final char c = replacement.charAt(i);
+            final char n = i + 1 < replacement.length() ? replacement.charAt(i + 1) : '\0';
+
+            if (c == '$' && n == '$') {
+                sb.append('$');
+                i++;
+            }
+            else if (c == '$' && n == '&') {
+                sb.append(matched);
+                i++;
+            }
+            else if (c == '$' && n >= '1' && n <= '9' && n - '1' < groups.length) {
+                final String group = groups[n - '1'];
+                if (group != null)
+                    sb.append(group);
+                i++;
+            }
+            else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static Object match(final String s, final Object pattern) {
+
+        final JsRegExp re = regExp(pattern);
+        final Matcher  m  = re.pattern.matcher(s);
+
+        if (!re.global)
+            return m.find() ? groups(m) : null;
+
+        final JsArray result = new JsArray();
+        while (m.find())
+            result.items.add(m.group());
+
+        return result.items.isEmpty() ? null : result;
+    }
+
+    private static JsRegExp regExp(final Object pattern) {
+
+        return pattern instanceof JsRegExp
+               ? (JsRegExp) pattern
+               : new JsRegExp(Pattern.quote(toStr(pattern)), "");
+    }
+
+    private static JsArray groups(final Matcher m) {
+
+        final JsArray result = new JsArray();
+
+        for (int i = 0; i <= m.groupCount(); i++) {
+            final String group = m.group(i);
+            result.items.add(group == null ? UNDEFINED : group);
+        }
+
+        return result;
+    }
+
+    /**
+     * Clamps an index argument into [0, length].
+     */
+    private static int clamp(final Object value, final int length) {
+
+        final double d = toNumber(value);
+        if (Double.isNaN(d) || d < 0)
+            return 0;
+        return d > length ? length : (int) d;
+    }
+
+    /**
+     * Resolves an index argument which may be negative (relative to the end)
+     * into [0, length].
+     */
+    private static int relative(final Object value, final int length) {
+
+        if (value == UNDEFINED)
+            return 0;
+
+        final double d = toNumber(value);
+        if (Double.isNaN(d))
+            return 0;
+        if (d < 0)
+            return Math.max(0, length + (int) d);
+        return d > length ? length : (int) d;
+    }
+
+    // ______________________________________________________________ GLOBALS
+
+    /**
+     * Defines the standard global functions into the given scope.
+     */
+    static void defineGlobals(final JsScope scope) {
+
+        scope.define("undefined", UNDEFINED);
+        scope.define("NaN", NAN);
+        scope.define("Infinity", Double.POSITIVE_INFINITY);
+
+        scope.define("alert", new JsFunction("alert") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return UNDEFINED;
+            }
+        });
+
+        scope.define("isNaN", new JsFunction("isNaN") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return Double.isNaN(toNumber(arg(args, 0)));
+            }
+        });
+
+        scope.define("isFinite", new JsFunction("isFinite") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                final double d = toNumber(arg(args, 0));
+                return !Double.isNaN(d) && !Double.isInfinite(d);
+            }
+        });
+
+        scope.define("parseInt", new JsFunction("parseInt") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return parseInt(toStr(arg(args, 0)), arg(args, 1));
+            }
+        });
+
+        scope.define("parseFloat", new JsFunction("parseFloat") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return parseFloat(toStr(arg(args, 0)));
+            }
+        });
+
+        scope.define("String", new JsFunction("String") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return args.length == 0 ? "" : toStr(args[0]);
+            }
+
+            @Override
+            Object construct(final Object[] args, final JsScope caller) {
+                return this.call(null, args, caller);
+            }
+        });
+
+        scope.define("Number", new JsFunction("Number") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return args.length == 0 ? ZERO : number(toNumber(args[0]));
+            }
+
+            @Override
+            Object construct(final Object[] args, final JsScope caller) {
+                return this.call(null, args, caller);
+            }
+        });
+
+        scope.define("Boolean", new JsFunction("Boolean") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return toBoolean(arg(args, 0));
+            }
+        });
+
+        scope.define("Array", new JsFunction("Array") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return this.construct(args, caller);
+            }
+
+            @Override
+            Object construct(final Object[] args, final JsScope caller) {
+                final JsArray array = new JsArray();
+                if (args.length == 1 && args[0] instanceof Double)
+                    setMember(array, "length", args[0]);
+                else
+                    Collections.addAll(array.items, args);
+                return array;
+            }
+        });
+
+        scope.define("Object", new JsFunction("Object") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return this.construct(args, caller);
+            }
+
+            @Override
+            Object construct(final Object[] args, final JsScope caller) {
+                return new JsObject();
+            }
+        });
+
+        scope.define("RegExp", new JsFunction("RegExp") {
+            @Override
+            Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                return this.construct(args, caller);
+            }
+
+            @Override
+            Object construct(final Object[] args, final JsScope caller) {
+                final Object pattern = arg(args, 0);
+                final Object flags   = arg(args, 1);
+                return new JsRegExp(
+                        pattern instanceof JsRegExp ? ((JsRegExp) pattern).source : toStr(pattern),
+                        flags == UNDEFINED ? "" : toStr(flags));
+            }
+        });
+
+        final JsObject math = new JsObject();
+        for (final String fn : new String[]{"floor", "ceil", "round", "abs", "min", "max"})
+            math.props.put(fn, new JsFunction(fn) {
+                @Override
+                Object call(final Object thiz, final Object[] args, final JsScope caller) {
+                    return math(this.name, args);
+                }
+            });
+        scope.define("Math", math);
+    }
+
+    private static Object math(final String fn, final Object[] args) {
+
+        final double a = toNumber(JsFunction.arg(args, 0));
+
+        switch (fn) {
+            case "floor":
+                return number(Math.floor(a));
+            case "ceil":
+                return number(Math.ceil(a));
+            case "round":
+                return number(Math.floor(a + 0.5));
+            case "abs":
+                return number(Math.abs(a));
+            default:
+                double result = "min".equals(fn)
+                                ? Double.POSITIVE_INFINITY
+                                : Double.NEGATIVE_INFINITY;
+                for (final Object arg : args) {
+                    final double d = toNumber(arg);
+                    if (Double.isNaN(d))
+                        return NAN;
+                    result = "min".equals(fn) ? Math.min(result, d) : Math.max(result, d);
+                }
+                return number(result);
+        }
+    }
+
+    private static Double parseInt(final String value, final Object radixArg) {
+
+        String s     = value.trim();
+        int    radix = radixArg == UNDEFINED ? 10 : toInt32(radixArg);
+        int    sign  = 1;
+
+        if (s.startsWith("-") || s.startsWith("+")) {
+            sign = s.charAt(0) == '-' ? -1 : 1;
+            s = s.substring(1);
+        }
+
+        if ((radix == 0 || radix == 16) && (s.startsWith("0x") || s.startsWith("0X"))) {
+            s = s.substring(2);
+            radix = 16;
+        }
+
+        if (radix == 0)
+            radix = 10;
+
+        if (radix < 2 || radix > 36)
+            return NAN;
+
+        int end = 0;
+        while (end < s.length() && Character.digit(s.charAt(end), radix) >= 0)
+            end++;
+
+        if (end == 0)
+            return NAN;
+
+        double result = 0;
+        for (int i = 0; i < end; i++)
+            result = result * radix + Character.digit(s.charAt(i), radix);
+
+        return number(sign * result);
+    }
+
+    private static Double parseFloat(final String value) {
+
+        final Matcher m = Pattern
+                .compile("^[+-]?(Infinity|(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?)")
+                .matcher(value.trim());
+
+        if (!m.find())
+            return NAN;
+
+        return number(toNumber(m.group()));
+    }
+
+}
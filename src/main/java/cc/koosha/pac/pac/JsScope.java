@@ -0,0 +1,121 @@
+package cc.koosha.pac.pac;
+
+import java.util.HashMap;
+
+
+/**
+ * Variables of a function call, or of the global scope, in a script run by
+ * {@link BuiltinPacScriptParser}.
+ * <p>
+ * The scopes of a loaded script are frozen once loaded, so that concurrent
+ * evaluations never write to them: each evaluation gets its own global scope
+ * on top of the loaded one, which receives all writes to global variables.
+ * Freezing does not extend to the objects and arrays the variables refer
+ * to, see {@link BuiltinPacScriptParser} for how scripts modifying those
+ * are run.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class JsScope {
+
+    /**
+     * Returned by {@link #find(String)} if the variable is not declared.
+     */
+    static final Object MISSING = new Object();
+
+    final JsScope                 parent;
+    final JsScope                 global;
+    final HashMap<String, Object> vars;
+
+    private boolean frozen = false;
+
+    // Set by return statements.
+    Object returnValue = JsRuntime.UNDEFINED;
+
+    private JsScope(final JsScope parent,
+                    final JsScope global,
+                    final HashMap<String, Object> vars) {
+
+        this.parent = parent;
+        this.global = global == null ? this : global;
+        this.vars = vars;
+    }
+
+    /**
+     * Creates a new global scope.
+     *
+     * @param parent the loaded scopes the new global scope sits on, may be
+     *               null.
+     */
+    static JsScope global(final JsScope parent) {
+
+        return new JsScope(parent, null, new HashMap<String, Object>());
+    }
+
+    /**
+     * Creates the scope of a function call.
+     *
+     * @param parent the scope the function was defined in.
+     * @param global the global scope of the calling evaluation.
+     */
+    static JsScope function(final JsScope parent, final JsScope global) {
+
+        return new JsScope(parent, global, new HashMap<String, Object>(8));
+    }
+
+    boolean isGlobal() {
+
+        return this.global == this;
+    }
+
+    void freeze() {
+
+        this.frozen = true;
+    }
+
+    void declare(final String name) {
+
+        if (!this.vars.containsKey(name))
+            this.vars.put(name, JsRuntime.UNDEFINED);
+    }
+
+    void define(final String name, final Object value) {
+
+        this.vars.put(name, value);
+    }
+
+    Object find(final String name) {
+
+        for (JsScope s = this; s != null; s = s.parent) {
+            final Object value = s.vars.get(name);
+            if (value != null || s.vars.containsKey(name))
+                return value;
+        }
+
+        return MISSING;
+    }
+
+    Object lookup(final String name) {
+
+        final Object value = this.find(name);
+        if (value == MISSING)
+            throw new JsException("ReferenceError: " + name + " is not defined");
+
+        return value;
+    }
+
+    void assign(final String name, final Object value) {
+
+        for (JsScope s = this; s != null; s = s.parent)
+            if (s.vars.containsKey(name)) {
+                if (s.frozen)
+                    break;
+                s.vars.put(name, value);
+                return;
+            }
+
+        // Undeclared, or declared in a frozen (loaded) scope.
+        this.global.vars.put(name, value);
+    }
+
+}
@@ -0,0 +1,264 @@
+package cc.koosha.pac.pac;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Addresses of the local network interfaces, as answered to
+ * <code>myIpAddress()</code> and <code>myIpAddressEx()</code>, kept so that
+ * a script asking on every evaluation does not enumerate the interfaces
+ * each time.
+ * <p>
+ * The interfaces which are up, and neither loopback nor virtual, are
+ * enumerated once, along with the {@link NetRequest#OVERRIDE_LOCAL_IP}
+ * system property which takes precedence over them. A background check
+ * enumerates them again periodically and replaces what is kept if anything
+ * changed, so answering is a volatile read. Environments which know when
+ * the network changed can {@link #invalidate()} instead of waiting for the
+ * check.
+ * <p>
+ * The check does not keep an instance from being collected, it stops once
+ * the instance is.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class LocalAddresses {
+
+    /**
+     * Period of the background check of the shared instance, in
+     * milliseconds.
+     */
+    public static final long CHECK_PERIOD = 5 * 1000;
+
+    private static final class Shared {
+
+        static final LocalAddresses INSTANCE = new LocalAddresses(CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private static final ScheduledThreadPoolExecutor CHECKER = checker();
+
+    private static ScheduledThreadPoolExecutor checker() {
+
+        final ScheduledThreadPoolExecutor checker =
+                new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("pac-local-addresses"));
+
+        // Checks of collected instances are dropped at once.
+        checker.setRemoveOnCancelPolicy(true);
+        return checker;
+    }
+
+    /**
+     * The background check of an instance, cancelling itself once the
+     * instance is collected.
+     */
+    private static final class Check implements Runnable {
+
+        private final WeakReference<LocalAddresses> local;
+
+        volatile ScheduledFuture<?> future;
+
+        Check(final LocalAddresses local) {
+
+            this.local = new WeakReference<>(local);
+        }
+
+        @Override
+        public void run() {
+
+            final LocalAddresses local = this.local.get();
+
+            if (local != null)
+                local.check();
+            else if (this.future != null)
+                this.future.cancel(false);
+        }
+    }
+
+    /**
+     * The local addresses at some instant, comparable to detect changes.
+     */
+    private static final class Snapshot {
+
+        final String        override;
+        final InetAddress[] addresses;
+        final String        ipv4;
+        final String        ipv6;
+
+        private Snapshot(final String override, final InetAddress[] addresses) {
+
+            this.override = override;
+            this.addresses = addresses;
+            this.ipv4 = this.first(Inet4Address.class);
+            this.ipv6 = this.first(Inet6Address.class);
+        }
+
+        static Snapshot take() {
+
+            final String property = System.getProperty(NetRequest.OVERRIDE_LOCAL_IP);
+            final String override = property != null && !property.trim().isEmpty()
+                                    ? property
+                                    : null;
+
+            final List<InetAddress> addresses = new ArrayList<>();
+            try {
+                final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                while (interfaces != null && interfaces.hasMoreElements()) {
+                    final NetworkInterface current = interfaces.nextElement();
+                    if (!current.isUp() || current.isLoopback() || current.isVirtual())
+                        continue;
+                    final Enumeration<InetAddress> inetAddresses = current.getInetAddresses();
+                    while (inetAddresses.hasMoreElements())
+                        addresses.add(inetAddresses.nextElement());
+                }
+            }
+            catch (final IOException e) {
+                addresses.clear();
+            }
+
+            return new Snapshot(override, addresses.toArray(new InetAddress[0]));
+        }
+
+        String get(final Class<? extends InetAddress> cl) {
+
+            if (this.override != null)
+                return this.override;
+            if (cl == Inet4Address.class)
+                return this.ipv4;
+            if (cl == Inet6Address.class)
+                return this.ipv6;
+            return this.first(cl);
+        }
+
+        private String first(final Class<? extends InetAddress> cl) {
+
+            for (final InetAddress address : this.addresses)
+                if (cl.isInstance(address))
+                    return address.getHostAddress();
+            return "";
+        }
+
+        boolean sameAs(final Snapshot other) {
+
+            return (this.override == null ? other.override == null : this.override.equals(other.override))
+                    && Arrays.equals(this.addresses, other.addresses);
+        }
+    }
+
+    private final long checkPeriodNanos;
+
+    private volatile Snapshot           snapshot;
+    private volatile ScheduledFuture<?> check;
+
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param checkPeriod how often to check for changes in the background.
+     * @param unit        unit of checkPeriod.
+     */
+    public LocalAddresses(final long checkPeriod, final TimeUnit unit) {
+
+        if (unit == null)
+            throw new NullPointerException("unit");
+
+        if (checkPeriod < 1)
+            throw new IllegalStateException("checkPeriod must be >= 1: " + checkPeriod);
+
+        this.checkPeriodNanos = unit.toNanos(checkPeriod);
+    }
+
+    /**
+     * The instance shared by all {@link DefaultNetRequest}s created without
+     * one of their own, checking every {@link #CHECK_PERIOD} milliseconds.
+     *
+     * @return the shared instance.
+     */
+    public static LocalAddresses shared() {
+
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * @see NetRequest#getLocalAddressOfType(Class)
+     */
+    public String get(final Class<? extends InetAddress> cl) {
+
+        final Snapshot snapshot = this.snapshot;
+        return snapshot != null
+               ? snapshot.get(cl)
+               : this.load().get(cl);
+    }
+
+    /**
+     * Drops what is kept, the addresses are enumerated again on next use.
+     */
+    public void invalidate() {
+
+        this.snapshot = null;
+    }
+
+    /**
+     * Number of changes found by the background check.
+     */
+    public long changes() {
+
+        return this.changes.get();
+    }
+
+    /**
+     * Stops the background check, addresses are still enumerated on first
+     * use and after {@link #invalidate()}.
+     */
+    public synchronized void shutdown() {
+
+        if (this.check != null)
+            this.check.cancel(false);
+    }
+
+    private synchronized Snapshot load() {
+
+        Snapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot;
+
+        snapshot = Snapshot.take();
+        this.snapshot = snapshot;
+
+        if (this.check == null) {
+            final Check check = new Check(this);
+            check.future = CHECKER.scheduleWithFixedDelay(
+                    check, this.checkPeriodNanos, this.checkPeriodNanos, TimeUnit.NANOSECONDS);
+            this.check = check.future;
+        }
+
+        return snapshot;
+    }
+
+    private void check() {
+
+        // Nothing to compare with, enumerated on next use anyway.
+        if (this.snapshot == null)
+            return;
+
+        final Snapshot current = Snapshot.take();
+
+        synchronized (this) {
+            final Snapshot kept = this.snapshot;
+            if (kept != null && !kept.sameAs(current)) {
+                this.snapshot = current;
+                this.changes.incrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package cc.koosha.pac.pac;
+
+import java.net.InetAddress;
+
+
+/**
+ * Memoizes the lookups of a {@link NetRequest} for the duration of the
+ * current {@link EvaluationContext}, so that a script asking about the same
+ * host many times, typically through <code>isInNet</code>, resolves it once
+ * per evaluation. Outside of any context, calls go straight to the
+ * delegate.
+ * <p>
+ * A host is resolved once, through the delegate's
+ * {@link NetRequest#tryGetAllByName(String)}, and the result serves all four
+ * lookup methods, so that <code>isResolvable(host)</code> followed by
+ * <code>dnsResolve(host)</code> is a single lookup too.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class MemoizingNetRequest implements NetRequest {
+
+    private final NetRequest delegate;
+
+    MemoizingNetRequest(final NetRequest delegate) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+
+        this.delegate = delegate;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0];
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? defaultValue : addresses[0].getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses[0].getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final InetAddress[] addresses = this.resolve(host);
+        return addresses == null ? null : addresses.clone();
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.delegate.getLocalAddressOfType(cl);
+    }
+
+    /**
+     * @return the addresses of the host, never empty, or null if it does not
+     * resolve. Shared by the whole evaluation, not to be modified.
+     */
+    private InetAddress[] resolve(final String host) {
+
+        final EvaluationContext context = EvaluationContext.current();
+        if (context == null)
+            return nonEmpty(this.delegate.tryGetAllByName(host));
+
+        final String key   = "tryGetAllByName\0" + host;
+        final Object value = context.memo(key);
+        if (value != EvaluationContext.MISSING)
+            return (InetAddress[]) value;
+
+        final InetAddress[] addresses = nonEmpty(this.delegate.tryGetAllByName(host));
+        context.memo(key, addresses);
+        return addresses;
+    }
+
+    private static InetAddress[] nonEmpty(final InetAddress[] addresses) {
+
+        return addresses == null || addresses.length == 0 ? null : addresses;
+    }
+
+}
@@ -0,0 +1,369 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.pac.JsNode.*;
+
+import java.util.*;
+
+
+/**
+ * What the decision of a PAC script depends on, found by static analysis of
+ * its source: whether <code>FindProxyForURL</code> reads its url argument,
+ * and whether the script calls DNS, local address or time functions.
+ * <p>
+ * The analysis over-approximates: a script is reported to depend on
+ * something if any code path might. Scripts which can not be analyzed, as
+ * they use syntax outside what {@link BuiltinPacScriptParser} supports or
+ * call <code>eval</code>, are reported {@link #isOpaque() opaque}. Scripts
+ * which may modify global state from within functions, for example
+ * counters or memo tables, are reported {@link #isStateful() stateful}:
+ * any write to a variable not local to the function, and any member
+ * assignment or mutating method call on an object the function did not
+ * create itself (so possibly shared, even through a parameter or a local
+ * alias), as well as any call of a computed member, <code>call</code> or
+ * <code>apply</code>. Nothing can be concluded from the other flags in
+ * either case.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class PacScriptAnalysis {
+
+    private static final Set<String> DNS_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "isInNet", "isInNetEx", "isResolvable", "isResolvableEx", "dnsResolve", "dnsResolveEx"
+    ));
+
+    private static final Set<String> LOCAL_ADDRESS_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "myIpAddress", "myIpAddressEx"
+    ));
+
+    private static final Set<String> TIME_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "timeRange", "dateRange", "weekdayRange"
+    ));
+
+    private static final Set<String> OPAQUE_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "eval", "Function"
+    ));
+
+    private static final Set<String> MUTATING_METHODS = new HashSet<>(Arrays.asList(
+            "push", "pop", "shift", "unshift", "splice", "sort", "reverse", "call", "apply"
+    ));
+
+    private static final PacScriptAnalysis OPAQUE = new PacScriptAnalysis(true);
+
+    private boolean opaque;
+    private boolean stateful;
+    private boolean readsUrl;
+    private boolean usesDns;
+    private boolean usesLocalAddress;
+    private boolean usesTime;
+    private boolean usesDate;
+
+    private PacScriptAnalysis(final boolean opaque) {
+
+        this.opaque = opaque;
+    }
+
+    /**
+     * Analyzes a PAC script.
+     *
+     * @param script source of the script.
+     *
+     * @return the analysis, opaque if the script could not be parsed.
+     */
+    public static PacScriptAnalysis analyze(final String script) {
+
+        if (script == null)
+            throw new NullPointerException("script");
+
+        final FunctionDef program;
+        try {
+            program = JsParser.parse(script);
+        }
+        catch (final JsException e) {
+            return OPAQUE;
+        }
+
+        return analyze(program);
+    }
+
+    static PacScriptAnalysis analyze(final FunctionDef program) {
+
+        FunctionDef find = null;
+        for (final FunctionDef function : program.functions)
+            if (JavaxPacScriptParser.FIND_PROXY_FOR_URL.equals(function.name))
+                find = function;
+
+        // Defined some other way, such as by assigning a function expression.
+        if (find == null)
+            return OPAQUE;
+
+        final PacScriptAnalysis analysis = new PacScriptAnalysis(false);
+        final String            url      = find.params.length > 0 ? find.params[0] : null;
+
+        for (final Stmt stmt : program.body)
+            analysis.walk(stmt, null, null, null, find, url, false);
+
+        return analysis;
+    }
+
+    /**
+     * @param node   node to walk.
+     * @param locals names local to the enclosing functions, null at the top
+     *               level.
+     * @param own    names local to the innermost enclosing function.
+     * @param fresh  names of the innermost enclosing function only ever
+     *               holding values it created, see {@link #fresh(FunctionDef)}.
+     * @param find   definition of FindProxyForURL.
+     * @param url    name of the url parameter of FindProxyForURL, when
+     *               walking inside it.
+     */
+    private void walk(final JsNode node,
+                      final Set<String> locals,
+                      final Set<String> own,
+                      final Set<String> fresh,
+                      final FunctionDef find,
+                      final String url,
+                      final boolean inFind) {
+
+        if (node instanceof JsNode.Function || node instanceof FunctionDecl) {
+            final FunctionDef def = node instanceof JsNode.Function
+                                    ? ((JsNode.Function) node).def
+                                    : ((FunctionDecl) node).def;
+
+            final Set<String> names = new HashSet<>();
+            Collections.addAll(names, def.params);
+            names.addAll(def.vars);
+            for (final FunctionDef function : def.functions)
+                names.add(function.name);
+            if (def.name != null && node instanceof JsNode.Function)
+                names.add(def.name);
+
+            final Set<String> inner = locals == null ? new HashSet<String>() : new HashSet<>(locals);
+            inner.addAll(names);
+
+            final boolean nowInFind = inFind || def == find;
+            if (def == find && def.usesArguments)
+                this.readsUrl = true;
+
+            final Set<String> innerFresh = fresh(def);
+            for (final Stmt stmt : def.body)
+                this.walk(stmt, inner, names, innerFresh, find, url, nowInFind);
+
+            return;
+        }
+
+        if (node instanceof Ident) {
+            final String name = ((Ident) node).name;
+
+            if (DNS_FUNCTIONS.contains(name))
+                this.usesDns = true;
+            else if (LOCAL_ADDRESS_FUNCTIONS.contains(name))
+                this.usesLocalAddress = true;
+            else if (TIME_FUNCTIONS.contains(name))
+                this.usesTime = true;
+            else if (name.equals("Date"))
+                this.usesTime = this.usesDate = true;
+            else if (OPAQUE_FUNCTIONS.contains(name) && (locals == null || !locals.contains(name)))
+                this.opaque = true;
+            else if (inFind && name.equals(url))
+                this.readsUrl = true;
+        }
+
+        // Writes to global state made while evaluating, not while loading.
+        if (locals != null) {
+            if (node instanceof Assign && !isLocal(((Assign) node).target, own, fresh))
+                this.stateful = true;
+
+            if (node instanceof ForIn && !isLocal(((ForIn) node).target, own, fresh))
+                this.stateful = true;
+
+            if (node instanceof Call) {
+                final Expr callee = ((Call) node).callee;
+                if (callee instanceof Index)
+                    this.stateful = true;
+                else if (callee instanceof Member
+                        && MUTATING_METHODS.contains(((Member) callee).name)
+                        && !isCreated(((Member) callee).object, fresh))
+                    this.stateful = true;
+            }
+        }
+
+        final List<JsNode> children = new ArrayList<>();
+        node.children(children);
+        for (final JsNode child : children)
+            this.walk(child, locals, own, fresh, find, url, inFind);
+    }
+
+    /**
+     * Whether writing to the given assignment target leaves global state
+     * as is: it is a variable of the function, or a member of an object the
+     * function created.
+     */
+    private static boolean isLocal(final Expr target,
+                                   final Set<String> own,
+                                   final Set<String> fresh) {
+
+        if (target instanceof Ident)
+            return own.contains(((Ident) target).name);
+        if (target instanceof Member)
+            return isCreated(((Member) target).object, fresh);
+        if (target instanceof Index)
+            return isCreated(((Index) target).object, fresh);
+
+        return false;
+    }
+
+    /**
+     * Whether the expression is an object the function created: a literal,
+     * or one of its variables only ever holding such objects. Members of
+     * those may still be shared.
+     */
+    private static boolean isCreated(final Expr expr, final Set<String> fresh) {
+
+        if (expr instanceof ArrayLiteral || expr instanceof ObjectLiteral || expr instanceof New)
+            return true;
+
+        return expr instanceof Ident && fresh.contains(((Ident) expr).name);
+    }
+
+    /**
+     * The variables of a function only ever assigned values it created
+     * (literals, array and object literals, new objects, results of
+     * operators), never a parameter, another variable, a member or the
+     * result of a call, which may be shared.
+     */
+    private static Set<String> fresh(final FunctionDef def) {
+
+        final Set<String> fresh = new HashSet<>(def.vars);
+        for (final String param : def.params)
+            fresh.remove(param);
+
+        for (final Stmt stmt : def.body)
+            assigned(stmt, fresh);
+
+        return fresh;
+    }
+
+    private static void assigned(final JsNode node, final Set<String> fresh) {
+
+        // Own variables of nested functions are not the function's.
+        if (node instanceof JsNode.Function || node instanceof FunctionDecl)
+            return;
+
+        if (node instanceof Var) {
+            final Var var = (Var) node;
+            for (int i = 0; i < var.names.length; i++)
+                if (var.inits[i] != null && !isCreatedValue(var.inits[i]))
+                    fresh.remove(var.names[i]);
+        }
+
+        if (node instanceof Assign) {
+            final Assign assign = (Assign) node;
+            // Compound assignments and updates result in primitives.
+            if (assign.target instanceof Ident && assign.op == null && !isCreatedValue(assign.value))
+                fresh.remove(((Ident) assign.target).name);
+        }
+
+        final List<JsNode> children = new ArrayList<>();
+        node.children(children);
+        for (final JsNode child : children)
+            assigned(child, fresh);
+    }
+
+    private static boolean isCreatedValue(final Expr value) {
+
+        return value instanceof Literal
+                || value instanceof ArrayLiteral
+                || value instanceof ObjectLiteral
+                || value instanceof New
+                || value instanceof Binary
+                || value instanceof Unary;
+    }
+
+    /**
+     * Whether nothing can be concluded about the script: it could not be
+     * parsed, does not declare FindProxyForURL as a function or calls eval.
+     */
+    public boolean isOpaque() {
+
+        return this.opaque;
+    }
+
+    /**
+     * Whether the script modifies global variables (or objects they refer
+     * to) while evaluating, so its decisions may depend on earlier ones.
+     */
+    public boolean isStateful() {
+
+        return this.stateful;
+    }
+
+    /**
+     * Whether FindProxyForURL reads its url argument (and not only host).
+     */
+    public boolean readsUrl() {
+
+        return this.readsUrl;
+    }
+
+    /**
+     * Whether the script resolves host names: isInNet, dnsResolve,
+     * isResolvable and their Ex variants.
+     */
+    public boolean usesDns() {
+
+        return this.usesDns;
+    }
+
+    /**
+     * Whether the script reads the local address: myIpAddress and
+     * myIpAddressEx.
+     */
+    public boolean usesLocalAddress() {
+
+        return this.usesLocalAddress;
+    }
+
+    /**
+     * Whether the script depends on current time: timeRange, dateRange,
+     * weekdayRange or Date.
+     */
+    public boolean usesTime() {
+
+        return this.usesTime;
+    }
+
+    /**
+     * Whether the script reads the clock through Date (then
+     * {@link #usesTime()} is true too), unlike the time functions it does not
+     * tell when its answer would change.
+     */
+    public boolean usesDate() {
+
+        return this.usesDate;
+    }
+
+    /**
+     * Whether the decision of the script depends on host alone (given the
+     * state of DNS, local address and time): it is not opaque, not stateful
+     * and does not read the url.
+     */
+    public boolean isHostOnly() {
+
+        return !this.opaque && !this.stateful && !this.readsUrl;
+    }
+
+    @Override
+    public String toString() {
+
+        return "PacScriptAnalysis{" +
+                "opaque=" + this.opaque +
+                ", stateful=" + this.stateful +
+                ", readsUrl=" + this.readsUrl +
+                ", usesDns=" + this.usesDns +
+                ", usesLocalAddress=" + this.usesLocalAddress +
+                ", usesTime=" + this.usesTime +
+                ", usesDate=" + this.usesDate +
+                '}';
+    }
+
+}
@@ -0,0 +1,146 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+
+import javax.script.ScriptEngineManager;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * PAC parser which can be safely shared among threads.
+ * <p>
+ * javax.script engines are not safe for concurrent evaluation, so instead of
+ * serializing every caller on a single engine, this parser keeps a bounded
+ * pool of fully initialized parsers (each one owning its own engine, with the
+ * {@link ScriptMethods} installed) and hands one out per evaluation. Parsers
+ * are created lazily, up to the pool size; when all of them are busy the
+ * caller waits for one to be returned, or for a failed creation to free its
+ * place.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class PooledPacScriptParser implements PacScriptParser {
+
+    /**
+     * Creates the pooled parsers, each call must return a new instance which
+     * shares no engine with the previously created ones.
+     */
+    public interface ParserFactory {
+
+        PacScriptParser create() throws ProxyEvaluationException;
+
+    }
+
+    private final ParserFactory                  factory;
+    private final BlockingQueue<PacScriptParser> idle;
+    private final AtomicInteger                  created = new AtomicInteger();
+    private final Semaphore                      permits;
+
+    /**
+     * Pools {@link JavaxPacScriptParser}s in compiled mode, each one using a
+     * new instance of the JVM's bundled JavaScript engine.
+     *
+     * @param scriptSource the pac script source.
+     * @param netRequest   the net request to use in all pooled parsers.
+     * @param maxSize      max number of parsers (engines) in the pool.
+     */
+    public PooledPacScriptParser(final StringProvider scriptSource,
+                                 final NetRequest netRequest,
+                                 final int maxSize) {
+
+        this(new ParserFactory() {
+            @Override
+            public PacScriptParser create() throws ProxyEvaluationException {
+                return new JavaxPacScriptParser(
+                        scriptSource,
+                        new ScriptEngineManager().getEngineByMimeType("text/javascript"),
+                        netRequest,
+                        JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED
+                );
+            }
+        }, maxSize);
+    }
+
+    /**
+     * @param factory creates the pooled parsers.
+     * @param maxSize max number of parsers in the pool.
+     */
+    public PooledPacScriptParser(final ParserFactory factory,
+                                 final int maxSize) {
+
+        if (factory == null)
+            throw new NullPointerException("factory");
+
+        if (maxSize < 1)
+            throw new IllegalStateException("maxSize must be >= 1: " + maxSize);
+
+        this.factory = factory;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        this.permits = new Semaphore(maxSize);
+    }
+
+    @Override
+    public String evaluate(final String url,
+                           final String host) throws ProxyEvaluationException {
+
+        try {
+            this.permits.acquire();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProxyEvaluationException(e);
+        }
+
+        // Holding a permit, either a parser is idle or there is room to
+        // create one: there are never more holders than parsers can be.
+        PacScriptParser parser = null;
+        try {
+            parser = this.idle.poll();
+            if (parser == null)
+                parser = this.create();
+
+            return parser.evaluate(url, host);
+        }
+        finally {
+            if (parser != null)
+                this.idle.offer(parser);
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Number of parsers created so far, never more than the pool size.
+     *
+     * @return number of parsers created.
+     */
+    public int size() {
+
+        return this.created.get();
+    }
+
+    /**
+     * Creates a parser, its place in the pool freed again by the caller's
+     * permit if it fails.
+     */
+    private PacScriptParser create() throws ProxyEvaluationException {
+
+        final PacScriptParser parser;
+        try {
+            parser = this.factory.create();
+        }
+        catch (final RuntimeException e) {
+            throw new ProxyEvaluationException(e);
+        }
+
+        if (parser == null)
+            throw new ProxyEvaluationException("factory returned null parser");
+
+        this.created.incrementAndGet();
+        return parser;
+    }
+
+}
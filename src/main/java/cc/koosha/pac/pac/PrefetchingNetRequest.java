@@ -0,0 +1,218 @@
+package cc.koosha.pac.pac;
+
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Makes any {@link NetRequest} an {@link AsyncNetRequest}: a host is
+ * resolved through the delegate's {@link NetRequest#tryGetAllByName(String)}
+ * on a background executor, and lookups of the host made meanwhile wait for
+ * that resolution and answer from it.
+ * <p>
+ * Nothing is kept once the resolution completes, a lookup made after that
+ * goes to the delegate again. The delegate should therefore cache, such as
+ * a {@link CachingNetRequest}, for a prefetch which completed before the
+ * script got to ask about the host to be of use.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class PrefetchingNetRequest implements AsyncNetRequest {
+
+    /**
+     * Max number of resolutions running at once by default.
+     */
+    public static final int DEFAULT_MAX_THREADS = 16;
+
+    /**
+     * A resolution in flight, forgotten once done.
+     */
+    private final class Prefetch extends FutureTask<InetAddress[]> {
+
+        private final String host;
+
+        Prefetch(final String host) {
+
+            super(new Callable<InetAddress[]>() {
+                @Override
+                public InetAddress[] call() {
+
+                    return PrefetchingNetRequest.this.delegate.tryGetAllByName(host);
+                }
+            });
+
+            this.host = host;
+        }
+
+        @Override
+        protected void done() {
+
+            PrefetchingNetRequest.this.inFlight.remove(this.host, this);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Prefetch> inFlight = new ConcurrentHashMap<>();
+
+    private final NetRequest      delegate;
+    private final ExecutorService executor;
+
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong joined     = new AtomicLong();
+
+    /**
+     * Resolves on at most {@link #DEFAULT_MAX_THREADS} daemon threads,
+     * without a queue: once all are busy, lookups are rejected, as a
+     * prefetch is only a hint.
+     *
+     * @param delegate the resolver to prefetch through.
+     */
+    public PrefetchingNetRequest(final NetRequest delegate) {
+
+        this(delegate, new ThreadPoolExecutor(
+                0, DEFAULT_MAX_THREADS,
+                60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new DaemonThreadFactory("pac-dns-prefetch")));
+    }
+
+    /**
+     * @param delegate the resolver to prefetch through.
+     * @param executor runs the resolutions, should be bounded.
+     */
+    public PrefetchingNetRequest(final NetRequest delegate,
+                                 final ExecutorService executor) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+        if (executor == null)
+            throw new NullPointerException("executor");
+
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public Future<InetAddress[]> lookup(final String host) {
+
+        if (host == null)
+            throw new NullPointerException("host");
+
+        final Prefetch prefetch = new Prefetch(host);
+        final Prefetch running  = this.inFlight.putIfAbsent(host, prefetch);
+        if (running != null)
+            return running;
+
+        try {
+            this.executor.execute(prefetch);
+        }
+        catch (final RejectedExecutionException e) {
+            this.inFlight.remove(host, prefetch);
+            throw e;
+        }
+
+        this.prefetches.incrementAndGet();
+        return prefetch;
+    }
+
+    @Override
+    public InetAddress tryGet(final String host) {
+
+        final Prefetch prefetch = this.prefetchOf(host);
+        if (prefetch == null)
+            return this.delegate.tryGet(host);
+
+        final InetAddress[] addresses = this.join(prefetch);
+        return addresses == null || addresses.length == 0 ? null : addresses[0];
+    }
+
+    @Override
+    public String dnsResolve(final String host, final String defaultValue) {
+
+        final Prefetch prefetch = this.prefetchOf(host);
+        if (prefetch == null)
+            return this.delegate.dnsResolve(host, defaultValue);
+
+        final InetAddress[] addresses = this.join(prefetch);
+        return addresses == null || addresses.length == 0
+               ? defaultValue
+               : addresses[0].getHostAddress();
+    }
+
+    @Override
+    public byte[] tryGetAddress(final String host) {
+
+        final Prefetch prefetch = this.prefetchOf(host);
+        if (prefetch == null)
+            return this.delegate.tryGetAddress(host);
+
+        final InetAddress[] addresses = this.join(prefetch);
+        return addresses == null || addresses.length == 0 ? null : addresses[0].getAddress();
+    }
+
+    @Override
+    public InetAddress[] tryGetAllByName(final String host) {
+
+        final Prefetch prefetch = this.prefetchOf(host);
+        if (prefetch == null)
+            return this.delegate.tryGetAllByName(host);
+
+        final InetAddress[] addresses = this.join(prefetch);
+        return addresses == null ? null : addresses.clone();
+    }
+
+    @Override
+    public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+        return this.delegate.getLocalAddressOfType(cl);
+    }
+
+    private Prefetch prefetchOf(final String host) {
+
+        return host == null ? null : this.inFlight.get(host);
+    }
+
+    /**
+     * Waits for a prefetch, resolving directly if it failed.
+     */
+    private InetAddress[] join(final Prefetch prefetch) {
+
+        this.joined.incrementAndGet();
+
+        try {
+            return prefetch.get();
+        }
+        catch (final ExecutionException e) {
+            return this.delegate.tryGetAllByName(prefetch.host);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Number of resolutions started ahead.
+     */
+    public long prefetches() {
+
+        return this.prefetches.get();
+    }
+
+    /**
+     * Number of lookups which waited for a resolution started ahead.
+     */
+    public long joined() {
+
+        return this.joined.get();
+    }
+
+    /**
+     * Stops the executor, abandoning running resolutions.
+     */
+    public void shutdown() {
+
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,203 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Protects a {@link PacScriptParser} from overload, by bounding how many
+ * evaluations run at once, how many callers may wait for a turn and for how
+ * long.
+ * <p>
+ * A caller which can not get a turn, because the wait queue is full or its
+ * wait timed out, is shed: it gets the last result evaluated for the same
+ * host if there is one, the fallback result otherwise, or a
+ * {@link ProxyEvaluationException} if there is no fallback either. Stale
+ * results are kept for about a bounded number of hosts, an arbitrary one
+ * evicted for each new host once full, without a lock: recording a result
+ * is a lookup, and a write only when it changed.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class SheddingPacScriptParser implements PacScriptParser {
+
+    private final PacScriptParser delegate;
+    private final Semaphore       permits;
+    private final int             maxQueue;
+    private final long            maxWaitNanos;
+    private final String          fallback;
+
+    private final int                               maxHosts;
+    private final ConcurrentHashMap<String, String> lastResults = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queueDepth     = new AtomicInteger();
+    private final AtomicLong    evaluations    = new AtomicLong();
+    private final AtomicLong    shedToStale    = new AtomicLong();
+    private final AtomicLong    shedToFallback = new AtomicLong();
+
+    /**
+     * @param delegate      the parser to protect.
+     * @param maxConcurrent max number of evaluations running at once.
+     * @param maxQueue      max number of callers waiting for a turn, 0 to
+     *                      shed whenever all turns are taken.
+     * @param maxWait       max time a caller waits for a turn.
+     * @param unit          unit of maxWait.
+     * @param fallback      result for shed callers with no last known
+     *                      result, in the PAC result format (such as
+     *                      "DIRECT"), may be null.
+     * @param maxHosts      max number of hosts to keep the last result of,
+     *                      0 to always shed to the fallback.
+     */
+    public SheddingPacScriptParser(final PacScriptParser delegate,
+                                   final int maxConcurrent,
+                                   final int maxQueue,
+                                   final long maxWait,
+                                   final TimeUnit unit,
+                                   final String fallback,
+                                   final int maxHosts) {
+
+        if (delegate == null)
+            throw new NullPointerException("delegate");
+        if (unit == null)
+            throw new NullPointerException("unit");
+
+        if (maxConcurrent < 1)
+            throw new IllegalStateException("maxConcurrent must be >= 1: " + maxConcurrent);
+        if (maxQueue < 0)
+            throw new IllegalStateException("maxQueue must be >= 0: " + maxQueue);
+        if (maxWait < 0)
+            throw new IllegalStateException("maxWait must be >= 0: " + maxWait);
+        if (maxHosts < 0)
+            throw new IllegalStateException("maxHosts must be >= 0: " + maxHosts);
+
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.fallback = fallback;
+        this.maxHosts = maxHosts;
+    }
+
+    @Override
+    public String evaluate(final String url,
+                           final String host) throws ProxyEvaluationException {
+
+        if (!this.permits.tryAcquire() && !this.await())
+            return this.shed(host);
+
+        try {
+            this.evaluations.incrementAndGet();
+            final String result = this.delegate.evaluate(url, host);
+
+            if (host != null && result != null)
+                this.remember(host, result);
+
+            return result;
+        }
+        finally {
+            this.permits.release();
+        }
+    }
+
+    private void remember(final String host, final String result) {
+
+        final String last = this.lastResults.get(host);
+        if (result.equals(last) || this.maxHosts == 0)
+            return;
+
+        // Approximate bound, concurrent new hosts may briefly exceed it.
+        if (last == null && this.lastResults.size() >= this.maxHosts) {
+            final Iterator<String> hosts = this.lastResults.keySet().iterator();
+            if (hosts.hasNext()) {
+                hosts.next();
+                hosts.remove();
+            }
+        }
+
+        this.lastResults.put(host, result);
+    }
+
+    /**
+     * Waits for a turn, if there is room in the queue.
+     */
+    private boolean await() throws ProxyEvaluationException {
+
+        if (this.queueDepth.incrementAndGet() > this.maxQueue) {
+            this.queueDepth.decrementAndGet();
+            return false;
+        }
+
+        try {
+            return this.permits.tryAcquire(this.maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProxyEvaluationException(e);
+        }
+        finally {
+            this.queueDepth.decrementAndGet();
+        }
+    }
+
+    private String shed(final String host) throws ProxyEvaluationException {
+
+        // Stale or not a result of the script, not to be cached.
+        EvaluationContext.expireCurrentAt(System.currentTimeMillis());
+
+        if (host != null) {
+            final String last = this.lastResults.get(host);
+
+            if (last != null) {
+                this.shedToStale.incrementAndGet();
+                return last;
+            }
+        }
+
+        this.shedToFallback.incrementAndGet();
+
+        if (this.fallback == null)
+            throw new ProxyEvaluationException("overloaded, evaluation shed: " + host);
+
+        return this.fallback;
+    }
+
+    /**
+     * Number of callers currently waiting for a turn.
+     */
+    public int queueDepth() {
+
+        return this.queueDepth.get();
+    }
+
+    /**
+     * Number of evaluations actually run by the delegate.
+     */
+    public long evaluations() {
+
+        return this.evaluations.get();
+    }
+
+    /**
+     * Number of callers shed to the last known result of their host.
+     */
+    public long shedToStale() {
+
+        return this.shedToStale.get();
+    }
+
+    /**
+     * Number of callers shed to the fallback (or to an exception, if there is
+     * no fallback).
+     */
+    public long shedToFallback() {
+
+        return this.shedToFallback.get();
+    }
+
+}
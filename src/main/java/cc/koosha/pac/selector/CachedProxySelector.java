@@ -1,16 +1,47 @@
 package cc.koosha.pac.selector;
 
+import cc.koosha.pac.pac.ClockRing;
+import cc.koosha.pac.pac.DaemonThreadFactory;
+import cc.koosha.pac.pac.EvaluationContext;
+import cc.koosha.pac.pac.PacScriptAnalysis;
+
+import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URI;
-import java.util.*;
-import java.util.Map.Entry;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Implements a cache that can be used to warp it around an existing
  * ProxySelector. You can specify a maximum cache size and a "time to live" for
  * positive resolves.
+ * <p>
+ * Hits take no lock. Once full, each new entry replaces one picked by the
+ * {@link EvictionPolicy}, preferring entries already expired.
+ * <p>
+ * Optionally, an entry hit close to its expiry is refreshed ahead in the
+ * background, so that hot keys never miss: hits keep getting the current
+ * result until the refreshed one replaces it.
+ * <p>
+ * The cache can be saved to a snapshot file and restored from it, so that a
+ * restarted JVM does not start cold, see {@link #save(File, long)}.
  *
  * @author Koosha Hosseiny, Copyright 2017
  * @author Markus Bernhardt, Copyright 2016
@@ -40,37 +71,109 @@ public final class CachedProxySelector extends DelegatingProxySelector {
         CACHE_SCOPE_URL
     }
 
-    private final HashMap<String, CacheEntry> cache = new HashMap<>();
-    private final int        bulkFree;
-    private final int        maxSize;
-    private final long       ttl;
-    private final CacheScope cacheScope;
+    /**
+     * Define the available policies picking the entry to evict once the
+     * cache is full.
+     */
+    public enum EvictionPolicy {
 
+        /**
+         * Evicts an entry not hit since the clock hand last passed it, an
+         * approximation of least recently used which evicts in amortized
+         * constant time. Hits only mark their entry.
+         */
+        EVICTION_POLICY_CLOCK,
 
-    private final Comparator<CacheEntry> cacheEntryByExpiryComparator = new Comparator<CacheEntry>() {
-        @Override
-        public int compare(final CacheEntry o1, final CacheEntry o2) {
-            if (o1.expireAt < o2.expireAt)
-                return -1;
-            else if (o1.expireAt == o2.expireAt)
-                return 0;
-            else
-                return 1;
-        }
-    };
+        /**
+         * W-TinyLFU: new entries enter a small window of least recently
+         * used entries, and leave it to the main region only if hit more
+         * often, recently, than the entry they would evict from it, as
+         * estimated by a count-min sketch. The main region is split into a
+         * probation and a protected segment, entries hit while on probation
+         * are protected. Keeps a hot set from being flushed by keys seen
+         * only once, such as hosts of a crawl, at the cost of recording
+         * hits in a buffer replayed under a lock.
+         */
+        EVICTION_POLICY_TINY_LFU
+    }
+
+    /**
+     * Max ttl of results of scripts depending on DNS or the local address,
+     * in milliseconds, same as the JVM's default positive DNS cache ttl.
+     */
+    public static final long DNS_TTL = 30 * 1000;
+
+    /**
+     * Max ttl of results of scripts reading the clock through Date, in
+     * milliseconds. Results depending on the PAC time functions expire
+     * exactly when the functions would answer differently instead, see
+     * {@link EvaluationContext}.
+     */
+    public static final long TIME_TTL = 1000;
+
+    /**
+     * Max number of distinct results shared among entries, past which the
+     * table of shared results starts over.
+     */
+    public static final int MAX_SHARED_RESULTS = 4096;
+
+    private static final int     SNAPSHOT_MAGIC   = 0x50414343;
+    private static final int     SNAPSHOT_FORMAT  = 1;
+    private static final Charset SNAPSHOT_CHARSET = Charset.forName("UTF-8");
+
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
 
-    private final static class CacheEntry {
+    // Canonical copy of each distinct result, shared by all entries with an
+    // equal one: few results are expected for many keys.
+    private final ConcurrentHashMap<List<Proxy>, List<Proxy>> results = new ConcurrentHashMap<>();
+
+    // Loads in flight, followed by concurrent misses of the same key.
+    private final ConcurrentHashMap<String, FutureTask<CacheEntry>> loading = new ConcurrentHashMap<>();
+
+    private final long           ttl;
+    private final CacheScope     cacheScope;
+    private final long           maxLoadWaitNanos;
+    private final EvictionPolicy evictionPolicy;
+    private final double         refreshAhead;
+    private final Executor       executor;
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    // Guards the policy, and the cache against concurrent inserts.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Policy        policy;
+
+    private final static class CacheEntry extends ClockRing.Node {
 
         final List<Proxy> result;
         final long        expireAt;
+        final long        refreshAt;
         final String      key;
 
-        CacheEntry(final List<Proxy> r,
+        // 1 while refreshed, updated in place to spare each entry an atomic
+        // of its own.
+        static final AtomicIntegerFieldUpdater<CacheEntry> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "refreshing");
+
+        volatile int refreshing = 0;
+
+        // Links in the TinyLFU queues, guarded by the lock.
+        AccessQueue queue = null;
+        CacheEntry  prev  = null;
+        CacheEntry  next  = null;
+
+        /**
+         * @param result a canonical result, see {@link #share(List)}.
+         */
+        CacheEntry(final List<Proxy> result,
                    final long expireAt,
+                   final long refreshAt,
                    final String key) {
 
-            this.result = Collections.unmodifiableList(new ArrayList<>(r));
+            this.result = result;
             this.expireAt = expireAt;
+            this.refreshAt = refreshAt;
             this.key = key;
         }
 
@@ -78,9 +181,23 @@ public final class CachedProxySelector extends DelegatingProxySelector {
 
             return System.nanoTime() >= this.expireAt;
         }
+
+        boolean isDueForRefresh() {
+
+            return System.nanoTime() >= this.refreshAt;
+        }
+
+        @Override
+        protected boolean isEvictable() {
+
+            return this.isExpired();
+        }
     }
 
     /**
+     * Concurrent misses of a key wait for the first one to load it, for as
+     * long as it takes.
+     *
      * @param maxSize    the max size for the cache.
      * @param ttl        the "time to live" for cache entries as amount in
      *                   milliseconds.
@@ -92,83 +209,948 @@ public final class CachedProxySelector extends DelegatingProxySelector {
                                final int maxSize,
                                final long ttl) {
 
+        this(delegate, cacheScope, maxSize, ttl, 0);
+    }
+
+    /**
+     * @param maxSize     the max size for the cache.
+     * @param ttl         the "time to live" for cache entries as amount in
+     *                    milliseconds.
+     * @param delegate    the delegate to use.
+     * @param cacheScope  the desired cache scope.
+     * @param maxLoadWait max time, in milliseconds, a miss waits for a
+     *                    concurrent miss of the same key to load it, before
+     *                    loading it on its own, 0 to wait for as long as it
+     *                    takes.
+     */
+    public CachedProxySelector(final ProxySelector delegate,
+                               final CacheScope cacheScope,
+                               final int maxSize,
+                               final long ttl,
+                               final long maxLoadWait) {
+
+        this(delegate, cacheScope, maxSize, ttl, maxLoadWait, EvictionPolicy.EVICTION_POLICY_CLOCK);
+    }
+
+    /**
+     * @param maxSize        the max size for the cache.
+     * @param ttl            the "time to live" for cache entries as amount
+     *                       in milliseconds.
+     * @param delegate       the delegate to use.
+     * @param cacheScope     the desired cache scope.
+     * @param maxLoadWait    max time, in milliseconds, a miss waits for a
+     *                       concurrent miss of the same key to load it,
+     *                       before loading it on its own, 0 to wait for as
+     *                       long as it takes.
+     * @param evictionPolicy picks the entry to evict once the cache is full.
+     */
+    public CachedProxySelector(final ProxySelector delegate,
+                               final CacheScope cacheScope,
+                               final int maxSize,
+                               final long ttl,
+                               final long maxLoadWait,
+                               final EvictionPolicy evictionPolicy) {
+
+        this(delegate, cacheScope, maxSize, ttl, maxLoadWait, evictionPolicy, 0, null);
+    }
+
+    /**
+     * Refreshes entries ahead on a single daemon thread.
+     *
+     * @param maxSize        the max size for the cache.
+     * @param ttl            the "time to live" for cache entries as amount
+     *                       in milliseconds.
+     * @param delegate       the delegate to use.
+     * @param cacheScope     the desired cache scope.
+     * @param maxLoadWait    max time, in milliseconds, a miss waits for a
+     *                       concurrent miss of the same key to load it,
+     *                       before loading it on its own, 0 to wait for as
+     *                       long as it takes.
+     * @param evictionPolicy picks the entry to evict once the cache is full.
+     * @param refreshAhead   fraction of its time to live, counted back from
+     *                       its expiry, in which a hit refreshes an entry in
+     *                       the background, such as 0.2 to refresh entries
+     *                       hit in the last fifth of their life.
+     */
+    public CachedProxySelector(final ProxySelector delegate,
+                               final CacheScope cacheScope,
+                               final int maxSize,
+                               final long ttl,
+                               final long maxLoadWait,
+                               final EvictionPolicy evictionPolicy,
+                               final double refreshAhead) {
+
+        this(delegate, cacheScope, maxSize, ttl, maxLoadWait, evictionPolicy, refreshAhead,
+                refreshAhead > 0
+                ? Executors.newSingleThreadExecutor(new DaemonThreadFactory("pac-cache-refresh"))
+                : null);
+    }
+
+    /**
+     * @param maxSize        the max size for the cache.
+     * @param ttl            the "time to live" for cache entries as amount
+     *                       in milliseconds.
+     * @param delegate       the delegate to use.
+     * @param cacheScope     the desired cache scope.
+     * @param maxLoadWait    max time, in milliseconds, a miss waits for a
+     *                       concurrent miss of the same key to load it,
+     *                       before loading it on its own, 0 to wait for as
+     *                       long as it takes.
+     * @param evictionPolicy picks the entry to evict once the cache is full.
+     * @param refreshAhead   fraction of its time to live, counted back from
+     *                       its expiry, in which a hit refreshes an entry in
+     *                       the background, 0 to never refresh ahead.
+     * @param executor       runs the refreshes, may be null if refreshAhead
+     *                       is 0.
+     */
+    public CachedProxySelector(final ProxySelector delegate,
+                               final CacheScope cacheScope,
+                               final int maxSize,
+                               final long ttl,
+                               final long maxLoadWait,
+                               final EvictionPolicy evictionPolicy,
+                               final double refreshAhead,
+                               final Executor executor) {
+
         super(delegate);
 
+        if (evictionPolicy == null)
+            throw new NullPointerException("evictionPolicy");
+
+        if (executor == null && refreshAhead > 0)
+            throw new NullPointerException("executor");
+
+        if (!(refreshAhead >= 0 && refreshAhead < 1))
+            throw new IllegalStateException("refreshAhead must be in [0, 1): " + refreshAhead);
+
         if (maxSize < 1)
             throw new IllegalStateException("maxSize must be >= 1: " + maxSize);
 
         if (ttl < 1)
             throw new IllegalStateException("ttl must be >= 1: " + ttl);
 
-        this.maxSize = maxSize;
+        if (maxLoadWait < 0)
+            throw new IllegalStateException("maxLoadWait must be >= 0: " + maxLoadWait);
+
         this.ttl = ttl;
         this.cacheScope = cacheScope;
-        this.bulkFree = maxSize <= 10 ? 1 : maxSize / 10;
+        this.maxLoadWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxLoadWait);
+        this.evictionPolicy = evictionPolicy;
+        this.refreshAhead = refreshAhead;
+        this.executor = executor;
+
+        switch (evictionPolicy) {
+            case EVICTION_POLICY_CLOCK:
+                this.policy = new ClockPolicy(maxSize);
+                break;
+
+            case EVICTION_POLICY_TINY_LFU:
+                this.policy = new TinyLfuPolicy(maxSize, this.lock);
+                break;
+
+            default:
+                throw new IllegalStateException("Unhandled EvictionPolicy enum constant: " + evictionPolicy);
+        }
     }
 
-    @Override
-    protected List<Proxy> __select(final URI uri) {
+    /**
+     * Creates a cache with the widest key the script allows, found by
+     * {@link PacScriptAnalysis}: per host if its decision does not depend on
+     * the url, per url otherwise. The ttl is capped to {@link #DNS_TTL} for
+     * scripts depending on DNS or the local address, and to
+     * {@link #TIME_TTL} for scripts using Date.
+     * <p>
+     * The analysis is of the given script only, if the script behind the
+     * delegate may change, the cache must be recreated with it.
+     *
+     * @param delegate the delegate to use, evaluating the script.
+     * @param script   source of the PAC script the delegate evaluates.
+     * @param maxSize  the max size for the cache.
+     * @param maxTtl   the max "time to live" for cache entries as amount in
+     *                 milliseconds.
+     *
+     * @return the cache.
+     */
+    public static CachedProxySelector forScript(final ProxySelector delegate,
+                                                final String script,
+                                                final int maxSize,
+                                                final long maxTtl) {
+
+        final PacScriptAnalysis analysis = PacScriptAnalysis.analyze(script);
+
+        return new CachedProxySelector(
+                delegate,
+                cacheScopeFor(analysis),
+                maxSize,
+                ttlFor(analysis, maxTtl)
+        );
+    }
 
-        final String cacheKey;
+    /**
+     * The widest cache scope for results of an analyzed script.
+     *
+     * @param analysis analysis of the script.
+     *
+     * @return the cache scope.
+     */
+    public static CacheScope cacheScopeFor(final PacScriptAnalysis analysis) {
+
+        return analysis.isHostOnly()
+               ? CacheScope.CACHE_SCOPE_HOST
+               : CacheScope.CACHE_SCOPE_URL;
+    }
+
+    /**
+     * The max ttl for results of an analyzed script. Nothing is known of
+     * opaque or stateful scripts, maxTtl is returned as is for them.
+     *
+     * @param analysis analysis of the script.
+     * @param maxTtl   the ttl wanted, in milliseconds.
+     *
+     * @return the ttl, in milliseconds.
+     */
+    public static long ttlFor(final PacScriptAnalysis analysis,
+                              final long maxTtl) {
+
+        if (analysis.isOpaque() || analysis.isStateful())
+            return maxTtl;
+
+        long ttl = maxTtl;
+        if (analysis.usesDns() || analysis.usesLocalAddress())
+            ttl = Math.min(ttl, DNS_TTL);
+        if (analysis.usesDate())
+            ttl = Math.min(ttl, TIME_TTL);
+
+        return ttl;
+    }
+
+    public CacheScope getCacheScope() {
+
+        return this.cacheScope;
+    }
+
+    public long getTtl() {
+
+        return this.ttl;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+
+        return this.evictionPolicy;
+    }
+
+    /**
+     * Number of misses which waited for a concurrent miss of the same key
+     * to load it, instead of calling the delegate.
+     */
+    public long coalesced() {
+
+        return this.coalesced.get();
+    }
+
+    /**
+     * Number of entries refreshed ahead of their expiry.
+     */
+    public long refreshes() {
+
+        return this.refreshes.get();
+    }
+
+    /**
+     * @return key of the uri in the scope, null if the uri has no host.
+     */
+    static String cacheKey(final CacheScope cacheScope, final URI uri) {
 
         switch (cacheScope) {
             case CACHE_SCOPE_HOST:
-                cacheKey = uri.getHost();
-                break;
+                return uri.getHost();
 
             case CACHE_SCOPE_HOST_PORT:
-                cacheKey = uri.getHost() + ":" + uri.getPort();
-                break;
+                return uri.getHost() == null ? null : uri.getHost() + ":" + uri.getPort();
 
             case CACHE_SCOPE_URL:
-                cacheKey = uri.toString();
-                break;
+                return uri.getHost() == null ? null : uri.toString();
 
             default:
                 throw new IllegalStateException("Unhandled CacheScope enum constant: " + cacheScope);
         }
+    }
+
+    /**
+     * @return when, in {@link System#nanoTime()}, a result selected now
+     * expires: after the ttl or when the evaluation says it does, see
+     * {@link EvaluationContext}.
+     */
+    static long expireAt(final EvaluationContext context,
+                         final long ttl,
+                         final long now) {
+
+        long expireAt = now + ttl * 1000 * 1000;
+
+        if (context.expiresAt() != Long.MAX_VALUE) {
+            final long left = context.expiresAt() - System.currentTimeMillis();
+            if (left < ttl)
+                expireAt = now + Math.max(left, 0) * 1000 * 1000;
+        }
+
+        return expireAt;
+    }
+
+    @Override
+    protected List<Proxy> __select(final URI uri) {
+
+        final String cacheKey = cacheKey(this.cacheScope, uri);
+
+        // No host, not cached, selected by the delegate.
+        if (cacheKey == null)
+            return null;
+
+        CacheEntry entry = this.cache.get(cacheKey);
+
+        if (entry != null && !entry.isExpired()) {
+            this.policy.hit(entry);
+            if (this.refreshAhead > 0 && entry.isDueForRefresh())
+                this.refresh(uri, entry);
+            return entry.result;
+        }
+
+        return this.loadOnce(uri, cacheKey).result;
+    }
+
+    /**
+     * Loads and caches the entry of a key, unless a concurrent miss is
+     * already loading it, in which case waits for that load instead, for at
+     * most the max load wait.
+     */
+    private CacheEntry loadOnce(final URI uri, final String cacheKey) {
+
+        final FutureTask<CacheEntry> task = new FutureTask<>(new Callable<CacheEntry>() {
+            @Override
+            public CacheEntry call() {
+
+                final CacheEntry entry = CachedProxySelector.this.load(uri, cacheKey);
+                CachedProxySelector.this.insert(entry);
+                return entry;
+            }
+        });
+
+        final FutureTask<CacheEntry> running = this.loading.putIfAbsent(cacheKey, task);
+
+        if (running == null) {
+            try {
+                task.run();
+            }
+            finally {
+                this.loading.remove(cacheKey, task);
+            }
+            return result(task, 0);
+        }
+
+        this.coalesced.incrementAndGet();
+        final CacheEntry entry = result(running, this.maxLoadWaitNanos);
+        if (entry != null)
+            return entry;
+
+        // Waited long enough, or was interrupted.
+        final CacheEntry own = this.load(uri, cacheKey);
+        this.insert(own);
+        return own;
+    }
+
+    /**
+     * Reloads an entry in the background, once, replacing it unless evicted
+     * or replaced meanwhile.
+     */
+    private void refresh(final URI uri, final CacheEntry current) {
+
+        if (!CacheEntry.REFRESHING.compareAndSet(current, 0, 1))
+            return;
+
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        CachedProxySelector.this.replace(current, CachedProxySelector.this.load(uri, current.key));
+                    }
+                    catch (final RuntimeException e) {
+                        // Served until it expires, a later hit tries again.
+                    }
+                    finally {
+                        current.refreshing = 0;
+                    }
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            // Let a later hit try again.
+            current.refreshing = 0;
+        }
+    }
+
+    /**
+     * Gets the entry a load resulted in, throwing what it threw.
+     *
+     * @param maxWaitNanos max time to wait, 0 to wait for as long as it
+     *                     takes.
+     *
+     * @return the entry, or null if waiting timed out or was interrupted.
+     */
+    private static CacheEntry result(final FutureTask<CacheEntry> task,
+                                     final long maxWaitNanos) {
+
+        try {
+            return maxWaitNanos == 0
+                   ? task.get()
+                   : task.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (final TimeoutException e) {
+            return null;
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Puts an entry in the place of the previous entry of its key, if it is
+     * still cached, or adds it evicting the entry the policy picks.
+     * <p>
+     * An entry already expired, such as the fallback of a shed or timed out
+     * evaluation, is not cached: it would only take the place of a live one.
+     *
+     * @return true if the entry was cached.
+     */
+    private boolean insert(final CacheEntry entry) {
+
+        if (entry.isExpired())
+            return false;
+
+        this.lock.lock();
+        try {
+            final CacheEntry evicted = this.policy.add(this.cache.get(entry.key), entry);
+
+            this.cache.put(entry.key, entry);
+            if (evicted != null)
+                this.cache.remove(evicted.key, evicted);
+
+            return true;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void replace(final CacheEntry current, final CacheEntry entry) {
+
+        this.lock.lock();
+        try {
+            if (this.cache.get(entry.key) != current)
+                return;
+
+            if (this.insert(entry))
+                this.refreshes.incrementAndGet();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the canonical copy of a result, an unmodifiable one made the
+     * first time an equal result is seen. Copying is skipped for all the
+     * others, including the canonical copy itself.
+     */
+    private List<Proxy> share(final List<Proxy> result) {
+
+        final List<Proxy> shared = this.results.get(result);
+        if (shared != null)
+            return shared;
+
+        // Entries keep their own reference, starting over only costs
+        // sharing for a while.
+        if (this.results.size() >= MAX_SHARED_RESULTS)
+            this.results.clear();
+
+        final List<Proxy> copy  = Collections.unmodifiableList(new ArrayList<>(result));
+        final List<Proxy> raced = this.results.putIfAbsent(copy, copy);
+        return raced == null ? copy : raced;
+    }
+
+    /**
+     * Selects through the delegate, the entry expires after the ttl or when
+     * the evaluation says its result does, see {@link EvaluationContext}.
+     */
+    private CacheEntry load(final URI uri, final String cacheKey) {
+
+        final EvaluationContext context = EvaluationContext.begin();
+        final List<Proxy>       result;
+        try {
+            result = this.getDelegate().select(uri);
+        }
+        finally {
+            context.end();
+        }
+
+        final long now       = System.nanoTime();
+        final long expireAt  = expireAt(context, this.ttl, now);
+        final long refreshAt = expireAt - (long) ((expireAt - now) * this.refreshAhead);
+
+        return new CacheEntry(this.share(result), expireAt, refreshAt, cacheKey);
+    }
+
+    /**
+     * Writes the entries not yet expired to a snapshot file, replacing it
+     * at once: the script version the entries were selected under, then
+     * the distinct proxy lists, then for each entry its key, the index of
+     * its proxy list and the time it has left to live.
+     * <p>
+     * Entries selected while saving may or may not be written.
+     *
+     * @param file          the file to write.
+     * @param scriptVersion version of the script behind the delegate, such
+     *                      as {@link cc.koosha.pac.VersionedStringProvider#version()}.
+     *
+     * @return number of entries written.
+     *
+     * @throws IOException if the file could not be written.
+     */
+    public int save(final File file,
+                    final long scriptVersion) throws IOException {
+
+        final Map<List<Proxy>, Integer> ids     = new HashMap<>();
+        final List<List<Proxy>>         lists   = new ArrayList<>();
+        final List<CacheEntry>          entries = new ArrayList<>();
+
+        for (final CacheEntry entry : this.cache.values()) {
+            if (entry.isExpired())
+                continue;
+
+            entries.add(entry);
+            if (!ids.containsKey(entry.result)) {
+                ids.put(entry.result, lists.size());
+                lists.add(entry.result);
+            }
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+
+        // Not left behind half written, nor if it can not replace the file.
+        boolean moved = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_FORMAT);
+                out.writeLong(scriptVersion);
+                out.writeLong(System.currentTimeMillis());
+
+                out.writeInt(lists.size());
+                for (final List<Proxy> list : lists) {
+                    out.writeInt(list.size());
+                    for (final Proxy proxy : list) {
+                        out.writeByte(proxy.type().ordinal());
+                        if (proxy.type() != Proxy.Type.DIRECT) {
+                            final InetSocketAddress address = (InetSocketAddress) proxy.address();
+                            writeString(out, address.getHostString());
+                            out.writeInt(address.getPort());
+                        }
+                    }
+                }
+
+                final long now = System.nanoTime();
+                out.writeInt(entries.size());
+                for (final CacheEntry entry : entries) {
+                    writeString(out, entry.key);
+                    out.writeInt(ids.get(entry.result));
+                    out.writeLong(TimeUnit.NANOSECONDS.toMillis(entry.expireAt - now));
+                }
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        }
+        finally {
+            if (!moved)
+                temp.delete();
+        }
+
+        return entries.size();
+    }
 
-        CacheEntry entry;
+    /**
+     * Caches the entries of a snapshot file written by
+     * {@link #save(File, long)}, mapping it in memory, unless it was written
+     * under another script version. Entries are kept for the time they had
+     * left when saved, less the time since, at most the ttl. Keys already
+     * cached are left as they are.
+     *
+     * @param file          the file to read.
+     * @param scriptVersion version of the script behind the delegate.
+     *
+     * @return number of entries restored.
+     *
+     * @throws IOException if the file could not be read or is not a
+     *                     snapshot.
+     */
+    public int restore(final File file,
+                       final long scriptVersion) throws IOException {
 
-        synchronized (this.cache) {
-            entry = this.cache.get(cacheKey);
+        final ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("snapshot too large: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
 
-        if (entry == null || entry.isExpired())
-            entry = new CacheEntry(
-                    this.getDelegate().select(uri),
-                    System.nanoTime() + this.ttl * 1000 * 1000,
-                    cacheKey
-            );
+        try {
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_FORMAT)
+                throw new IOException("not a cache snapshot: " + file);
+
+            if (buffer.getLong() != scriptVersion)
+                return 0;
+
+            final long elapsed = Math.max(System.currentTimeMillis() - buffer.getLong(), 0);
 
-        synchronized (this.cache) {
-            if (this.cache.size() >= this.maxSize) {
-                final Iterator<Entry<String, CacheEntry>> it =
-                        this.cache.entrySet().iterator();
-                while (it.hasNext()) {
-                    final Entry<String, CacheEntry> entry1 = it.next();
-                    if (entry1.getValue().isExpired())
-                        it.remove();
+            final List<List<Proxy>> lists = new ArrayList<>();
+            for (int i = buffer.getInt(); i > 0; i--) {
+                final List<Proxy> list = new ArrayList<>();
+                for (int j = buffer.getInt(); j > 0; j--) {
+                    final Proxy.Type type = Proxy.Type.values()[buffer.get()];
+                    if (type == Proxy.Type.DIRECT)
+                        list.add(Proxy.NO_PROXY);
+                    else
+                        list.add(new Proxy(type, InetSocketAddress.createUnresolved(
+                                readString(buffer), buffer.getInt())));
                 }
+                lists.add(list);
             }
-            if (this.cache.size() >= this.maxSize) {
-                final ArrayList<CacheEntry> entries =
-                        new ArrayList<>(this.cache.values());
-                Collections.sort(entries, cacheEntryByExpiryComparator);
-                for (int i = 0; i < bulkFree; i++)
-                    cache.remove(entries.get(i).key);
+
+            int restored = 0;
+            for (int i = buffer.getInt(); i > 0; i--) {
+                final String      key    = readString(buffer);
+                final List<Proxy> result = lists.get(buffer.getInt());
+                final long        left   = Math.min(buffer.getLong() - elapsed, this.ttl);
+
+                if (left <= 0 || this.cache.containsKey(key))
+                    continue;
+
+                final long now      = System.nanoTime();
+                final long expireAt = now + left * 1000 * 1000;
+
+                this.insert(new CacheEntry(
+                        this.share(result),
+                        expireAt,
+                        expireAt - (long) ((expireAt - now) * this.refreshAhead),
+                        key));
+                restored++;
             }
 
-            this.cache.put(cacheKey, entry);
+            return restored;
         }
+        catch (final BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("corrupt cache snapshot: " + file, e);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out,
+                                    final String value) throws IOException {
 
-        return entry.result;
+        final byte[] bytes = value.getBytes(SNAPSHOT_CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string, its length checked against what is left, so that a
+     * corrupt length does not allocate up to 2GB.
+     */
+    private static String readString(final ByteBuffer buffer) throws IOException {
+
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("corrupt cache snapshot, string length out of bounds: " + length);
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, SNAPSHOT_CHARSET);
     }
 
     public void flush() {
 
-        synchronized (this.cache) {
+        this.lock.lock();
+        try {
+            this.policy.clear();
             this.cache.clear();
+            this.results.clear();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Tracks the cached entries and picks the one to evict. Only hit is
+     * called without holding the lock.
+     */
+    private interface Policy {
+
+        void hit(CacheEntry entry);
+
+        /**
+         * @param previous the cached entry of the same key, if any, to be
+         *                 replaced.
+         *
+         * @return the entry to evict, possibly the one added, or null.
+         */
+        CacheEntry add(CacheEntry previous, CacheEntry entry);
+
+        void clear();
+    }
+
+    /**
+     * CLOCK over the entries, evicting expired ones even if referenced, see
+     * {@link ClockRing}.
+     */
+    private static final class ClockPolicy implements Policy {
+
+        private final ClockRing<CacheEntry> ring;
+
+        ClockPolicy(final int maxSize) {
+
+            this.ring = new ClockRing<>(maxSize);
+        }
+
+        @Override
+        public void hit(final CacheEntry entry) {
+
+            ClockRing.hit(entry);
+        }
+
+        @Override
+        public CacheEntry add(final CacheEntry previous, final CacheEntry entry) {
+
+            return this.ring.add(previous, entry);
+        }
+
+        @Override
+        public void clear() {
+
+            this.ring.clear();
+        }
+    }
+
+    /**
+     * Doubly linked list of entries, least recently used first.
+     */
+    private static final class AccessQueue {
+
+        CacheEntry head = null;
+        CacheEntry tail = null;
+        int        size = 0;
+
+        void add(final CacheEntry entry) {
+
+            entry.queue = this;
+            entry.prev = this.tail;
+            entry.next = null;
+
+            if (this.tail == null)
+                this.head = entry;
+            else
+                this.tail.next = entry;
+            this.tail = entry;
+
+            this.size++;
+        }
+
+        void remove(final CacheEntry entry) {
+
+            if (entry.prev == null)
+                this.head = entry.next;
+            else
+                entry.prev.next = entry.next;
+
+            if (entry.next == null)
+                this.tail = entry.prev;
+            else
+                entry.next.prev = entry.prev;
+
+            entry.queue = null;
+            entry.prev = null;
+            entry.next = null;
+
+            this.size--;
+        }
+
+        void clear() {
+
+            while (this.head != null)
+                this.remove(this.head);
+        }
+    }
+
+    /**
+     * W-TinyLFU, see {@link EvictionPolicy#EVICTION_POLICY_TINY_LFU}. The
+     * window holds 1% of the entries, the protected segment 80% of the
+     * rest.
+     * <p>
+     * Hits are written to a lossy ring buffer, without a lock, and
+     * replayed by whichever thread gets the lock without waiting once a
+     * stretch of the buffer is filled, or by the next add. Hits dropped
+     * when the buffer laps only make the policy slightly less accurate.
+     */
+    private static final class TinyLfuPolicy implements Policy {
+
+        private static final int READ_BUFFER_SIZE = 128;
+        private static final int DRAIN_MASK       = 31;
+
+        private final ReentrantLock lock;
+
+        private final AtomicReferenceArray<CacheEntry> reads =
+                new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+        // Racy on purpose, a lost increment only overwrites a hit.
+        private int readIndex = 0;
+
+        private final FrequencySketch sketch;
+
+        private final AccessQueue window    = new AccessQueue();
+        private final AccessQueue probation = new AccessQueue();
+        private final AccessQueue protect   = new AccessQueue();
+
+        private final int maxWindow;
+        private final int maxMain;
+        private final int maxProtected;
+
+        TinyLfuPolicy(final int maxSize, final ReentrantLock lock) {
+
+            this.lock = lock;
+            this.sketch = new FrequencySketch(maxSize);
+            this.maxWindow = Math.max(1, maxSize / 100);
+            this.maxMain = maxSize - this.maxWindow;
+            this.maxProtected = this.maxMain * 8 / 10;
+        }
+
+        @Override
+        public void hit(final CacheEntry entry) {
+
+            final int index = this.readIndex++ & (READ_BUFFER_SIZE - 1);
+            this.reads.lazySet(index, entry);
+
+            if ((index & DRAIN_MASK) == DRAIN_MASK && this.lock.tryLock()) {
+                try {
+                    this.drain();
+                }
+                finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+
+        private void drain() {
+
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                final CacheEntry entry = this.reads.get(i);
+                if (entry != null) {
+                    this.reads.lazySet(i, null);
+                    this.onHit(entry);
+                }
+            }
+        }
+
+        private void onHit(final CacheEntry entry) {
+
+            // Evicted or replaced since.
+            if (entry.queue == null)
+                return;
+
+            this.sketch.increment(entry.key);
+
+            final AccessQueue queue = entry.queue;
+            queue.remove(entry);
+
+            if (queue == this.probation) {
+                this.protect.add(entry);
+                if (this.protect.size > this.maxProtected)
+                    this.demote();
+            }
+            else {
+                queue.add(entry);
+            }
+        }
+
+        private void demote() {
+
+            final CacheEntry entry = this.protect.head;
+            this.protect.remove(entry);
+            this.probation.add(entry);
+        }
+
+        @Override
+        public CacheEntry add(final CacheEntry previous, final CacheEntry entry) {
+
+            this.drain();
+            this.sketch.increment(entry.key);
+
+            if (previous != null && previous.queue != null) {
+                final AccessQueue queue = previous.queue;
+                queue.remove(previous);
+                queue.add(entry);
+                return null;
+            }
+
+            this.window.add(entry);
+            if (this.window.size <= this.maxWindow)
+                return null;
+
+            final CacheEntry candidate = this.window.head;
+            this.window.remove(candidate);
+
+            if (this.probation.size + this.protect.size < this.maxMain) {
+                this.probation.add(candidate);
+                return null;
+            }
+
+            if (this.maxMain == 0)
+                return candidate;
+
+            if (this.probation.size == 0)
+                this.demote();
+            final CacheEntry victim = this.probation.head;
+
+            if (victim.isExpired()
+                    || !candidate.isExpired()
+                    && this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key)) {
+                this.probation.remove(victim);
+                this.probation.add(candidate);
+                return victim;
+            }
+
+            return candidate;
+        }
+
+        @Override
+        public void clear() {
+
+            for (int i = 0; i < READ_BUFFER_SIZE; i++)
+                this.reads.lazySet(i, null);
+
+            this.window.clear();
+            this.probation.clear();
+            this.protect.clear();
         }
     }
 
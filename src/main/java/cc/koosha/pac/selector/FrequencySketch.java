@@ -0,0 +1,115 @@
+package cc.koosha.pac.selector;
+
+
+/**
+ * Estimates how often keys were seen recently, in a count-min sketch of
+ * 4-bit counters: each key is counted in four counters, picked by four
+ * hashes, and its frequency is the least of them.
+ * <p>
+ * Once as many keys were counted as ten times the capacity, all counters
+ * are halved, so that keys popular long ago fade. Counters saturate at 15,
+ * enough to tell hot keys from the rest.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L,
+            0xB492B66FBE98F273L,
+            0x9AE16A3B2F90404FL,
+            0xCBF29CE484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // Sixteen counters per long.
+    private final long[] table;
+    private final int    tableMask;
+    private final int    sampleSize;
+
+    private int size = 0;
+
+    /**
+     * @param capacity number of distinct keys expected to matter, such as
+     *                 the size of the cache.
+     */
+    FrequencySketch(final int capacity) {
+
+        int length = 16;
+        while (length < capacity)
+            length <<= 1;
+
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * Math.max(capacity, 1);
+    }
+
+    /**
+     * @return the estimated number of times the key was counted, up to 15.
+     */
+    int frequency(final Object key) {
+
+        final int hash  = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            final int offset = (start + i) << 2;
+            final int count  = (int) (this.table[this.indexOf(hash, i)] >>> offset & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Counts the key once more.
+     */
+    void increment(final Object key) {
+
+        final int hash  = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            final int index  = this.indexOf(hash, i);
+            final int offset = (start + i) << 2;
+            if ((this.table[index] >>> offset & 0xF) != 0xF) {
+                this.table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++this.size == this.sampleSize)
+            this.reset();
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+
+        for (int i = 0; i < this.table.length; i++)
+            this.table[i] = this.table[i] >>> 1 & RESET_MASK;
+
+        this.size /= 2;
+    }
+
+    private int indexOf(final int hash, final int i) {
+
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & this.tableMask;
+    }
+
+    private static int spread(int hash) {
+
+        hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+        hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
@@ -0,0 +1,457 @@
+package cc.koosha.pac.selector;
+
+import cc.koosha.pac.pac.EvaluationContext;
+import cc.koosha.pac.selector.CachedProxySelector.CacheScope;
+
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A cache like {@link CachedProxySelector}, for millions of keys, keeping
+ * them out of the heap, in a byte buffer it is bounded by: the heap used
+ * stays the same however many keys are cached.
+ * <p>
+ * The buffer holds an open addressing index of the keys, and a ring of
+ * records, each holding a key, its expiry and the index of its result in a
+ * table of distinct results. Only that table is on the heap, as few
+ * distinct results are expected; once it holds {@link #MAX_RESULTS}, keys
+ * with other results are no longer cached.
+ * <p>
+ * Records are appended at the tail of the ring, and the oldest evicted from
+ * its head to make room, first in first out, creating no garbage. Hits
+ * take a read lock, misses the write lock.
+ *
+ * @author Koosha Hosseiny, Copyright 2017
+ */
+public final class OffHeapCachedProxySelector extends DelegatingProxySelector {
+
+    /**
+     * Max number of distinct results cached.
+     */
+    public static final int MAX_RESULTS = 4096;
+
+    // Record: length, key hash, expiry, result index, key length << 1 | wide,
+    // then the key, a byte per char if all are ascii, two otherwise.
+    private static final int LENGTH = 0;
+    private static final int HASH   = 4;
+    private static final int EXPIRY = 8;
+    private static final int RESULT = 16;
+    private static final int KEY    = 20;
+    private static final int HEADER = 24;
+
+    private final long       ttl;
+    private final CacheScope cacheScope;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<List<Proxy>>         results   = new ArrayList<>();
+    private final Map<List<Proxy>, Integer> resultIds = new HashMap<>();
+
+    // Slots hold the offset of a record plus one, 0 if empty.
+    private final IntBuffer  index;
+    private final int        indexMask;
+    private final int        maxEntries;
+    private final ByteBuffer data;
+    private final int        maxRecord;
+
+    // The ring, guarded by the write lock. Records are in [head, tail), or
+    // in [head, wrapAt) and [0, tail) once the tail wrapped around.
+    private int head    = 0;
+    private int tail    = 0;
+    private int wrapAt  = -1;
+    private int records = 0;
+    private int size    = 0;
+
+    private long evictions = 0;
+
+    /**
+     * Keeps the cache in a direct buffer.
+     *
+     * @param delegate   the delegate to use.
+     * @param cacheScope the desired cache scope.
+     * @param maxBytes   size of the buffer.
+     * @param ttl        the "time to live" for cache entries as amount in
+     *                   milliseconds.
+     */
+    public OffHeapCachedProxySelector(final ProxySelector delegate,
+                                      final CacheScope cacheScope,
+                                      final int maxBytes,
+                                      final long ttl) {
+
+        this(delegate, cacheScope, ByteBuffer.allocateDirect(maxBytes), ttl);
+    }
+
+    /**
+     * Keeps the cache in the given buffer, such as a direct one or a file
+     * mapped in memory, from its position to its limit. What the buffer
+     * holds is overwritten.
+     *
+     * @param delegate   the delegate to use.
+     * @param cacheScope the desired cache scope.
+     * @param storage    the buffer, of at least 4096 bytes.
+     * @param ttl        the "time to live" for cache entries as amount in
+     *                   milliseconds.
+     */
+    public OffHeapCachedProxySelector(final ProxySelector delegate,
+                                      final CacheScope cacheScope,
+                                      final ByteBuffer storage,
+                                      final long ttl) {
+
+        super(delegate);
+
+        if (cacheScope == null)
+            throw new NullPointerException("cacheScope");
+        if (storage == null)
+            throw new NullPointerException("storage");
+
+        if (storage.remaining() < 4096)
+            throw new IllegalStateException("storage must be >= 4096 bytes: " + storage.remaining());
+
+        if (ttl < 1)
+            throw new IllegalStateException("ttl must be >= 1: " + ttl);
+
+        this.ttl = ttl;
+        this.cacheScope = cacheScope;
+
+        // A slot for every 32 bytes, an eighth of the buffer at most.
+        final int slots = Integer.highestOneBit(storage.remaining() / 32);
+
+        final ByteBuffer buffer = storage.slice();
+        buffer.limit(slots * 4);
+        this.index = buffer.slice().asIntBuffer();
+        buffer.limit(buffer.capacity()).position(slots * 4);
+        this.data = buffer.slice();
+
+        this.indexMask = slots - 1;
+        this.maxEntries = slots / 4 * 3;
+        this.maxRecord = this.data.capacity() / 16;
+
+        this.clear();
+    }
+
+    public CacheScope getCacheScope() {
+
+        return this.cacheScope;
+    }
+
+    public long getTtl() {
+
+        return this.ttl;
+    }
+
+    /**
+     * Number of keys cached, including expired ones not yet evicted.
+     */
+    public int size() {
+
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of keys evicted to make room.
+     */
+    public long evictions() {
+
+        this.lock.readLock().lock();
+        try {
+            return this.evictions;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected List<Proxy> __select(final URI uri) {
+
+        final String cacheKey = CachedProxySelector.cacheKey(this.cacheScope, uri);
+
+        // No host, not cached, selected by the delegate.
+        if (cacheKey == null)
+            return null;
+
+        final int hash = spread(cacheKey.hashCode());
+
+        this.lock.readLock().lock();
+        try {
+            final int slot = this.find(cacheKey, hash);
+            if (slot >= 0) {
+                final int offset = this.index.get(slot) - 1;
+                if (System.nanoTime() < this.data.getLong(offset + EXPIRY))
+                    return this.results.get(this.data.getInt(offset + RESULT));
+            }
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+
+        final EvaluationContext context = EvaluationContext.begin();
+        final List<Proxy>       result;
+        try {
+            result = this.getDelegate().select(uri);
+        }
+        finally {
+            context.end();
+        }
+
+        final long expireAt = CachedProxySelector.expireAt(context, this.ttl, System.nanoTime());
+
+        this.lock.writeLock().lock();
+        try {
+            return this.put(cacheKey, hash, result, expireAt);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public void flush() {
+
+        this.lock.writeLock().lock();
+        try {
+            this.clear();
+            this.results.clear();
+            this.resultIds.clear();
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void clear() {
+
+        for (int i = 0; i <= this.indexMask; i++)
+            this.index.put(i, 0);
+
+        this.head = 0;
+        this.tail = 0;
+        this.wrapAt = -1;
+        this.records = 0;
+        this.size = 0;
+    }
+
+    /**
+     * @return the slot of the key in the index, or -1.
+     */
+    private int find(final String key, final int hash) {
+
+        for (int slot = hash & this.indexMask; ; slot = slot + 1 & this.indexMask) {
+            final int value = this.index.get(slot);
+            if (value == 0)
+                return -1;
+
+            final int offset = value - 1;
+            if (this.data.getInt(offset + HASH) == hash && this.keyEquals(offset, key))
+                return slot;
+        }
+    }
+
+    private boolean keyEquals(final int offset, final String key) {
+
+        final int     info   = this.data.getInt(offset + KEY);
+        final int     length = info >>> 1;
+        final boolean wide   = (info & 1) != 0;
+
+        if (length != key.length())
+            return false;
+
+        final int start = offset + HEADER;
+        for (int i = 0; i < length; i++) {
+            final char c = wide
+                           ? this.data.getChar(start + 2 * i)
+                           : (char) this.data.get(start + i);
+            if (c != key.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Caches the result of a key, replacing its previous one, unless the
+     * key or the result does not fit, or the result already expired, such
+     * as the fallback of a shed or timed out evaluation.
+     *
+     * @return the result, interned if cached.
+     */
+    private List<Proxy> put(final String key,
+                            final int hash,
+                            final List<Proxy> result,
+                            final long expireAt) {
+
+        boolean wide = false;
+        for (int i = 0; i < key.length() && !wide; i++)
+            wide = key.charAt(i) >= 0x80;
+
+        final int length = HEADER + (wide ? 2 * key.length() : key.length());
+        if (length > this.maxRecord || result == null || expireAt <= System.nanoTime())
+            return result;
+
+        Integer id = this.resultIds.get(result);
+        if (id == null) {
+            if (this.results.size() == MAX_RESULTS)
+                return result;
+
+            final List<Proxy> interned = Collections.unmodifiableList(new ArrayList<>(result));
+            id = this.results.size();
+            this.results.add(interned);
+            this.resultIds.put(interned, id);
+        }
+
+        final int previous = this.find(key, hash);
+        if (previous >= 0) {
+            this.unindex(previous);
+            this.size--;
+        }
+
+        while (this.size >= this.maxEntries)
+            this.evict();
+
+        final int offset = this.reserve(length);
+
+        this.data.putInt(offset + LENGTH, length);
+        this.data.putInt(offset + HASH, hash);
+        this.data.putLong(offset + EXPIRY, expireAt);
+        this.data.putInt(offset + RESULT, id);
+        this.data.putInt(offset + KEY, key.length() << 1 | (wide ? 1 : 0));
+
+        final int start = offset + HEADER;
+        for (int i = 0; i < key.length(); i++)
+            if (wide)
+                this.data.putChar(start + 2 * i, key.charAt(i));
+            else
+                this.data.put(start + i, (byte) key.charAt(i));
+
+        int slot = hash & this.indexMask;
+        while (this.index.get(slot) != 0)
+            slot = slot + 1 & this.indexMask;
+        this.index.put(slot, offset + 1);
+
+        this.records++;
+        this.size++;
+
+        return this.results.get(id);
+    }
+
+    /**
+     * Makes room for a record at the tail, evicting from the head.
+     *
+     * @return offset of the record.
+     */
+    private int reserve(final int length) {
+
+        while (true) {
+            if (this.records == 0) {
+                this.head = 0;
+                this.tail = 0;
+                this.wrapAt = -1;
+            }
+
+            if (this.wrapAt < 0) {
+                if (this.data.capacity() - this.tail >= length)
+                    break;
+
+                this.wrapAt = this.tail;
+                this.tail = 0;
+            }
+            else if (this.head - this.tail >= length) {
+                break;
+            }
+            else {
+                this.evict();
+            }
+        }
+
+        final int offset = this.tail;
+        this.tail += length;
+        return offset;
+    }
+
+    /**
+     * Drops the record at the head, and its key if still indexed.
+     */
+    private void evict() {
+
+        final int offset = this.head;
+
+        final int slot = this.slotOf(offset);
+        if (slot >= 0) {
+            this.unindex(slot);
+            this.size--;
+            this.evictions++;
+        }
+
+        this.records--;
+        this.head += this.data.getInt(offset + LENGTH);
+        if (this.head == this.wrapAt) {
+            this.head = 0;
+            this.wrapAt = -1;
+        }
+    }
+
+    /**
+     * @return the slot pointing at the record, or -1 if it was replaced.
+     */
+    private int slotOf(final int offset) {
+
+        for (int slot = this.data.getInt(offset + HASH) & this.indexMask; ; slot = slot + 1 & this.indexMask) {
+            final int value = this.index.get(slot);
+            if (value == 0)
+                return -1;
+            if (value == offset + 1)
+                return slot;
+        }
+    }
+
+    /**
+     * Empties a slot, shifting back the slots after it which would no
+     * longer be found past the empty one.
+     */
+    private void unindex(int slot) {
+
+        int next = slot;
+        while (true) {
+            next = next + 1 & this.indexMask;
+
+            final int value = this.index.get(next);
+            if (value == 0)
+                break;
+
+            final int home = this.data.getInt(value - 1 + HASH) & this.indexMask;
+            final boolean between = slot <= next
+                                    ? slot < home && home <= next
+                                    : slot < home || home <= next;
+            if (between)
+                continue;
+
+            this.index.put(slot, value);
+            slot = next;
+        }
+
+        this.index.put(slot, 0);
+    }
+
+    private static int spread(int hash) {
+
+        hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
@@ -2,7 +2,10 @@ package cc.koosha.pac.selector;
 
 import cc.koosha.pac.ProxyEvaluationException;
 import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.pac.AsyncNetRequest;
+import cc.koosha.pac.pac.BoundedCache;
 import cc.koosha.pac.pac.JavaxPacScriptParser;
+import cc.koosha.pac.pac.PacScriptAnalysis;
 import cc.koosha.pac.pac.PacScriptParser;
 
 import java.net.InetSocketAddress;
@@ -10,7 +13,9 @@ import java.net.Proxy;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
@@ -28,7 +33,15 @@ public final class PacProxySelector extends EProxySelector {
     private static final String PAC_SOCKS  = "SOCKS";
     private static final String PAC_DIRECT = "DIRECT";
 
-    private PacScriptParser pacScriptParser;
+    // Bounds the number of distinct results kept parsed.
+    private static final int MAX_CACHED_RESULTS = 256;
+
+    private final PacScriptParser pacScriptParser;
+    private final AsyncNetRequest prefetch;
+
+    // Parsed proxy lists by PAC result, a PAC usually returns a handful of
+    // distinct results. Scripts returning one per host keep the most used.
+    private final BoundedCache<String, List<Proxy>> results = new BoundedCache<>(MAX_CACHED_RESULTS);
 
     public PacProxySelector(final StringProvider pacSource) throws ProxyEvaluationException {
 
@@ -37,12 +50,83 @@ public final class PacProxySelector extends EProxySelector {
 
     public PacProxySelector(final PacScriptParser pacScriptParser) {
 
+        this(pacScriptParser, null);
+    }
+
+    /**
+     * Starts resolving the host of each uri as selection begins, so that
+     * the lookup overlaps with the rest of selection instead of starting
+     * only when the script asks for it.
+     *
+     * @param pacScriptParser the parser, whose script methods must resolve
+     *                        through prefetch for its lookups to join the
+     *                        prefetched ones.
+     * @param prefetch        resolver to prefetch through, may be null to
+     *                        not prefetch.
+     */
+    public PacProxySelector(final PacScriptParser pacScriptParser,
+                            final AsyncNetRequest prefetch) {
+
         this.pacScriptParser = pacScriptParser;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Creates a selector prefetching hosts only if the script may resolve
+     * them, as found by {@link PacScriptAnalysis}.
+     *
+     * @param pacScriptParser the parser, resolving through prefetch.
+     * @param script          source of the PAC script the parser evaluates.
+     * @param prefetch        resolver to prefetch through.
+     *
+     * @return the selector.
+     */
+    public static PacProxySelector forScript(final PacScriptParser pacScriptParser,
+                                             final String script,
+                                             final AsyncNetRequest prefetch) {
+
+        final PacScriptAnalysis analysis = PacScriptAnalysis.analyze(script);
+
+        return new PacProxySelector(
+                pacScriptParser,
+                analysis.usesDns() || analysis.isOpaque() ? prefetch : null
+        );
+    }
+
+    /**
+     * Hints that the given hosts are about to be selected for, starting to
+     * resolve them. Does nothing if the selector does not prefetch.
+     *
+     * @param hosts the hosts.
+     */
+    public void prefetch(final Iterable<String> hosts) {
+
+        if (this.prefetch == null)
+            return;
+
+        for (final String host : hosts)
+            this.prefetch(host);
+    }
+
+    private void prefetch(final String host) {
+
+        if (host == null)
+            return;
+
+        try {
+            this.prefetch.lookup(host);
+        }
+        catch (final RejectedExecutionException e) {
+            // Only a hint, the script resolves on its own.
+        }
     }
 
     @Override
     protected List<Proxy> _select(final URI uri) {
 
+        if (this.prefetch != null)
+            this.prefetch(uri.getHost());
+
         final String parseResult;
 
         try {
@@ -52,51 +136,92 @@ public final class PacProxySelector extends EProxySelector {
             return noProxyList();
         }
 
-        final String[] proxyDefinitions = parseResult == null
-                                          ? PAC_DIRECT.split("[;]")
-                                          : parseResult.split("[;]");
+        final String key = parseResult == null ? PAC_DIRECT : parseResult;
 
-        final List<Proxy> proxies = new ArrayList<>(proxyDefinitions.length);
-        for (final String proxyDef : proxyDefinitions)
-            if (!proxyDef.trim().isEmpty())
-                proxies.add(buildProxyFromPacResult(proxyDef));
+        List<Proxy> proxies = this.results.get(key);
+        if (proxies == null) {
+            proxies = parsePacResult(key);
+            this.results.put(key, proxies);
+        }
 
         return proxies;
     }
 
+    /**
+     * Parses all the proxies in a PAC result, separated by semicolons, in a
+     * single pass.
+     *
+     * @param pacResult the result from the PAC parser.
+     *
+     * @return an unmodifiable list of the proxies.
+     */
+    static List<Proxy> parsePacResult(final String pacResult) {
+
+        final List<Proxy> proxies = new ArrayList<>(2);
+        final int         length  = pacResult.length();
+
+        int start = 0;
+        while (start <= length) {
+            int end = pacResult.indexOf(';', start);
+            if (end < 0)
+                end = length;
+
+            // Trim.
+            int from = start;
+            int to   = end;
+            while (from < to && pacResult.charAt(from) <= ' ')
+                from++;
+            while (to > from && pacResult.charAt(to - 1) <= ' ')
+                to--;
+
+            if (from < to)
+                proxies.add(buildProxyFromPacResult(pacResult, from, to));
+
+            start = end + 1;
+        }
+
+        return Collections.unmodifiableList(proxies);
+    }
+
     /**
      * The proxy evaluator will return a proxy string. This method will take
      * this string and build a matching <code>Proxy</code> for it.
      *
      * @param pacResult the result from the PAC parser.
+     * @param from      start of the trimmed proxy definition in pacResult.
+     * @param to        end (exclusive) of the proxy definition.
      *
      * @return a Proxy
      **/
-    private Proxy buildProxyFromPacResult(final String pacResult) {
+    private static Proxy buildProxyFromPacResult(final String pacResult,
+                                                 final int from,
+                                                 final int to) {
 
-        if (pacResult.trim().length() < 6)
+        if (to - from < 6)
             return Proxy.NO_PROXY;
 
-        final String proxyDef = pacResult.trim();
-        if (proxyDef.toUpperCase().startsWith(PAC_DIRECT))
+        if (pacResult.regionMatches(true, from, PAC_DIRECT, 0, PAC_DIRECT.length()))
             return Proxy.NO_PROXY;
 
         // Check proxy type.
-        final Proxy.Type type = proxyDef.toUpperCase().startsWith(PAC_SOCKS)
+        final Proxy.Type type = pacResult.regionMatches(true, from, PAC_SOCKS, 0, PAC_SOCKS.length())
                                 ? Proxy.Type.SOCKS
                                 : Proxy.Type.HTTP;
 
-        String  host = proxyDef.substring(6);
-        Integer port = DEFAULT_PROXY_PORT;
+        final int hostStart = from + 6;
+        int       hostEnd   = to;
+        int       port      = DEFAULT_PROXY_PORT;
 
         // Split port from host
-        final int indexOfPort = host.indexOf(':');
-        final int index2      = host.lastIndexOf(']');
-        if (indexOfPort != -1 && index2 < indexOfPort) {
-            port = Integer.parseInt(host.substring(indexOfPort + 1).trim());
-            host = host.substring(0, indexOfPort).trim();
+        final int indexOfPort = pacResult.indexOf(':', hostStart);
+        final int index2      = pacResult.lastIndexOf(']', to - 1);
+        if (indexOfPort != -1 && indexOfPort < to && index2 < indexOfPort) {
+            port = Integer.parseInt(pacResult.substring(indexOfPort + 1, to).trim());
+            hostEnd = indexOfPort;
         }
 
+        final String host = pacResult.substring(hostStart, hostEnd).trim();
+
         final SocketAddress adr = InetSocketAddress.createUnresolved(host, port);
         return new Proxy(type, adr);
     }
@@ -0,0 +1,78 @@
+package cc.koosha.pac;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+
+public class VersionedStringProviderAdapterTest {
+
+    @Test
+    public void versionShouldMoveOnlyWhenTextChanges() {
+
+        final String[] text = {"a"};
+
+        final VersionedStringProvider provider = new VersionedStringProviderAdapter(new StringProvider() {
+            @Override
+            public String get() {
+                return text[0];
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+
+        final long v0 = provider.version();
+        assertEquals(provider.version(), v0);
+        assertEquals(provider.get(), "a");
+
+        // Equal text in a new instance is the same version.
+        text[0] = new String("a");
+        assertEquals(provider.version(), v0);
+
+        text[0] = "b";
+        final long v1 = provider.version();
+        assertEquals(v1, v0 + 1);
+        assertEquals(provider.get(), "b");
+        assertEquals(provider.version(), v1);
+    }
+
+    @Test
+    public void shouldReadOnceByDefault() {
+
+        final int[] reads = new int[1];
+
+        final VersionedStringProvider provider = VersionedStringProviderAdapter.of(new StringProvider() {
+            @Override
+            public String get() {
+                return "a" + reads[0]++;
+            }
+        });
+
+        final long v0 = provider.version();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(provider.version(), v0);
+            assertEquals(provider.get(), "a0");
+        }
+        assertEquals(reads[0], 1);
+    }
+
+    @Test
+    public void shouldNotAdaptVersionedProvider() {
+
+        final VersionedStringProvider provider = new VersionedStringProvider() {
+            @Override
+            public long version() {
+                return 0;
+            }
+
+            @Override
+            public String get() {
+                return "";
+            }
+        };
+
+        assertSame(VersionedStringProviderAdapter.of(provider), provider);
+    }
+
+}
@@ -0,0 +1,274 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+import org.testng.annotations.Test;
+
+import javax.script.ScriptEngineManager;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class BuiltinPacScriptParserTest {
+
+    private static final String URL  = "http://host1.unit-test.invalid/a/b?q=1";
+    private static final String HOST = "host1.unit-test.invalid";
+
+    private static StringProvider script(final String script) {
+
+        return new StringProvider() {
+            @Override
+            public String get() {
+                return script;
+            }
+        };
+    }
+
+    private static StringProvider returning(final String expression) {
+
+        return script("function FindProxyForURL(url, host) {\n" +
+                "  return " + expression + ";\n" +
+                "}\n");
+    }
+
+    private static void assertSameAsEngine(final StringProvider provider) throws ProxyEvaluationException {
+
+        final String expected = JavaxPacScriptParserTest
+                .parser(provider, JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED)
+                .evaluate(URL, HOST);
+
+        assertEquals(new BuiltinPacScriptParser(provider).evaluate(URL, HOST), expected, provider.get());
+    }
+
+    @Test
+    public void shouldMatchEngineOnSampleScripts() throws ProxyEvaluationException {
+
+        for (final String which : new String[]{
+                "exec", "comment", "weekDay", "dateRange", "timeRange",
+                "returnTypes", "multiProxy", "echo", "localIp"})
+            assertSameAsEngine(provider(which));
+    }
+
+    @Test
+    public void shouldMatchEngineOnExpressions() throws ProxyEvaluationException {
+
+        final String[] expressions = {
+                "1 + 2 + '3' + 4",
+                "7 / 2 + ' ' + 7 % 3 + ' ' + -7 % 3 + ' ' + 1 / 0 + ' ' + (0 / 0)",
+                "(5 & 3) + ' ' + (5 | 3) + ' ' + (5 ^ 3) + ' ' + ~5 + ' ' + (-16 >> 2) + ' ' + (-16 >>> 28) + ' ' + (1 << 4)",
+                "0.1 + 0.2",
+                "1e21 + ' ' + 123456789012 + ' ' + 0x1F + ' ' + 1.5e-7",
+                "parseInt('99999999999999999999') + ' ' + 123e20 + ' ' + 0.000001 + ' ' + 0.0000001 + ' ' + 1 / 3 + ' ' + -5e-324",
+                "1152921504606846976 + ' ' + 1180591620717411303424 + ' ' + 1e20 / 3 + ' ' + 0.1 * 3 + ' ' + 100 / 7 + ' ' + -0",
+                "(255).toString(16) + ' ' + (-255).toString(2) + ' ' + (35).toString(36) + ' ' + (0.5).toString(2) + ' ' + (8.25).toString(4) + ' ' + (10).toString(10)",
+                "('10' == 10) + ' ' + ('10' === 10) + ' ' + (null == undefined) + ' ' + (null === undefined) + ' ' + ('' == 0)",
+                "('b' > 'a') + ' ' + ('10' < '9') + ' ' + (10 < 9) + ' ' + ('10' < 9)",
+                "typeof null + typeof undefined + typeof {} + typeof [] + typeof '' + typeof 1 + typeof isInNet + typeof notDeclared",
+                "host.substring(0, 5) + host.substr(-7) + host.slice(1, -1) + host.charAt(2) + host.charCodeAt(0)",
+                "host.indexOf('.') + ' ' + host.lastIndexOf('.') + ' ' + host.indexOf('x') + ' ' + host.length",
+                "host.toUpperCase() + url.toLowerCase() + '  x '.trim()",
+                "host.split('.').length + ' ' + host.split('.')[1] + ' ' + host.split('').length",
+                "url.replace('/', '|') + ' ' + url.replace(/\\//g, '|') + ' ' + host.replace(/(\\w+)\\.(\\w+)/, '$2.$1')",
+                "/^host\\d\\./i.test(host) + ' ' + /^HOST/.test(host) + ' ' + url.match(/q=(\\d)/)[1] + ' ' + url.search(/b/)",
+                "[1, 2, 3].join('-') + ' ' + [3, 1, 2].sort() + ' ' + [1, [2, 3]] + ' ' + [].length + ' ' + [1, 2].concat([3], 4)",
+                "['a', 'b', 'c'].indexOf('c') + ' ' + ['a', 'b'].reverse() + ' ' + [1, 2, 3, 4].slice(1, 3)",
+                "parseInt('42px') + ' ' + parseInt('ff', 16) + ' ' + parseFloat('3.14abc') + ' ' + isNaN('x') + ' ' + Number('12')",
+                "Math.floor(2.7) + ' ' + Math.ceil(2.1) + ' ' + Math.round(2.5) + ' ' + Math.max(1, 3, 2) + ' ' + Math.min() + ' ' + Math.abs(-3)",
+                "String(12) + String(true) + String(null) + Boolean('') + Boolean('0')",
+                "(function (a, b) { return arguments.length + ' ' + a + ' ' + b; })(1)",
+                "(host ? 'yes' : 'no') + ' ' + (0 || 'or') + ' ' + (1 && 'and') + ' ' + (null || undefined)",
+                "{a: 1, 'b': 2}.b",
+                "dnsDomainIs(host, '.unit-test.invalid') + ' ' + isPlainHostName(host) + ' ' + dnsDomainLevels(host) + ' ' + shExpMatch(url, '*/a/*')",
+                "isInNet('10.1.2.3', '10.0.0.0', '255.0.0.0') + ' ' + localHostOrDomainIs('host1', HOST_NAME)",
+        };
+
+        for (final String expression : expressions)
+            assertSameAsEngine(returning(expression.replace("HOST_NAME", "'" + HOST + "'")));
+    }
+
+    @Test
+    public void shouldMatchEngineOnStatements() throws ProxyEvaluationException {
+
+        assertSameAsEngine(script("" +
+                "var proxies = ['PROXY a:1', 'PROXY b:2'];\n" +
+                "var direct = 'DIRECT'\n" +
+                "function pick(host) {\n" +
+                "  var sum = 0, i;\n" +
+                "  for (i = 0; i < host.length; i++)\n" +
+                "    sum += host.charCodeAt(i);\n" +
+                "  return proxies[sum % proxies.length];\n" +
+                "}\n" +
+                "function FindProxyForURL(url, host) {\n" +
+                "  var out = [];\n" +
+                "  var n = 0;\n" +
+                "  while (true) { if (++n > 5) break; if (n % 2) continue; out.push(n); }\n" +
+                "  do { n--; } while (n > 2)\n" +
+                "  out.push(n);\n" +
+                "  var o = {x: 1, y: 2}, keys = '';\n" +
+                "  for (var k in o) keys += k + o[k];\n" +
+                "  out.push(keys);\n" +
+                "  switch (host.split('.')[0]) {\n" +
+                "    case 'nope': out.push('nope');\n" +
+                "    case 'host1': out.push('host1');\n" +
+                "    case 'fall': out.push('fall'); break;\n" +
+                "    default: out.push('default');\n" +
+                "  }\n" +
+                "  var counter = (function () { var c = 0; return function () { return ++c; }; })();\n" +
+                "  counter(); out.push(counter());\n" +
+                "  out.push(hoisted());\n" +
+                "  function hoisted() { return 'hoisted'; }\n" +
+                "  if (isPlainHostName(host)) return direct;\n" +
+                "  else if (dnsDomainIs(host, '.invalid'))\n" +
+                "    return pick(host) + '; ' + out.join(',');\n" +
+                "  return direct;\n" +
+                "}\n"));
+    }
+
+    @Test
+    public void shouldKeepGlobalWritesPerEvaluation() throws ProxyEvaluationException {
+
+        final BuiltinPacScriptParser parser = new BuiltinPacScriptParser(script("" +
+                "var calls = 0;\n" +
+                "function FindProxyForURL(url, host) {\n" +
+                "  calls++;\n" +
+                "  leaked = (typeof leaked == 'undefined' ? 0 : leaked) + 1;\n" +
+                "  return calls + ' ' + leaked;\n" +
+                "}\n"));
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(parser.evaluate(URL, HOST), "1 1");
+    }
+
+    @Test
+    public void shouldNotShareModifiedGlobalArrays() throws Exception {
+
+        final BuiltinPacScriptParser parser = new BuiltinPacScriptParser(script("" +
+                "var seen = [];\n" +
+                "var memo = {};\n" +
+                "function add(a, x) { a.push(x); }\n" +
+                "function FindProxyForURL(url, host) {\n" +
+                "  add(seen, host);\n" +
+                "  var m = memo; m[host] = (m[host] || 0) + 1;\n" +
+                "  return seen.length + ' ' + m[host];\n" +
+                "}\n"));
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(parser.evaluate(URL, HOST), "1 1");
+
+        final ExecutorService      executor = Executors.newFixedThreadPool(8);
+        final List<Future<String>> results  = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws ProxyEvaluationException {
+                    return parser.evaluate(URL, HOST);
+                }
+            }));
+
+        for (final Future<String> result : results)
+            assertEquals(result.get(), "1 1");
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldFailOnUnsupportedOrBrokenScripts() {
+
+        for (final String source : new String[]{
+                "function FindProxyForURL(url, host) { return 'DIRECT' ",
+                "function FindProxyForURL(url, host) { try { return 1; } catch (e) {} }",
+                "function FindProxyForURL(url, host) { return undefinedFunction(); }",
+                "function findProxyForUrl(url, host) { return 'DIRECT'; }",
+                "var x = 'unterminated;",
+                "function FindProxyForURL(url, host) { return isPlainHostName() ? 'DIRECT' : 'PROXY p:1'; }",
+                "function FindProxyForURL(url, host) { return 'PROXY p:' + dnsDomainLevels(); }",
+                "function FindProxyForURL(url, host) { var a = []; a[1e8] = 1; return 'DIRECT'; }",
+                "function FindProxyForURL(url, host) { var a = []; a.length = 1e9; return 'DIRECT'; }",
+                "function FindProxyForURL(url, host) { return (10).toString(1); }",
+        })
+            try {
+                new BuiltinPacScriptParser(script(source)).evaluate(URL, HOST);
+                fail("should fail: " + source);
+            }
+            catch (final ProxyEvaluationException e) {
+                // Expected.
+            }
+    }
+
+    @Test
+    public void dnsLookupsShouldBeMemoizedPerEvaluation() throws ProxyEvaluationException {
+
+        final int[] lookups = new int[1];
+
+        // Every host is at 10.1.2.3, looked up through tryGetAllByName only.
+        final NetRequest netRequest = new NetRequest() {
+            final NetRequest delegate = new DefaultNetRequest();
+
+            @Override
+            public InetAddress tryGet(final String host) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String dnsResolve(final String host, final String defaultValue) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public byte[] tryGetAddress(final String host) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public InetAddress[] tryGetAllByName(final String host) {
+                lookups[0]++;
+                try {
+                    return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 1, 2, 3})};
+                }
+                catch (final UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+                return this.delegate.getLocalAddressOfType(cl);
+            }
+        };
+
+        final StringProvider script = script("" +
+                "function FindProxyForURL(url, host) {\n" +
+                "  if (isInNet(host, '192.168.0.0', '255.255.0.0')) return 'PROXY a:1';\n" +
+                "  if (isInNet(host, '172.16.0.0', '255.240.0.0')) return 'PROXY b:1';\n" +
+                "  if (isInNet(dnsResolve(host), '11.0.0.0', '255.0.0.0')) return 'PROXY c:1';\n" +
+                "  if (!isResolvable(host) || !isResolvable(host)) return 'PROXY d:1';\n" +
+                "  if (isInNet(host, '10.0.0.0', '255.0.0.0')) return 'DIRECT';\n" +
+                "  return 'PROXY e:1';\n" +
+                "}\n");
+
+        for (final PacScriptParser parser : new PacScriptParser[]{
+                new BuiltinPacScriptParser(script, netRequest),
+                new JavaxPacScriptParser(script,
+                        new ScriptEngineManager().getEngineByMimeType("text/javascript"),
+                        netRequest,
+                        JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED)}) {
+
+            lookups[0] = 0;
+            assertEquals(parser.evaluate(URL, HOST), "DIRECT");
+            // Each host once, whichever methods ask: host, and its address
+            // by isInNet(dnsResolve(host)).
+            assertEquals(lookups[0], 2);
+
+            assertEquals(parser.evaluate(URL, HOST), "DIRECT");
+            assertEquals(lookups[0], 4);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package cc.koosha.pac.pac;
+
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+
+public class CachingNetRequestTest {
+
+    /**
+     * Resolves hosts starting with "host" to an address ending in the number
+     * of lookups made so far, others not at all.
+     */
+    static class CountingNetRequest implements NetRequest {
+
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress tryGet(final String host) {
+
+            final InetAddress[] all = this.tryGetAllByName(host);
+            return all == null ? null : all[0];
+        }
+
+        @Override
+        public String dnsResolve(final String host, final String defaultValue) {
+
+            final InetAddress address = this.tryGet(host);
+            return address == null ? defaultValue : address.getHostAddress();
+        }
+
+        @Override
+        public byte[] tryGetAddress(final String host) {
+
+            final InetAddress address = this.tryGet(host);
+            return address == null ? null : address.getAddress();
+        }
+
+        @Override
+        public InetAddress[] tryGetAllByName(final String host) {
+
+            final int count = this.lookups.incrementAndGet();
+            if (host == null || !host.startsWith("host"))
+                return null;
+
+            try {
+                return new InetAddress[]{
+                        InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) count}),
+                        InetAddress.getByAddress(host, new byte[]{10, 0, 1, (byte) count}),
+                };
+            }
+            catch (final UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+            return "10.9.9.9";
+        }
+    }
+
+    @Test
+    public void allLookupsShouldShareOneResolution() {
+
+        final CountingNetRequest counting = new CountingNetRequest();
+        final CachingNetRequest  net      = new CachingNetRequest(counting, 10, 1, 1, TimeUnit.MINUTES);
+
+        assertEquals(net.tryGet("host1").getHostAddress(), "10.0.0.1");
+        assertEquals(net.dnsResolve("host1", "x"), "10.0.0.1");
+        assertEquals(net.tryGetAddress("host1"), new byte[]{10, 0, 0, 1});
+        assertEquals(net.tryGetAllByName("host1").length, 2);
+        assertEquals(counting.lookups.get(), 1);
+        assertEquals(net.misses(), 1);
+        assertEquals(net.hits(), 3);
+
+        assertEquals(net.dnsResolve("nope", "x"), "x");
+        assertNull(net.tryGet("nope"));
+        assertNull(net.tryGetAllByName("nope"));
+        assertEquals(counting.lookups.get(), 2);
+    }
+
+    @Test
+    public void shouldExpirePositiveAndNegativeSeparately() throws InterruptedException {
+
+        final CountingNetRequest counting = new CountingNetRequest();
+        final CachingNetRequest  net      = new CachingNetRequest(counting, 10, 10000, 100, TimeUnit.MILLISECONDS);
+
+        net.tryGet("host1");
+        net.tryGet("nope");
+        assertEquals(counting.lookups.get(), 2);
+
+        Thread.sleep(200);
+        net.tryGet("host1");
+        net.tryGet("nope");
+        assertEquals(counting.lookups.get(), 3);
+
+        final CachingNetRequest noNegative = new CachingNetRequest(counting, 10, 1, 0, TimeUnit.MINUTES);
+        noNegative.tryGet("nope");
+        noNegative.tryGet("nope");
+        assertEquals(counting.lookups.get(), 5);
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldServeStaleWhileRefreshing() throws InterruptedException {
+
+        final CountingNetRequest counting = new CountingNetRequest();
+        final CachingNetRequest  net      = new CachingNetRequest(
+                counting, 10, 100, 100, 60000, TimeUnit.MILLISECONDS);
+
+        assertEquals(net.dnsResolve("host1", null), "10.0.0.1");
+
+        Thread.sleep(200);
+        // Stale, served as is while refreshed in the background.
+        assertEquals(net.dnsResolve("host1", null), "10.0.0.1");
+        assertEquals(net.staleHits(), 1);
+
+        while (!"10.0.0.2".equals(net.dnsResolve("host1", null)))
+            Thread.sleep(10);
+        assertEquals(counting.lookups.get(), 2);
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldKeepStaleWhenRefreshFails() throws InterruptedException {
+
+        // The first refresh does not resolve, the next one does.
+        final CountingNetRequest counting = new CountingNetRequest() {
+            @Override
+            public InetAddress[] tryGetAllByName(final String host) {
+
+                return this.lookups.get() == 1
+                       ? super.tryGetAllByName("failing")
+                       : super.tryGetAllByName(host);
+            }
+        };
+        final CachingNetRequest  net      = new CachingNetRequest(
+                counting, 10, 100, 60000, 60000, TimeUnit.MILLISECONDS);
+
+        assertEquals(net.dnsResolve("host1", null), "10.0.0.1");
+
+        Thread.sleep(200);
+        assertEquals(net.dnsResolve("host1", null), "10.0.0.1");
+        while (counting.lookups.get() < 2)
+            Thread.sleep(10);
+
+        // Still served stale, and refreshed again by a later lookup.
+        while (!"10.0.0.3".equals(net.dnsResolve("host1", null)))
+            Thread.sleep(10);
+        assertEquals(counting.lookups.get(), 3);
+    }
+
+    @Test
+    public void shouldStayBounded() {
+
+        final CountingNetRequest counting = new CountingNetRequest();
+        final CachingNetRequest  net      = new CachingNetRequest(counting, 3, 1, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 10; i++)
+            net.tryGet("host" + i);
+        assertEquals(counting.lookups.get(), 10);
+
+        // The last one is still there, early ones are gone.
+        net.tryGet("host9");
+        assertEquals(counting.lookups.get(), 10);
+        net.tryGet("host0");
+        assertEquals(counting.lookups.get(), 11);
+
+        assertTrue(net.hits() >= 1);
+    }
+
+    @Test
+    public void shouldKeepHostsLookedUpSinceAdded() {
+
+        final CountingNetRequest counting = new CountingNetRequest();
+        final CachingNetRequest  net      = new CachingNetRequest(counting, 3, 1, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 3; i++)
+            net.tryGet("host" + i);
+        net.tryGet("host0");
+
+        // Full, host1 and host2 make room, host0 gets a second chance.
+        net.tryGet("host3");
+        net.tryGet("host4");
+        assertEquals(counting.lookups.get(), 5);
+
+        net.tryGet("host0");
+        assertEquals(counting.lookups.get(), 5);
+        net.tryGet("host1");
+        assertEquals(counting.lookups.get(), 6);
+    }
+
+}
@@ -0,0 +1,74 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.pac.CachingNetRequestTest.CountingNetRequest;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.testng.Assert.assertEquals;
+
+
+public class CoalescingNetRequestTest {
+
+    private static final int THREADS = 16;
+
+    @Test(timeOut = 10000)
+    public void concurrentLookupsShouldShareOneResolution() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // A resolver stuck on its round trip until released.
+        final CountingNetRequest slow = new CountingNetRequest() {
+            @Override
+            public InetAddress[] tryGetAllByName(final String host) {
+
+                try {
+                    release.await();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.tryGetAllByName(host);
+            }
+        };
+
+        final CoalescingNetRequest net  = new CoalescingNetRequest(slow);
+        final ExecutorService      pool = Executors.newFixedThreadPool(THREADS);
+
+        final List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            results.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() {
+
+                    // Whichever method asks, one flight per host.
+                    return thread % 2 == 0
+                           ? net.dnsResolve("host1", null)
+                           : net.tryGet("host1").getHostAddress();
+                }
+            }));
+        }
+
+        while (net.coalesced() < THREADS - 1)
+            Thread.sleep(5);
+        release.countDown();
+
+        for (final Future<String> result : results)
+            assertEquals(result.get(), "10.0.0.1");
+
+        assertEquals(slow.lookups.get(), 1);
+        assertEquals(net.lookups(), 1);
+
+        // Nothing kept once done.
+        assertEquals(net.dnsResolve("host1", null), "10.0.0.2");
+        assertEquals(net.dnsResolve("nope", "x"), "x");
+
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+}
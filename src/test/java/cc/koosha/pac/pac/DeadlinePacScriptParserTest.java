@@ -0,0 +1,130 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.VersionedStringProviderAdapter;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class DeadlinePacScriptParserTest {
+
+    private static final String URL  = "http://host1.unit-test.invalid/";
+    private static final String HOST = "host1.unit-test.invalid";
+
+    @Test
+    public void shouldPassThroughWithinDeadline() throws ProxyEvaluationException {
+
+        final DeadlinePacScriptParser parser = new DeadlinePacScriptParser(
+                new BuiltinPacScriptParser(provider("echo")), 5, TimeUnit.SECONDS, "DIRECT");
+
+        assertEquals(parser.evaluate(URL, HOST), URL + " " + HOST);
+        assertEquals(parser.evaluations(), 1);
+        assertEquals(parser.timeouts(), 0);
+
+        parser.shutdown();
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldStopRunawayScriptAndFallBack() throws Exception {
+
+        final String[] script = {"function FindProxyForURL(url, host) { while (true) {} }"};
+
+        final DeadlinePacScriptParser parser = new DeadlinePacScriptParser(
+                new BuiltinPacScriptParser(new VersionedStringProviderAdapter(new StringProvider() {
+                    @Override
+                    public String get() {
+                        return script[0];
+                    }
+                }, 0, TimeUnit.MILLISECONDS)), 100, TimeUnit.MILLISECONDS, "PROXY fallback.unit-test.invalid:8080");
+
+        assertEquals(parser.evaluate(URL, HOST), "PROXY fallback.unit-test.invalid:8080");
+        assertEquals(parser.timeouts(), 1);
+
+        script[0] = provider("exec").get();
+        assertEquals(parser.evaluate(URL, HOST), "PROXY http_proxy.unit-test.invalid:8090");
+        assertEquals(parser.timeouts(), 1);
+
+        parser.shutdown();
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldInterruptSlowDelegateAndThrowWithoutFallback() throws Exception {
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        final DeadlinePacScriptParser parser = new DeadlinePacScriptParser(new PacScriptParser() {
+            @Override
+            public String evaluate(final String url, final String host) throws ProxyEvaluationException {
+                try {
+                    Thread.sleep(60000);
+                    return "DIRECT";
+                }
+                catch (final InterruptedException e) {
+                    interrupted.countDown();
+                    throw new ProxyEvaluationException(e);
+                }
+            }
+        }, 50, TimeUnit.MILLISECONDS, null);
+
+        try {
+            parser.evaluate(URL, HOST);
+            fail("should time out");
+        }
+        catch (final ProxyEvaluationException e) {
+            // Expected.
+        }
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(parser.timeouts(), 1);
+
+        parser.shutdown();
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldFailFastOnceAllThreadsAreTaken() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Ignores interruption, like a script engine.
+        final DeadlinePacScriptParser parser = new DeadlinePacScriptParser(new PacScriptParser() {
+            @Override
+            public String evaluate(final String url, final String host) {
+                while (true)
+                    try {
+                        release.await();
+                        return "DIRECT";
+                    }
+                    catch (final InterruptedException e) {
+                        // Keep running.
+                    }
+            }
+        }, 50, TimeUnit.MILLISECONDS, "PROXY fallback.unit-test.invalid:8080", 1);
+
+        assertEquals(parser.evaluate(URL, HOST), "PROXY fallback.unit-test.invalid:8080");
+        assertEquals(parser.timeouts(), 1);
+
+        final long start = System.nanoTime();
+        assertEquals(parser.evaluate(URL, HOST), "PROXY fallback.unit-test.invalid:8080");
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(parser.timeouts(), 1);
+        assertEquals(parser.failures(), 1);
+
+        release.countDown();
+        parser.shutdown();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRejectEngineNotSafeForConcurrentUse() throws ProxyEvaluationException {
+
+        new DeadlinePacScriptParser(new JavaxPacScriptParser(provider("exec")), 1, TimeUnit.SECONDS, "DIRECT");
+    }
+
+}
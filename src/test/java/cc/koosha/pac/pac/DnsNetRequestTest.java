@@ -0,0 +1,341 @@
+package cc.koosha.pac.pac;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+
+public class DnsNetRequestTest {
+
+    /**
+     * A DNS server on localhost, answering from a fixed zone:
+     * <ul>
+     * <li>host1.test: A 10.0.0.1 for 1 second, AAAA ::1</li>
+     * <li>v4only.test: A 10.0.0.2, no AAAA</li>
+     * <li>alias.test: CNAME to host1.test</li>
+     * <li>big.test: truncated over UDP, A 10.0.0.3 over TCP</li>
+     * <li>blackhole.test: never answered</li>
+     * <li>anything else: does not exist</li>
+     * </ul>
+     */
+    static final class StubDnsServer implements Closeable {
+
+        final AtomicInteger udpQueries = new AtomicInteger();
+        final AtomicInteger tcpQueries = new AtomicInteger();
+
+        private final ServerSocket   tcp;
+        private final DatagramSocket udp;
+
+        StubDnsServer() throws IOException {
+
+            this.tcp = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.udp = new DatagramSocket(new InetSocketAddress("127.0.0.1", this.tcp.getLocalPort()));
+
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+
+                    StubDnsServer.this.serveUdp();
+                }
+            });
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+
+                    StubDnsServer.this.serveTcp();
+                }
+            });
+        }
+
+        InetSocketAddress address() {
+
+            return new InetSocketAddress("127.0.0.1", this.tcp.getLocalPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            this.udp.close();
+            this.tcp.close();
+        }
+
+        private static void daemon(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serveUdp() {
+
+            final byte[] buffer = new byte[512];
+            try {
+                while (true) {
+                    final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    this.udp.receive(packet);
+                    this.udpQueries.incrementAndGet();
+
+                    final byte[] answer = answer(Arrays.copyOf(buffer, packet.getLength()), false);
+                    if (answer != null)
+                        this.udp.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+                }
+            }
+            catch (final IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serveTcp() {
+
+            try {
+                while (true)
+                    try (Socket socket = this.tcp.accept()) {
+                        this.tcpQueries.incrementAndGet();
+
+                        final DataInputStream in    = new DataInputStream(socket.getInputStream());
+                        final byte[]          query = new byte[in.readUnsignedShort()];
+                        in.readFully(query);
+
+                        final byte[]           answer = answer(query, true);
+                        final DataOutputStream out    = new DataOutputStream(socket.getOutputStream());
+                        out.writeShort(answer.length);
+                        out.write(answer);
+                        out.flush();
+                    }
+            }
+            catch (final IOException e) {
+                // Closed.
+            }
+        }
+
+        private static byte[] answer(final byte[] query, final boolean tcp) throws IOException {
+
+            final StringBuilder name = new StringBuilder();
+            int                 pos  = 12;
+            while (query[pos] != 0) {
+                if (name.length() > 0)
+                    name.append('.');
+                name.append(new String(query, pos + 1, query[pos], "US-ASCII"));
+                pos += query[pos] + 1;
+            }
+            final int type = (query[pos + 1] & 0xFF) << 8 | query[pos + 2] & 0xFF;
+            final int end  = pos + 5;
+
+            final ByteArrayOutputStream records = new ByteArrayOutputStream();
+            final DataOutputStream      out     = new DataOutputStream(records);
+
+            int flags   = 0x8180;
+            int anCount = 0;
+            int nsCount = 0;
+
+            switch (name.toString().toLowerCase(Locale.ROOT)) {
+                case "host1.test":
+                    anCount = type == DnsNetRequest.TYPE_A
+                              ? record(out, 12, type, 1, new byte[]{10, 0, 0, 1})
+                              : record(out, 12, type, 60, InetAddress.getByName("::1").getAddress());
+                    break;
+
+                case "v4only.test":
+                    if (type == DnsNetRequest.TYPE_A)
+                        anCount = record(out, 12, type, 60, new byte[]{10, 0, 0, 2});
+                    else
+                        nsCount = soa(out, 60);
+                    break;
+
+                case "alias.test":
+                    // Target of the alias right after the header of its record.
+                    anCount = record(out, 12, DnsNetRequest.TYPE_CNAME, 60,
+                            new byte[]{5, 'h', 'o', 's', 't', '1', 4, 't', 'e', 's', 't', 0});
+                    if (type == DnsNetRequest.TYPE_A)
+                        anCount += record(out, end + 12, type, 60, new byte[]{10, 0, 0, 1});
+                    else
+                        nsCount = soa(out, 60);
+                    break;
+
+                case "big.test":
+                    if (!tcp)
+                        flags |= 0x0200;
+                    else if (type == DnsNetRequest.TYPE_A)
+                        anCount = record(out, 12, type, 60, new byte[]{10, 0, 0, 3});
+                    else
+                        nsCount = soa(out, 60);
+                    break;
+
+                case "blackhole.test":
+                    return null;
+
+                default:
+                    flags |= DnsNetRequest.RCODE_NX_DOMAIN;
+                    nsCount = soa(out, 60);
+            }
+
+            final ByteArrayOutputStream message = new ByteArrayOutputStream();
+            final DataOutputStream      header  = new DataOutputStream(message);
+            header.write(query, 0, 2);
+            header.writeShort(flags);
+            header.writeShort(1);
+            header.writeShort(anCount);
+            header.writeShort(nsCount);
+            header.writeShort(0);
+            header.write(query, 12, end - 12);
+            records.writeTo(header);
+
+            return message.toByteArray();
+        }
+
+        private static int record(final DataOutputStream out,
+                                  final int namePointer,
+                                  final int type,
+                                  final int ttl,
+                                  final byte[] data) throws IOException {
+
+            out.writeShort(0xC000 | namePointer);
+            out.writeShort(type);
+            out.writeShort(DnsNetRequest.CLASS_IN);
+            out.writeInt(ttl);
+            out.writeShort(data.length);
+            out.write(data);
+            return 1;
+        }
+
+        private static int soa(final DataOutputStream out, final int minimum) throws IOException {
+
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final DataOutputStream      soa  = new DataOutputStream(data);
+            soa.writeByte(0);
+            soa.writeByte(0);
+            soa.writeInt(1);
+            soa.writeInt(3600);
+            soa.writeInt(600);
+            soa.writeInt(86400);
+            soa.writeInt(minimum);
+
+            return record(out, 12, DnsNetRequest.TYPE_SOA, 3600, data.toByteArray());
+        }
+    }
+
+    private StubDnsServer server;
+    private DnsNetRequest net;
+
+    @BeforeClass
+    public void start() throws IOException {
+
+        this.server = new StubDnsServer();
+        this.net = new DnsNetRequest(Collections.singletonList(this.server.address()), 2, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void stop() throws IOException {
+
+        this.net.shutdown();
+        this.server.close();
+    }
+
+    @Test
+    public void shouldResolveBothFamiliesAndCacheByTtl() throws Exception {
+
+        final InetAddress[] all = this.net.tryGetAllByName("host1.test");
+        assertEquals(all.length, 2);
+        assertEquals(all[0].getHostAddress(), "10.0.0.1");
+        assertTrue(all[1] instanceof Inet6Address);
+        assertEquals(all[1].getHostName(), "host1.test");
+
+        final int queries = this.server.udpQueries.get();
+        assertEquals(this.net.dnsResolve("HOST1.test", null), "10.0.0.1");
+        assertEquals(this.net.tryGetAddress("host1.test"), new byte[]{10, 0, 0, 1});
+        assertEquals(this.server.udpQueries.get(), queries);
+
+        // The A record lives for a second only.
+        Thread.sleep(1100);
+        assertEquals(this.net.tryGet("host1.test").getHostAddress(), "10.0.0.1");
+        assertEquals(this.server.udpQueries.get(), queries + 2);
+    }
+
+    @Test
+    public void shouldCacheMissingHostsByZoneNegativeTtl() {
+
+        assertEquals(this.net.tryGetAllByName("v4only.test").length, 1);
+
+        assertNull(this.net.tryGet("missing.test"));
+        final int queries = this.server.udpQueries.get();
+        assertEquals(this.net.dnsResolve("missing.test", "default"), "default");
+        assertEquals(this.server.udpQueries.get(), queries);
+    }
+
+    @Test
+    public void shouldFollowAliasesAndRetryTruncatedOverTcp() {
+
+        assertEquals(this.net.dnsResolve("alias.test", null), "10.0.0.1");
+
+        assertEquals(this.net.dnsResolve("big.test", null), "10.0.0.3");
+        assertEquals(this.server.tcpQueries.get(), 2);
+    }
+
+    @Test
+    public void shouldLookUpAsynchronously() throws Exception {
+
+        final Future<InetAddress[]> lookup = this.net.lookup("v4only.test");
+        assertEquals(lookup.get()[0].getHostAddress(), "10.0.0.2");
+        assertTrue(this.net.lookup("v4only.test").isDone());
+
+        final int queries = this.server.udpQueries.get();
+        assertEquals(this.net.lookup("10.1.2.3").get()[0].getHostAddress(), "10.1.2.3");
+        assertEquals(this.server.udpQueries.get(), queries);
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldGiveUpPastDeadline() throws Exception {
+
+        // Takes the queries, never answers.
+        try (DatagramSocket dead = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+
+            final DnsNetRequest net = new DnsNetRequest(
+                    Arrays.asList((InetSocketAddress) dead.getLocalSocketAddress(), this.server.address()),
+                    400, TimeUnit.MILLISECONDS);
+
+            // The first server times out, the second gets what is left.
+            assertEquals(net.dnsResolve("v4only.test", null), "10.0.0.2");
+
+            final long start = System.nanoTime();
+            assertNull(net.tryGet("blackhole.test"));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertEquals(net.failures(), 1);
+
+            net.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldTakeOnlyValidAddressesAsLiterals() throws Exception {
+
+        for (final String literal : new String[]{
+                "10.1.2.3", "0.0.0.0", "255.255.255.255", "::", "::1", "1::", "[::1]",
+                "fe80::1:2", "1:2:3:4:5:6:7:8", "::ffff:10.1.2.3", "1:2:3:4:5:6:10.1.2.3"})
+            assertEquals(InetAddress.getByAddress(DnsNetRequest.parseLiteral(literal)),
+                         InetAddress.getByName(literal), literal);
+
+        for (final String host : new String[]{
+                "999.1.1.1", "1.2.3", "1.2.3.4.5", "1..2.3", "1.2.3.", "0001.2.3.4", "1.2.3.x",
+                "a:b", "host:80", ":::", "1:::2", "1::2::3", ":1", "1:", "12345::", "g::",
+                "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "1:2:3:4:5:6:7:10.1.2.3", "::999.1.1.1"})
+            assertNull(DnsNetRequest.parseLiteral(host), host);
+
+        // Nothing to look up, the server is never asked.
+        final int queries = this.server.udpQueries.get();
+        assertEquals(this.net.dnsResolve("10.1.2.3", null), "10.1.2.3");
+        assertEquals(this.net.dnsResolve("[::1]", null), "0:0:0:0:0:0:0:1");
+        assertEquals(this.server.udpQueries.get(), queries);
+    }
+
+}
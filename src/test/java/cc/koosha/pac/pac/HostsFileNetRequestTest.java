@@ -0,0 +1,126 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.pac.CachingNetRequestTest.CountingNetRequest;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+
+public class HostsFileNetRequestTest {
+
+    private static File hostsFile(final String content) throws IOException {
+
+        final File file = File.createTempFile("hosts", ".txt");
+        file.deleteOnExit();
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII")) {
+            writer.write(content);
+        }
+
+        return file;
+    }
+
+    @Test
+    public void shouldAnswerFromFile() throws IOException {
+
+        final File file = hostsFile("" +
+                "# generated\n" +
+                "127.0.0.1\tlocalhost\n" +
+                "10.0.0.1   proxy.corp   Proxy-Alias.CORP # the proxy\n" +
+                "\n" +
+                "   10.0.0.2 multi.corp\r\n" +
+                "fd00::2 multi.corp\n" +
+                "not-an-address broken.corp\n" +
+                "999.1.1.1 broken.corp\n" +
+                "10.0.0.3 last.corp");
+
+        final HostsFileNetRequest net = new HostsFileNetRequest(file, 1, TimeUnit.MINUTES);
+        assertEquals(net.size(), 7);
+
+        assertEquals(net.dnsResolve("proxy.corp", null), "10.0.0.1");
+        assertEquals(net.dnsResolve("PROXY-alias.corp.", null), "10.0.0.1");
+        assertEquals(net.tryGet("last.corp").getHostName(), "last.corp");
+        assertEquals(net.tryGetAddress("localhost"), new byte[]{127, 0, 0, 1});
+
+        final InetAddress[] multi = net.tryGetAllByName("multi.corp");
+        assertEquals(multi.length, 2);
+        assertEquals(multi[0].getHostAddress(), "10.0.0.2");
+        assertEquals(multi[1], InetAddress.getByName("fd00::2"));
+
+        // Not in the file, and no delegate.
+        assertNull(net.tryGet("broken.corp"));
+        assertEquals(net.dnsResolve("other.corp", "default"), "default");
+        assertEquals(net.dnsResolve("10.1.2.3", null), "10.1.2.3");
+    }
+
+    @Test
+    public void shouldFallBackToDelegate() throws IOException {
+
+        final CountingNetRequest  counting = new CountingNetRequest();
+        final HostsFileNetRequest net      = new HostsFileNetRequest(
+                hostsFile("10.9.0.1 host1\n"), counting, 1, TimeUnit.MINUTES);
+
+        assertEquals(net.dnsResolve("host1", null), "10.9.0.1");
+        assertEquals(counting.lookups.get(), 0);
+
+        assertEquals(net.dnsResolve("host2", null), "10.0.0.1");
+        assertEquals(counting.lookups.get(), 1);
+        assertEquals(net.getLocalAddressOfType(InetAddress.class), "10.9.9.9");
+
+        assertEquals(net.hits(), 1);
+        assertEquals(net.misses(), 1);
+    }
+
+    @Test
+    public void shouldIndexLargeFiles() throws IOException {
+
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200000; i++)
+            content.append("10.").append(i >> 16).append('.').append(i >> 8 & 0xFF).append('.').append(i & 0xFF)
+                   .append(" host-").append(i).append(".generated.corp\n");
+
+        final HostsFileNetRequest net = new HostsFileNetRequest(hostsFile(content.toString()), 1, TimeUnit.MINUTES);
+        assertEquals(net.size(), 200000);
+
+        for (int i = 0; i < 200000; i += 997)
+            assertEquals(net.dnsResolve("host-" + i + ".generated.corp", null),
+                    "10." + (i >> 16) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF));
+        assertNull(net.tryGet("host-200000.generated.corp"));
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldReloadWhenFileIsReplaced() throws Exception {
+
+        final File                file = hostsFile("10.0.0.1 moving.corp\n");
+        final HostsFileNetRequest net  = new HostsFileNetRequest(file, 10, TimeUnit.MILLISECONDS);
+
+        assertEquals(net.dnsResolve("moving.corp", null), "10.0.0.1");
+
+        final File replacement = hostsFile("10.0.0.22 moving.corp\n10.0.0.3 new.corp\n");
+        Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        while (!"10.0.0.22".equals(net.dnsResolve("moving.corp", null)))
+            Thread.sleep(10);
+        assertEquals(net.dnsResolve("new.corp", null), "10.0.0.3");
+        assertEquals(net.reloads(), 1);
+
+        // A broken file keeps the previous index.
+        assertTrue(file.delete());
+        try {
+            net.reload();
+            fail("should fail");
+        }
+        catch (final IOException e) {
+            // Expected.
+        }
+        assertEquals(net.dnsResolve("new.corp", null), "10.0.0.3");
+        assertEquals(net.failures(), 1);
+    }
+
+}
@@ -2,10 +2,15 @@ package cc.koosha.pac.pac;
 
 import cc.koosha.pac.ProxyEvaluationException;
 import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.VersionedStringProvider;
+import cc.koosha.pac.VersionedStringProviderAdapter;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import javax.script.ScriptEngineManager;
+import java.lang.reflect.Method;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 
 public class JavaxPacScriptParserTest {
@@ -95,6 +100,12 @@ public class JavaxPacScriptParserTest {
                         "}\n";
                 break;
 
+            case "echo":
+                script = "function FindProxyForURL(url, host) {\n" +
+                        "  return url + \" \" + host;\n" +
+                        "}\n";
+                break;
+
             case "localIp":
                 script = "\n" +
                         "function FindProxyForURL(url, host) {\n" +
@@ -176,4 +187,290 @@ public class JavaxPacScriptParserTest {
         Assert.assertEquals(actual, "number boolean string");
     }
 
-}
\ No newline at end of file
+    static JavaxPacScriptParser parser(final StringProvider provider,
+                                       final JavaxPacScriptParser.EvalMode mode) throws ProxyEvaluationException {
+
+        return new JavaxPacScriptParser(
+                provider,
+                new ScriptEngineManager().getEngineByMimeType("text/javascript"),
+                new DefaultNetRequest(),
+                mode
+        );
+    }
+
+    private static JavaxPacScriptParser compiled(final StringProvider provider) throws ProxyEvaluationException {
+
+        return parser(provider, JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED);
+    }
+
+    private static JavaxPacScriptParser shared(final StringProvider provider) throws ProxyEvaluationException {
+
+        return parser(provider, JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED);
+    }
+
+    @Test
+    public void compiledModeShouldMatchSourceMode() throws ProxyEvaluationException {
+
+        for (final String which : new String[]{"exec", "comment", "multiProxy", "returnTypes"}) {
+            final String expected = parser(provider(which), JavaxPacScriptParser.EvalMode.EVAL_MODE_SOURCE)
+                    .evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+
+            final JavaxPacScriptParser parser = compiled(provider(which));
+
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), expected);
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), expected);
+        }
+    }
+
+    @Test
+    public void sharedModeShouldMatchSourceMode() throws ProxyEvaluationException {
+
+        for (final String which : new String[]{"exec", "comment", "multiProxy", "returnTypes"}) {
+            final String expected = parser(provider(which), JavaxPacScriptParser.EvalMode.EVAL_MODE_SOURCE)
+                    .evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+
+            final JavaxPacScriptParser parser = shared(provider(which));
+
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), expected);
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), expected);
+        }
+    }
+
+    @Test
+    public void sharedModeShouldEvaluateConcurrently() throws Exception {
+
+        final JavaxPacScriptParser parser = shared(provider("echo"));
+        final Thread[]             threads = new Thread[8];
+        final Throwable[]          failure = new Throwable[1];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            final String host = "h" + thread + "-" + i + ".unit-test.invalid";
+                            final String url  = "http://" + host + "/";
+                            Assert.assertEquals(parser.evaluate(url, host), url + " " + host);
+                        }
+                    }
+                    catch (final Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (final Thread thread : threads)
+            thread.join();
+
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test
+    public void shimsShouldDefineAllScriptMethods() throws ProxyEvaluationException {
+
+        final StringBuilder expression = new StringBuilder("''");
+        final StringBuilder expected   = new StringBuilder();
+        for (final Method method : ScriptMethods.class.getMethods()) {
+            expression.append(" + typeof ").append(method.getName());
+            expected.append("function");
+        }
+
+        final StringProvider provider = new StringProvider() {
+            @Override
+            public String get() {
+                return "function FindProxyForURL(url, host) { return " + expression + "; }";
+            }
+        };
+
+        for (final JavaxPacScriptParser.EvalMode mode : JavaxPacScriptParser.EvalMode.values())
+            Assert.assertEquals(parser(provider, mode).evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                    expected.toString(), mode.name());
+    }
+
+    @Test
+    public void compiledModeShouldReadSourceOnce() throws ProxyEvaluationException {
+
+        final int[]          reads  = new int[1];
+        final StringProvider source = provider("exec");
+
+        final JavaxPacScriptParser parser = compiled(new StringProvider() {
+            @Override
+            public String get() {
+                reads[0]++;
+                return source.get();
+            }
+        });
+
+        for (int i = 0; i < 5; i++)
+            parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+
+        Assert.assertEquals(reads[0], 1);
+    }
+
+    @Test
+    public void compiledModeShouldLoadUnchangedSourceOnce() throws ProxyEvaluationException {
+
+        // Counts how many times the script itself was run in the engine.
+        final String[] script = {"var loads = (typeof loads == 'undefined' ? 0 : loads) + 1; function old() {}" +
+                "function FindProxyForURL(url, host) { return 'DIRECT ' + loads; }"};
+
+        final JavaxPacScriptParser parser = compiled(new VersionedStringProviderAdapter(new StringProvider() {
+            @Override
+            public String get() {
+                return new String(script[0]);
+            }
+        }, 0, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), "DIRECT 1");
+
+        // Reloaded into fresh bindings, nothing of the old script is left.
+        script[0] = "var loads = (typeof loads == 'undefined' ? 0 : loads) + 1;" +
+                "function FindProxyForURL(url, host) { return 'PROXY ' + loads + ' ' + typeof old; }";
+        Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), "PROXY 1 undefined");
+    }
+
+    @Test
+    public void compiledModeShouldPassArgumentsAsValues() throws ProxyEvaluationException {
+
+        final String url  = "http://host1.unit-test.invalid/?q=\"quoted\"\\";
+        final String host = "host1.unit-test.invalid";
+
+        Assert.assertEquals(compiled(provider("echo")).evaluate(url, host), url + " " + host);
+    }
+
+    @Test
+    public void shouldReloadOnlyWhenVersionMoves() throws ProxyEvaluationException {
+
+        for (final JavaxPacScriptParser.EvalMode mode : new JavaxPacScriptParser.EvalMode[]{
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED,
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED}) {
+
+            final String[] script  = {provider("exec").get()};
+            final long[]   version = {1};
+            final int[]    reads   = new int[1];
+
+            final JavaxPacScriptParser parser = parser(new VersionedStringProvider() {
+                @Override
+                public long version() {
+                    return version[0];
+                }
+
+                @Override
+                public String get() {
+                    reads[0]++;
+                    return script[0];
+                }
+            }, mode);
+
+            for (int i = 0; i < 3; i++)
+                Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                        "PROXY http_proxy.unit-test.invalid:8090");
+            Assert.assertEquals(reads[0], 1);
+
+            script[0] = provider("comment").get();
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                    "PROXY http_proxy.unit-test.invalid:8090", "version did not move");
+
+            version[0]++;
+            for (int i = 0; i < 3; i++)
+                Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                        "DIRECT");
+            Assert.assertEquals(reads[0], 2);
+        }
+    }
+
+    @Test
+    public void shouldReadFailedVersionOnce() throws ProxyEvaluationException {
+
+        for (final JavaxPacScriptParser.EvalMode mode : new JavaxPacScriptParser.EvalMode[]{
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED,
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED}) {
+
+            final String[] script  = {"function FindProxyForURL(url, host) { return 'DIRECT' "};
+            final long[]   version = {1};
+            final int[]    reads   = new int[1];
+
+            final JavaxPacScriptParser parser = parser(new VersionedStringProvider() {
+                @Override
+                public long version() {
+                    return version[0];
+                }
+
+                @Override
+                public String get() {
+                    reads[0]++;
+                    return script[0];
+                }
+            }, mode);
+
+            // Nothing good to fall back on, fails without loading again.
+            for (int i = 0; i < 3; i++)
+                try {
+                    parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+                    Assert.fail("should fail");
+                }
+                catch (final ProxyEvaluationException e) {
+                    // Expected.
+                }
+            Assert.assertEquals(reads[0], 1, mode.name());
+
+            script[0] = provider("comment").get();
+            version[0]++;
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), "DIRECT");
+
+            script[0] = "function FindProxyForURL(url, host) { return 'PROXY' ";
+            version[0]++;
+            for (int i = 0; i < 3; i++)
+                Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), "DIRECT");
+            Assert.assertEquals(reads[0], 3, mode.name());
+        }
+    }
+
+    @Test
+    public void shouldKeepLastGoodScriptWhenReloadFails() throws ProxyEvaluationException {
+
+        for (final JavaxPacScriptParser.EvalMode mode : new JavaxPacScriptParser.EvalMode[]{
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_COMPILED,
+                JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED}) {
+
+            final String[] script  = {provider("exec").get()};
+            final long[]   version = {1};
+
+            final JavaxPacScriptParser parser = parser(new VersionedStringProvider() {
+                @Override
+                public long version() {
+                    return version[0];
+                }
+
+                @Override
+                public String get() {
+                    return script[0];
+                }
+            }, mode);
+
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                    "PROXY http_proxy.unit-test.invalid:8090");
+
+            script[0] = "function FindProxyForURL(url, host) { return 'DIRECT' ";
+            version[0]++;
+            for (int i = 0; i < 3; i++)
+                Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"),
+                        "PROXY http_proxy.unit-test.invalid:8090", mode.name());
+
+            script[0] = provider("comment").get();
+            version[0]++;
+            Assert.assertEquals(parser.evaluate(HTTP_TEST_URI.toString(), "host1.unit-test.invalid"), "DIRECT");
+        }
+    }
+
+}
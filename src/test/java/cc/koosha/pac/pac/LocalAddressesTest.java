@@ -0,0 +1,90 @@
+package cc.koosha.pac.pac;
+
+import org.testng.annotations.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertSame;
+
+
+public class LocalAddressesTest {
+
+    private static final String IP = "123.123.123.123";
+
+    private static void override(final String ip) {
+
+        if (ip == null)
+            System.clearProperty(NetRequest.OVERRIDE_LOCAL_IP);
+        else
+            System.setProperty(NetRequest.OVERRIDE_LOCAL_IP, ip);
+    }
+
+    @Test
+    public void shouldKeepAnswerUntilInvalidated() {
+
+        final String         old   = System.getProperty(NetRequest.OVERRIDE_LOCAL_IP);
+        final LocalAddresses local = new LocalAddresses(1, TimeUnit.HOURS);
+
+        try {
+            override(null);
+            final String ipv4 = local.get(Inet4Address.class);
+            assertSame(local.get(Inet4Address.class), ipv4);
+
+            override(IP);
+            assertSame(local.get(Inet4Address.class), ipv4);
+
+            local.invalidate();
+            assertEquals(local.get(Inet4Address.class), IP);
+            assertEquals(local.get(Inet6Address.class), IP);
+        }
+        finally {
+            override(old);
+            local.shutdown();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldFindChangesInBackground() throws InterruptedException {
+
+        final String         old   = System.getProperty(NetRequest.OVERRIDE_LOCAL_IP);
+        final LocalAddresses local = new LocalAddresses(20, TimeUnit.MILLISECONDS);
+
+        try {
+            override(null);
+            assertNotEquals(local.get(Inet4Address.class), IP);
+
+            override(IP);
+            while (!IP.equals(local.get(Inet4Address.class)))
+                Thread.sleep(10);
+            assertEquals(local.changes(), 1);
+        }
+        finally {
+            override(old);
+            local.shutdown();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void backgroundCheckShouldNotKeepInstance() throws InterruptedException {
+
+        final WeakReference<LocalAddresses> local = checked();
+
+        while (local.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    private static WeakReference<LocalAddresses> checked() {
+
+        final LocalAddresses local = new LocalAddresses(20, TimeUnit.MILLISECONDS);
+        local.get(Inet4Address.class);
+        return new WeakReference<>(local);
+    }
+
+}
@@ -0,0 +1,130 @@
+package cc.koosha.pac.pac;
+
+
+import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+
+/**
+ * Compares the heap used by N threads evaluating a big script through an
+ * engine pool (one engine per thread) against the shared compiled script
+ * (one context per thread).
+ */
+public class MemoryTest {
+
+    private static final boolean enabled = false;
+    private static final int     THREADS = 16;
+
+    @Test(enabled = enabled)
+    public void compareEnginePoolAndSharedScript() throws Exception {
+
+        final StringProvider provider = provider();
+
+        final long base = usedHeap();
+
+        final PooledPacScriptParser pool =
+                new PooledPacScriptParser(provider, new DefaultNetRequest(), THREADS);
+        runThreads(pool);
+        final long pooled = usedHeap() - base;
+        assertEquals(pool.size(), THREADS);
+
+        final JavaxPacScriptParser shared = JavaxPacScriptParserTest.parser(
+                provider, JavaxPacScriptParser.EvalMode.EVAL_MODE_SHARED);
+        runThreads(shared);
+        final long both = usedHeap() - base;
+
+        assertTrue(both - pooled < pooled / 2,
+                "engine pool: " + pooled / 1024 + " KiB, shared script: " + (both - pooled) / 1024 + " KiB");
+
+        // Keep both reachable until measured.
+        assertEquals(pool.evaluate("", "example.com"), "PROXY localhost:8080");
+        assertEquals(shared.evaluate("", "example.com"), "PROXY localhost:8080");
+    }
+
+    private void runThreads(final PacScriptParser parser) throws InterruptedException {
+
+        final List<Thread> threads = new ArrayList<>(THREADS);
+
+        // Threads are kept alive until all of them evaluated once, so that the
+        // pool has to create one engine per thread.
+        final Object lock = new Object();
+        final int[]  done = new int[1];
+
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        parser.evaluate("", "0hna.com");
+                        synchronized (lock) {
+                            done[0]++;
+                            lock.notifyAll();
+                            while (done[0] < THREADS)
+                                lock.wait();
+                        }
+                    }
+                    catch (final ProxyEvaluationException | InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (final Thread thread : threads)
+            thread.join();
+    }
+
+    private long usedHeap() throws InterruptedException {
+
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @SuppressWarnings("SpellCheckingInspection")
+    private StringProvider provider() {
+
+        final String[] h = new Scanner(getClass()
+                .getClassLoader()
+                .getResourceAsStream("cc/koosha/pac/pac/hpHosts.txt")).useDelimiter("\\A")
+                                                                      .next()
+                                                                      .split("\n");
+
+        final StringBuilder sb = new StringBuilder(h.length * 60);
+        sb.append("var x = [");
+        for (final String s : h) {
+            if (s.charAt(0) == '#')
+                continue;
+            sb.append("'").append(s.substring(10)).append("', ");
+        }
+        sb.append("];\n\n");
+
+        final String script = sb.toString()
+                + "function FindProxyForURL(url, host) {\n"
+                + "if(host == 'example.com') return 'PROXY localhost:8080';\n"
+                + "if(x.indexOf(host) >= 0) return 'BLOCK';\n"
+                + "return 'DIRECT';\n"
+                + "\n}";
+
+        return new StringProvider() {
+            @Override
+            public String get() {
+                return script;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,128 @@
+package cc.koosha.pac.pac;
+
+import org.testng.annotations.Test;
+
+import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+
+public class PacScriptAnalysisTest {
+
+    private static PacScriptAnalysis analyze(final String body) {
+
+        return PacScriptAnalysis.analyze("function FindProxyForURL(url, host) {\n" + body + "\n}\n");
+    }
+
+    @Test
+    public void shouldFindHostOnlyScripts() {
+
+        final PacScriptAnalysis analysis = analyze("" +
+                "if (isPlainHostName(host) || dnsDomainIs(host, '.local'))\n" +
+                "  return 'DIRECT';\n" +
+                "return 'PROXY p:8080';");
+
+        assertTrue(analysis.isHostOnly());
+        assertFalse(analysis.readsUrl());
+        assertFalse(analysis.usesDns());
+        assertFalse(analysis.usesLocalAddress());
+        assertFalse(analysis.usesTime());
+
+        assertTrue(PacScriptAnalysis.analyze(provider("exec").get()).isHostOnly());
+        assertTrue(PacScriptAnalysis.analyze(provider("comment").get()).isHostOnly());
+    }
+
+    @Test
+    public void shouldFindUrlReads() {
+
+        assertTrue(analyze("return url.substring(0, 5) == 'https' ? 'DIRECT' : 'PROXY p:1';").readsUrl());
+        assertTrue(analyze("return check(url);").readsUrl());
+        assertTrue(analyze("return (function () { return url; })();").readsUrl());
+        assertTrue(analyze("return arguments[0];").readsUrl());
+        assertTrue(PacScriptAnalysis.analyze(provider("echo").get()).readsUrl());
+
+        // Helpers with a parameter of the same name do not count.
+        assertFalse(PacScriptAnalysis.analyze("" +
+                "function check(url) { return url.length; }\n" +
+                "function FindProxyForURL(url, host) { return check(host); }").readsUrl());
+    }
+
+    @Test
+    public void shouldFindDnsAndTimeUse() {
+
+        final PacScriptAnalysis dns = analyze("return isInNet(host, '10.0.0.0', '255.0.0.0') ? 'DIRECT' : 'PROXY p:1';");
+        assertTrue(dns.usesDns());
+        assertTrue(dns.isHostOnly());
+
+        assertTrue(PacScriptAnalysis.analyze(provider("localIp").get()).usesLocalAddress());
+        assertTrue(PacScriptAnalysis.analyze(provider("timeRange").get()).usesTime());
+        assertTrue(PacScriptAnalysis.analyze(provider("weekDay").get()).usesTime());
+        assertFalse(PacScriptAnalysis.analyze(provider("weekDay").get()).usesDate());
+        assertTrue(analyze("return new Date().getHours() > 12 ? 'DIRECT' : 'PROXY p:1';").usesDate());
+
+        // Through a helper function.
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "function resolves(h) { return isResolvable(h); }\n" +
+                "function FindProxyForURL(url, host) { return resolves(host) ? 'DIRECT' : 'PROXY p:1'; }").usesDns());
+    }
+
+    @Test
+    public void shouldFindStateAndOpaqueScripts() {
+
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var calls = 0;\n" +
+                "function FindProxyForURL(url, host) { calls++; return 'DIRECT'; }").isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var seen = [];\n" +
+                "function FindProxyForURL(url, host) { seen.push(host); return 'DIRECT'; }").isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var memo = {};\n" +
+                "function FindProxyForURL(url, host) { memo[host] = 1; return 'DIRECT'; }").isStateful());
+
+        // Local and load time writes are fine.
+        assertFalse(PacScriptAnalysis.analyze("" +
+                "var proxy = 'PROXY p:1';\n" +
+                "proxy = proxy + '; DIRECT';\n" +
+                "function FindProxyForURL(url, host) { var n = 0; n++; var a = []; a.push(n); return proxy; }").isStateful());
+
+        // Through an alias, a parameter or a computed member.
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var seen = [];\n" +
+                "function add(a, x) { a.push(x); }\n" +
+                "function FindProxyForURL(url, host) { add(seen, host); return 'DIRECT'; }").isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var memo = {};\n" +
+                "function FindProxyForURL(url, host) { var m = memo; m[host] = 1; return 'DIRECT'; }").isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var memo = {};\n" +
+                "function FindProxyForURL(url, host) { var o = {}; o.m = memo; o.m[host] = 1; return 'DIRECT'; }")
+                .isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var seen = [];\n" +
+                "function FindProxyForURL(url, host) { Array.prototype.push.call(seen, host); return 'DIRECT'; }")
+                .isStateful());
+        assertTrue(analyze("return this['dnsResolve'](host);").isStateful());
+        assertFalse(analyze("return this['dnsResolve'](host);").isHostOnly());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var f = (function () { var n = 0; return function () { return n++; }; })();\n" +
+                "function FindProxyForURL(url, host) { return 'PROXY p:' + f(); }").isStateful());
+        assertTrue(PacScriptAnalysis.analyze("" +
+                "var last;\n" +
+                "function FindProxyForURL(url, host) { for (last in {a: 1}) {} return 'DIRECT'; }").isStateful());
+
+        assertTrue(analyze("return eval('1');").isOpaque());
+        assertTrue(analyze("try { return 'DIRECT'; } catch (e) {}").isOpaque());
+        assertTrue(PacScriptAnalysis.analyze("var FindProxyForURL = function (url, host) { return 'DIRECT'; };").isOpaque());
+
+        assertFalse(analyze("return eval('1');").isHostOnly());
+    }
+
+    @Test
+    public void shouldReportFlags() {
+
+        assertEquals(analyze("return 'DIRECT';").toString(), "PacScriptAnalysis{opaque=false, stateful=false, " +
+                "readsUrl=false, usesDns=false, usesLocalAddress=false, usesTime=false, usesDate=false}");
+    }
+
+}
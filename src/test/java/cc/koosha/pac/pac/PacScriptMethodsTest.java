@@ -210,4 +210,48 @@ public class PacScriptMethodsTest {
         assertFalse(buildParser().timeRange(12, 50, 0, 9, 30, 0, "GMT"));
     }
 
+    private static long at(final int day, final int hour, final int minute) {
+
+        final Calendar cal = Calendar.getInstance();
+        cal.set(1994, Calendar.DECEMBER, day, hour, minute, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+
+    @Test
+    public void timeFunctionsShouldRecordNextFlip() {
+
+        final DefaultPacScriptMethods methods = buildParser();
+
+        EvaluationContext context = EvaluationContext.begin();
+        try {
+            assertTrue(methods.timeRange(11, 30, 13, 30, "undefined", "undefined", "undefined"));
+        }
+        finally {
+            context.end();
+        }
+        assertEquals(context.expiresAt(), at(15, 13, 31));
+
+        context = EvaluationContext.begin();
+        try {
+            assertFalse(methods.timeRange(13, 14, "undefined", "undefined", "undefined", "undefined", "undefined"));
+        }
+        finally {
+            context.end();
+        }
+        assertEquals(context.expiresAt(), at(15, 13, 0));
+
+        context = EvaluationContext.begin();
+        try {
+            assertFalse(methods.weekdayRange("MON", "WED", null));
+            assertTrue(methods.dateRange(15, "undefined", "undefined", "undefined", "undefined", "undefined", "undefined"));
+        }
+        finally {
+            context.end();
+        }
+        assertEquals(context.expiresAt(), at(16, 0, 0));
+
+        assertNull(EvaluationContext.current());
+    }
+
 }
@@ -0,0 +1,140 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class PooledPacScriptParserTest {
+
+    @Test
+    public void shouldEvaluateConcurrentlyWithinPoolBounds() throws Exception {
+
+        final PooledPacScriptParser parser =
+                new PooledPacScriptParser(provider("echo"), new DefaultNetRequest(), 4);
+
+        final ExecutorService    executor = Executors.newFixedThreadPool(16);
+        final List<Future<Void>> futures  = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < 16; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws ProxyEvaluationException {
+                        for (int i = 0; i < 50; i++) {
+                            final String host = "h" + thread + "-" + i + ".unit-test.invalid";
+                            final String url  = "http://" + host + "/";
+                            assertEquals(parser.evaluate(url, host), url + " " + host);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(parser.size() >= 1 && parser.size() <= 4, "pool size: " + parser.size());
+    }
+
+    @Test
+    public void shouldReleaseSlotWhenCreationFails() throws ProxyEvaluationException {
+
+        final int[] attempts = new int[1];
+
+        final PooledPacScriptParser parser = new PooledPacScriptParser(
+                new PooledPacScriptParser.ParserFactory() {
+                    @Override
+                    public PacScriptParser create() throws ProxyEvaluationException {
+                        if (attempts[0]++ == 0)
+                            throw new ProxyEvaluationException(new IllegalStateException("boom"));
+                        return new JavaxPacScriptParser(provider("exec"));
+                    }
+                }, 1);
+
+        try {
+            parser.evaluate("http://a.invalid/", "a.invalid");
+        }
+        catch (final ProxyEvaluationException ignored) {
+        }
+
+        assertEquals(parser.size(), 0);
+        assertEquals(parser.evaluate("http://a.invalid/", "a.invalid"),
+                "PROXY http_proxy.unit-test.invalid:8090");
+        assertEquals(parser.size(), 1);
+    }
+
+    @Test(timeOut = 10000)
+    public void waitersShouldTakeSlotOfFailedCreation() throws Exception {
+
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch release  = new CountDownLatch(1);
+
+        final PooledPacScriptParser parser = new PooledPacScriptParser(
+                new PooledPacScriptParser.ParserFactory() {
+                    @Override
+                    public PacScriptParser create() throws ProxyEvaluationException {
+                        if (creating.getCount() == 0)
+                            return new JavaxPacScriptParser(provider("exec"));
+
+                        creating.countDown();
+                        try {
+                            release.await();
+                        }
+                        catch (final InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        // Not a ProxyEvaluationException, wrapped by the pool.
+                        throw new IllegalStateException("no engine");
+                    }
+                }, 1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> failing = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws ProxyEvaluationException {
+                    return parser.evaluate("http://a.invalid/", "a.invalid");
+                }
+            });
+            creating.await();
+
+            final Future<String> waiting = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws ProxyEvaluationException {
+                    return parser.evaluate("http://a.invalid/", "a.invalid");
+                }
+            });
+            Thread.sleep(100);
+            release.countDown();
+
+            try {
+                failing.get();
+                fail("should fail");
+            }
+            catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof ProxyEvaluationException, String.valueOf(e.getCause()));
+            }
+
+            assertEquals(waiting.get(), "PROXY http_proxy.unit-test.invalid:8090");
+            assertEquals(parser.size(), 1);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
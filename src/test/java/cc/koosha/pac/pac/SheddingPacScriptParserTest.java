@@ -0,0 +1,147 @@
+package cc.koosha.pac.pac;
+
+import cc.koosha.pac.ProxyEvaluationException;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class SheddingPacScriptParserTest {
+
+    /**
+     * Answers "PROXY host:80", blocking while the gate is closed.
+     */
+    private static final class GatedParser implements PacScriptParser {
+
+        volatile CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch gate    = new CountDownLatch(0);
+
+        void close() {
+
+            this.entered = new CountDownLatch(1);
+            this.gate = new CountDownLatch(1);
+        }
+
+        @Override
+        public String evaluate(final String url, final String host) throws ProxyEvaluationException {
+
+            this.entered.countDown();
+            try {
+                this.gate.await();
+            }
+            catch (final InterruptedException e) {
+                throw new ProxyEvaluationException(e);
+            }
+            return "PROXY " + host + ":80";
+        }
+    }
+
+    private static Future<String> evaluateAsync(final ExecutorService executor,
+                                                final PacScriptParser parser,
+                                                final String host) {
+
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return parser.evaluate("http://" + host + "/", host);
+            }
+        });
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldShedToStaleOrFallbackWhenBusy() throws Exception {
+
+        final GatedParser             gated  = new GatedParser();
+        final SheddingPacScriptParser parser = new SheddingPacScriptParser(
+                gated, 1, 0, 0, TimeUnit.MILLISECONDS, "DIRECT", 16);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            assertEquals(parser.evaluate("http://a/", "a"), "PROXY a:80");
+
+            gated.close();
+            final Future<String> busy = evaluateAsync(executor, parser, "b");
+            gated.entered.await();
+
+            assertEquals(parser.evaluate("http://a/", "a"), "PROXY a:80");
+            assertEquals(parser.evaluate("http://c/", "c"), "DIRECT");
+            assertEquals(parser.shedToStale(), 1);
+            assertEquals(parser.shedToFallback(), 1);
+
+            gated.gate.countDown();
+            assertEquals(busy.get(), "PROXY b:80");
+            assertEquals(parser.evaluations(), 2);
+
+            assertEquals(parser.evaluate("http://c/", "c"), "PROXY c:80");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldBoundQueue() throws Exception {
+
+        final GatedParser             gated  = new GatedParser();
+        final SheddingPacScriptParser parser = new SheddingPacScriptParser(
+                gated, 1, 1, 10, TimeUnit.SECONDS, null, 16);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            gated.close();
+            final Future<String> running = evaluateAsync(executor, parser, "a");
+            gated.entered.await();
+
+            final Future<String> queued = evaluateAsync(executor, parser, "b");
+            while (parser.queueDepth() != 1)
+                Thread.sleep(1);
+
+            try {
+                parser.evaluate("http://c/", "c");
+                fail("should be shed");
+            }
+            catch (final ProxyEvaluationException e) {
+                // Expected, no fallback.
+            }
+            assertEquals(parser.shedToFallback(), 1);
+
+            gated.gate.countDown();
+            assertEquals(running.get(), "PROXY a:80");
+            assertEquals(queued.get(), "PROXY b:80");
+            assertEquals(parser.queueDepth(), 0);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldShedAfterMaxWait() throws Exception {
+
+        final GatedParser             gated  = new GatedParser();
+        final SheddingPacScriptParser parser = new SheddingPacScriptParser(
+                gated, 1, 8, 50, TimeUnit.MILLISECONDS, "DIRECT", 16);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            gated.close();
+            final Future<String> running = evaluateAsync(executor, parser, "a");
+            gated.entered.await();
+
+            final long start = System.nanoTime();
+            assertEquals(parser.evaluate("http://b/", "b"), "DIRECT");
+            if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(40))
+                fail("should have waited");
+
+            gated.gate.countDown();
+            assertEquals(running.get(), "PROXY a:80");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
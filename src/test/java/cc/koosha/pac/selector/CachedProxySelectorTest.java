@@ -0,0 +1,541 @@
+package cc.koosha.pac.selector;
+
+import cc.koosha.pac.pac.EvaluationContext;
+import cc.koosha.pac.selector.CachedProxySelector.CacheScope;
+import cc.koosha.pac.selector.CachedProxySelector.EvictionPolicy;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class CachedProxySelectorTest {
+
+    @Test
+    public void shouldPickScopeAndTtlFromScript() {
+
+        final CachedProxySelector host = CachedProxySelector.forScript(
+                new NoProxySelector(), provider("exec").get(), 100, 60000);
+        assertEquals(host.getCacheScope(), CacheScope.CACHE_SCOPE_HOST);
+        assertEquals(host.getTtl(), 60000);
+
+        final CachedProxySelector url = CachedProxySelector.forScript(
+                new NoProxySelector(), provider("echo").get(), 100, 60000);
+        assertEquals(url.getCacheScope(), CacheScope.CACHE_SCOPE_URL);
+
+        final CachedProxySelector dns = CachedProxySelector.forScript(
+                new NoProxySelector(), provider("localIp").get(), 100, 60000);
+        assertEquals(dns.getCacheScope(), CacheScope.CACHE_SCOPE_HOST);
+        assertEquals(dns.getTtl(), CachedProxySelector.DNS_TTL);
+
+        final CachedProxySelector time = CachedProxySelector.forScript(
+                new NoProxySelector(), provider("timeRange").get(), 100, 60000);
+        assertEquals(time.getTtl(), 60000);
+
+        final CachedProxySelector date = CachedProxySelector.forScript(
+                new NoProxySelector(),
+                "function FindProxyForURL(url, host) { return new Date().getHours() > 12 ? 'DIRECT' : 'PROXY p:1'; }",
+                100, 60000);
+        assertEquals(date.getTtl(), CachedProxySelector.TIME_TTL);
+    }
+
+    @Test
+    public void shouldExpireWhenEvaluationSays() throws InterruptedException {
+
+        final int[] calls = new int[1];
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                calls[0]++;
+                EvaluationContext.expireCurrentAt(System.currentTimeMillis() + 200);
+                return this.noProxyList();
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+
+        final URI uri = URI.create("http://host1.unit-test.invalid/");
+
+        cache.select(uri);
+        cache.select(uri);
+        assertEquals(calls[0], 1);
+
+        Thread.sleep(300);
+        cache.select(uri);
+        assertEquals(calls[0], 2);
+        assertNull(EvaluationContext.current());
+    }
+
+    @Test
+    public void shouldEvictEntriesNotRecentlyHit() {
+
+        final int[] calls = new int[1];
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                calls[0]++;
+                return this.noProxyList();
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 3, 60000);
+
+        for (final String host : new String[]{"a", "b", "c", "a"})
+            cache.select(URI.create("http://" + host + ".unit-test.invalid/"));
+        assertEquals(calls[0], 3);
+
+        // Full, b is the first not hit since inserted.
+        cache.select(URI.create("http://d.unit-test.invalid/"));
+        cache.select(URI.create("http://a.unit-test.invalid/"));
+        cache.select(URI.create("http://c.unit-test.invalid/"));
+        assertEquals(calls[0], 4);
+
+        cache.select(URI.create("http://b.unit-test.invalid/"));
+        assertEquals(calls[0], 5);
+    }
+
+    @Test
+    public void shedResultsShouldNotEvictLiveEntries() {
+
+        for (final EvictionPolicy policy : EvictionPolicy.values()) {
+            final AtomicInteger       calls = new AtomicInteger();
+            final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+                @Override
+                protected List<Proxy> _select(final URI uri) {
+                    calls.incrementAndGet();
+                    // Shed, the fallback expires at once.
+                    if (uri.getHost().startsWith("shed"))
+                        EvaluationContext.expireCurrentAt(System.currentTimeMillis());
+                    return this.noProxyList();
+                }
+            }, CacheScope.CACHE_SCOPE_HOST, 2, 60000, 0, policy);
+
+            final URI live = URI.create("http://live.unit-test.invalid/");
+            cache.select(live);
+
+            for (int i = 0; i < 1000; i++)
+                cache.select(URI.create("http://shed-" + i + ".unit-test.invalid/"));
+            assertEquals(calls.get(), 1001);
+
+            cache.select(live);
+            assertEquals(calls.get(), 1001, policy.name());
+
+            // Not cached either, selected again.
+            cache.select(URI.create("http://shed-0.unit-test.invalid/"));
+            assertEquals(calls.get(), 1002);
+        }
+    }
+
+    /**
+     * Hosts picked from a Zipfian distribution, every other request to a
+     * host never seen again, like those of a crawl.
+     */
+    private static URI[] zipfianTrace(final int hosts, final int length) {
+
+        final double[] cdf = new double[hosts];
+        double         sum = 0;
+        for (int i = 0; i < hosts; i++)
+            cdf[i] = sum += 1.0 / (i + 1);
+
+        final Random random = new Random(42);
+        final URI[]  trace  = new URI[length];
+        for (int i = 0; i < length; i++) {
+            if (i % 2 == 1) {
+                trace[i] = URI.create("http://crawl-" + i + ".unit-test.invalid/");
+                continue;
+            }
+            int host = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (host < 0)
+                host = -host - 1;
+            trace[i] = URI.create("http://host-" + host + ".unit-test.invalid/");
+        }
+
+        return trace;
+    }
+
+    private static double hitRate(final EvictionPolicy policy, final URI[] trace) {
+
+        final int[] calls = new int[1];
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                calls[0]++;
+                return this.noProxyList();
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 500, 60000, 0, policy);
+
+        for (final URI uri : trace)
+            cache.select(uri);
+
+        return 1 - calls[0] / (double) trace.length;
+    }
+
+    @Test
+    public void tinyLfuShouldKeepHotHostsAmongOneHitWonders() {
+
+        final URI[] trace = zipfianTrace(10000, 200000);
+
+        final double clock   = hitRate(EvictionPolicy.EVICTION_POLICY_CLOCK, trace);
+        final double tinyLfu = hitRate(EvictionPolicy.EVICTION_POLICY_TINY_LFU, trace);
+
+        assertTrue(tinyLfu > clock + 0.05, "clock: " + clock + ", tinyLfu: " + tinyLfu);
+    }
+
+    @Test
+    public void tinyLfuShouldReplaceEntriesOfSameKey() throws InterruptedException {
+
+        final int[] calls = new int[1];
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                calls[0]++;
+                EvaluationContext.expireCurrentAt(System.currentTimeMillis() + 100);
+                return this.noProxyList();
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 1, 60000, 0, EvictionPolicy.EVICTION_POLICY_TINY_LFU);
+
+        final URI uri = URI.create("http://host1.unit-test.invalid/");
+
+        cache.select(uri);
+        cache.select(uri);
+        assertEquals(calls[0], 1);
+
+        Thread.sleep(200);
+        cache.select(uri);
+        cache.select(uri);
+        assertEquals(calls[0], 2);
+
+        cache.flush();
+        cache.select(uri);
+        assertEquals(calls[0], 3);
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldRefreshHotEntriesAhead() throws InterruptedException {
+
+        final AtomicInteger   calls    = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                final InetSocketAddress address =
+                        InetSocketAddress.createUnresolved("proxy-" + calls.incrementAndGet(), 8080);
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, address));
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 100, 2000, 0, EvictionPolicy.EVICTION_POLICY_CLOCK, 0.3, executor);
+
+        final URI uri = URI.create("http://host1.unit-test.invalid/");
+
+        final List<Proxy> first = cache.select(uri);
+        assertSame(cache.select(uri), first);
+        assertEquals(cache.refreshes(), 0);
+
+        // In the last 30% of its life, served while refreshed.
+        Thread.sleep(1500);
+        assertSame(cache.select(uri), first);
+        while (cache.refreshes() == 0)
+            Thread.sleep(10);
+        assertEquals(calls.get(), 2);
+
+        final List<Proxy> second = cache.select(uri);
+        assertNotSame(second, first);
+
+        // Past the first entry's expiry, still no miss.
+        Thread.sleep(800);
+        assertSame(cache.select(uri), second);
+        assertEquals(calls.get(), 2);
+
+        executor.shutdown();
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldRefreshAgainAfterFailedRefresh() throws InterruptedException {
+
+        final AtomicInteger   calls    = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                if (calls.incrementAndGet() == 2)
+                    throw new IllegalStateException("first refresh fails");
+                final InetSocketAddress address =
+                        InetSocketAddress.createUnresolved("proxy-" + calls.get(), 8080);
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, address));
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 100, 2000, 0, EvictionPolicy.EVICTION_POLICY_CLOCK, 0.3, executor);
+
+        final URI uri = URI.create("http://host1.unit-test.invalid/");
+
+        final List<Proxy> first = cache.select(uri);
+
+        // The first refresh throws, the stale entry is still served.
+        Thread.sleep(1500);
+        assertSame(cache.select(uri), first);
+        while (calls.get() < 2)
+            Thread.sleep(10);
+        assertEquals(cache.refreshes(), 0);
+
+        // The next hit refreshes again.
+        while (cache.refreshes() == 0) {
+            cache.select(uri);
+            Thread.sleep(10);
+        }
+        assertEquals(calls.get(), 3);
+        assertNotSame(cache.select(uri), first);
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void entriesShouldShareEqualResults() {
+
+        final List<List<Proxy>> returned = new ArrayList<>();
+
+        final CachedProxySelector cache = new CachedProxySelector(new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                final List<Proxy> result = new ArrayList<>();
+                result.add(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("proxy.invalid", 8080)));
+                returned.add(result);
+                return result;
+            }
+        }, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+
+        final List<Proxy> first = cache.select(URI.create("http://host1.unit-test.invalid/"));
+        assertSame(cache.select(URI.create("http://host2.unit-test.invalid/")), first);
+        assertEquals(returned.size(), 2);
+
+        // A copy, not what the delegate returned.
+        returned.get(0).clear();
+        assertEquals(first.size(), 1);
+        assertSame(cache.select(URI.create("http://host1.unit-test.invalid/")), first);
+    }
+
+    @Test
+    public void shouldRestoreSnapshotOfSameScriptVersion() throws IOException {
+
+        final AtomicInteger  calls    = new AtomicInteger();
+        final EProxySelector delegate = new EProxySelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+                calls.incrementAndGet();
+                if (uri.getHost().startsWith("direct"))
+                    return this.noProxyList();
+                if (uri.getHost().startsWith("short"))
+                    EvaluationContext.expireCurrentAt(System.currentTimeMillis() - 1);
+                return Arrays.asList(
+                        new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("proxy.invalid", 8080)),
+                        new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("socks.invalid", 1080)));
+            }
+        };
+
+        final CachedProxySelector cache = new CachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+        for (final String host : new String[]{"direct", "proxied-1", "proxied-2", "short"})
+            cache.select(URI.create("http://" + host + ".unit-test.invalid/"));
+        assertEquals(calls.get(), 4);
+
+        final File file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+        assertEquals(cache.save(file, 7), 3);
+
+        final CachedProxySelector restored = new CachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+        assertEquals(restored.restore(file, 6), 0);
+        assertEquals(restored.restore(file, 7), 3);
+
+        assertEquals(restored.select(URI.create("http://direct.unit-test.invalid/")), Arrays.asList(Proxy.NO_PROXY));
+        assertEquals(restored.select(URI.create("http://proxied-2.unit-test.invalid/")),
+                cache.select(URI.create("http://proxied-2.unit-test.invalid/")));
+        assertEquals(calls.get(), 4);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        try {
+            restored.restore(file, 7);
+            fail("should fail");
+        }
+        catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void shouldRejectSnapshotOfCorruptLength() throws IOException {
+
+        final CachedProxySelector cache = new CachedProxySelector(
+                new NoProxySelector(), CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+
+        final File file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+
+        for (final int length : new int[]{Integer.MAX_VALUE, -1}) {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                out.writeInt(0x50414343);
+                out.writeInt(1);
+                out.writeLong(7);
+                out.writeLong(System.currentTimeMillis());
+
+                // A list of one proxy, its host claiming the given length.
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeByte(Proxy.Type.HTTP.ordinal());
+                out.writeInt(length);
+                out.writeBytes("proxy.invalid");
+            }
+
+            try {
+                cache.restore(file, 7);
+                fail("should fail");
+            }
+            catch (final IOException e) {
+                assertTrue(e.getMessage().contains("corrupt"), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotLeaveTempFileWhenSaveFails() throws IOException {
+
+        final CachedProxySelector cache = new CachedProxySelector(
+                new NoProxySelector(), CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+        cache.select(URI.create("http://host1.unit-test.invalid/"));
+
+        // A directory not empty can not be replaced.
+        final File dir   = Files.createTempDirectory("cache").toFile();
+        final File child = new File(dir, "child");
+        assertTrue(child.createNewFile());
+
+        try {
+            cache.save(dir, 7);
+            fail("should fail");
+        }
+        catch (final IOException e) {
+            assertFalse(new File(dir.getPath() + ".tmp").exists());
+        }
+        finally {
+            child.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Blocks the first selection until released, counting all.
+     */
+    private static final class GatedSelector extends EProxySelector {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger  calls   = new AtomicInteger();
+
+        @Override
+        protected List<Proxy> _select(final URI uri) {
+
+            if (this.calls.incrementAndGet() == 1)
+                try {
+                    this.release.await();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            return this.noProxyList();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void concurrentMissesShouldShareOneLoad() throws Exception {
+
+        final int                 threads  = 8;
+        final GatedSelector       delegate = new GatedSelector();
+        final CachedProxySelector cache    = new CachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+
+        final ExecutorService           executor = Executors.newFixedThreadPool(threads);
+        final List<Future<List<Proxy>>> results  = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            results.add(executor.submit(new Callable<List<Proxy>>() {
+                @Override
+                public List<Proxy> call() {
+                    return cache.select(URI.create("http://host1.unit-test.invalid/" + Math.random()));
+                }
+            }));
+
+        while (cache.coalesced() < threads - 1)
+            Thread.sleep(5);
+        delegate.release.countDown();
+
+        for (final Future<List<Proxy>> result : results)
+            assertSame(result.get(), results.get(0).get());
+        assertEquals(delegate.calls.get(), 1);
+
+        executor.shutdown();
+    }
+
+    @Test(timeOut = 10000)
+    public void followersShouldLoadOnTheirOwnPastMaxWait() throws Exception {
+
+        final GatedSelector       delegate = new GatedSelector();
+        final CachedProxySelector cache    = new CachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 100, 60000, 50);
+
+        final URI             uri      = URI.create("http://host1.unit-test.invalid/");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<?>       leader   = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                cache.select(uri);
+            }
+        });
+
+        while (delegate.calls.get() < 1)
+            Thread.sleep(5);
+
+        // The leader is stuck, this one waits 50ms then loads itself.
+        assertEquals(cache.select(uri), Arrays.asList(Proxy.NO_PROXY));
+        assertEquals(delegate.calls.get(), 2);
+        assertEquals(cache.coalesced(), 1);
+
+        delegate.release.countDown();
+        leader.get();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldNotCacheUrisWithoutHost() {
+
+        final GatedSelector delegate = new GatedSelector();
+        delegate.release.countDown();
+
+        final CachedProxySelector cache = new CachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 100, 60000);
+
+        cache.select(URI.create("file:///tmp/x"));
+        cache.select(URI.create("file:///tmp/x"));
+        assertEquals(delegate.calls.get(), 2);
+    }
+
+}
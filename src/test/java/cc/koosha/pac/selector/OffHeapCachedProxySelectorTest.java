@@ -0,0 +1,134 @@
+package cc.koosha.pac.selector;
+
+import cc.koosha.pac.pac.EvaluationContext;
+import cc.koosha.pac.selector.CachedProxySelector.CacheScope;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+
+public class OffHeapCachedProxySelectorTest {
+
+    /**
+     * Answers a proxy per host of the ten first letters, counting calls.
+     */
+    private static class CountingSelector extends EProxySelector {
+
+        int calls = 0;
+
+        @Override
+        protected List<Proxy> _select(final URI uri) {
+
+            this.calls++;
+            final InetSocketAddress address = InetSocketAddress.createUnresolved(
+                    "proxy-" + uri.getHost().charAt(0) % 10, 8080);
+            return Collections.singletonList(new Proxy(Proxy.Type.HTTP, address));
+        }
+    }
+
+    @Test
+    public void shouldCacheAndShareResults() {
+
+        final CountingSelector           delegate = new CountingSelector();
+        final OffHeapCachedProxySelector cache    = new OffHeapCachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_URL, 1 << 16, 60000);
+
+        final List<Proxy> a = cache.select(URI.create("http://a.unit-test.invalid/"));
+        assertSame(cache.select(URI.create("http://a.unit-test.invalid/")), a);
+        assertEquals(delegate.calls, 1);
+
+        // Same result, same list.
+        assertSame(cache.select(URI.create("http://k.unit-test.invalid/")), a);
+        assertEquals(delegate.calls, 2);
+
+        // Not ascii, stored wide.
+        final URI wide = URI.create("http://b.unit-test.invalid/\u00e9t\u00e9");
+        cache.select(wide);
+        cache.select(wide);
+        assertEquals(delegate.calls, 3);
+        assertEquals(cache.size(), 3);
+
+        cache.flush();
+        assertEquals(cache.size(), 0);
+        cache.select(URI.create("http://a.unit-test.invalid/"));
+        assertEquals(delegate.calls, 4);
+    }
+
+    @Test
+    public void shouldEvictOldestWithinBytes() {
+
+        final CountingSelector           delegate = new CountingSelector();
+        final OffHeapCachedProxySelector cache    = new OffHeapCachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_URL, ByteBuffer.allocate(1 << 16), 60000);
+
+        final int count = 100000;
+        for (int i = 0; i < count; i++)
+            cache.select(URI.create("http://h" + i + ".unit-test.invalid/path"));
+        assertEquals(delegate.calls, count);
+
+        final int size = cache.size();
+        assertTrue(size > 500 && size < 2000, "size: " + size);
+        assertEquals(cache.evictions(), count - size);
+
+        // The newest are kept, the oldest gone.
+        for (int i = count - size; i < count; i++)
+            cache.select(URI.create("http://h" + i + ".unit-test.invalid/path"));
+        assertEquals(delegate.calls, count);
+
+        cache.select(URI.create("http://h0.unit-test.invalid/path"));
+        assertEquals(delegate.calls, count + 1);
+    }
+
+    @Test
+    public void shouldReplaceExpiredEntries() throws InterruptedException {
+
+        final CountingSelector           delegate = new CountingSelector();
+        final OffHeapCachedProxySelector cache    = new OffHeapCachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 1 << 16, 100);
+
+        final URI uri = URI.create("http://a.unit-test.invalid/");
+        cache.select(uri);
+        Thread.sleep(200);
+        cache.select(uri);
+        cache.select(uri);
+
+        assertEquals(delegate.calls, 2);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void shouldNotCacheShedResults() {
+
+        final CountingSelector           delegate = new CountingSelector() {
+            @Override
+            protected List<Proxy> _select(final URI uri) {
+
+                if (uri.getHost().startsWith("shed"))
+                    EvaluationContext.expireCurrentAt(System.currentTimeMillis());
+                return super._select(uri);
+            }
+        };
+        final OffHeapCachedProxySelector cache    = new OffHeapCachedProxySelector(
+                delegate, CacheScope.CACHE_SCOPE_HOST, 1 << 16, 60000);
+
+        final URI live = URI.create("http://live.unit-test.invalid/");
+        cache.select(live);
+        for (int i = 0; i < 10000; i++)
+            cache.select(URI.create("http://shed-" + i + ".unit-test.invalid/"));
+
+        cache.select(live);
+        assertEquals(delegate.calls, 10001);
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.evictions(), 0);
+    }
+
+}
@@ -1,18 +1,24 @@
 package cc.koosha.pac.selector;
 
 import cc.koosha.pac.ProxyEvaluationException;
+import cc.koosha.pac.StringProvider;
+import cc.koosha.pac.pac.BuiltinPacScriptParser;
+import cc.koosha.pac.pac.LocalAddresses;
 import cc.koosha.pac.pac.NetRequest;
+import cc.koosha.pac.pac.PacScriptParser;
+import cc.koosha.pac.pac.PrefetchingNetRequest;
 import org.testng.annotations.Test;
 
-import java.net.InetSocketAddress;
-import java.net.MalformedURLException;
-import java.net.Proxy;
+import java.net.*;
 import java.net.Proxy.Type;
-import java.net.URI;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cc.koosha.pac.pac.JavaxPacScriptParserTest.provider;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 
 
 public class PacProxySelectorTest {
@@ -72,6 +78,7 @@ public class PacProxySelectorTest {
                 System.getProperty(NetRequest.OVERRIDE_LOCAL_IP, "__WAS_NOT_SET__");
 
         System.setProperty(NetRequest.OVERRIDE_LOCAL_IP, ip);
+        LocalAddresses.shared().invalidate();
 
         try {
             final PacProxySelector pacProxySelector = new PacProxySelector(provider("localIp"));
@@ -83,7 +90,151 @@ public class PacProxySelectorTest {
         finally {
             if (!"__WAS_NOT_SET__".equals(old))
                 System.setProperty(NetRequest.OVERRIDE_LOCAL_IP, old);
+            LocalAddresses.shared().invalidate();
         }
     }
 
+    @Test
+    public void shouldParseResultsInOnePass() {
+
+        final List<Proxy> proxies = PacProxySelector.parsePacResult(
+                " PROXY a.unit-test.invalid:8080;SOCKS b.unit-test.invalid ; ; direct;PROXY [::1]");
+
+        assertEquals(proxies.size(), 4);
+        assertEquals(proxies.get(0), new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("a.unit-test.invalid", 8080)));
+        assertEquals(proxies.get(1), new Proxy(Type.SOCKS, InetSocketAddress.createUnresolved("b.unit-test.invalid", 80)));
+        assertEquals(proxies.get(2), Proxy.NO_PROXY);
+        assertEquals(proxies.get(3), new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("[::1]", 80)));
+
+        assertEquals(PacProxySelector.parsePacResult("").size(), 0);
+    }
+
+    @Test
+    public void shouldShareParsedResults() {
+
+        final PacProxySelector pacProxySelector = new PacProxySelector(new PacScriptParser() {
+            @Override
+            public String evaluate(final String url, final String host) {
+                return new String("PROXY " + "http_proxy.unit-test.invalid:8090; DIRECT");
+            }
+        });
+
+        final List<Proxy> first = pacProxySelector.select(HTTP_TEST_URI);
+        assertEquals(first, Arrays.asList(HTTP_TEST_PROXY, Proxy.NO_PROXY));
+        assertSame(pacProxySelector.select(HTTPS_TEST_URI), first);
+    }
+
+    private static StringProvider source(final String script) {
+
+        return new StringProvider() {
+            @Override
+            public String get() {
+                return script;
+            }
+        };
+    }
+
+    /**
+     * Resolves every host to 10.0.0.1, once released.
+     */
+    private static final class GatedNetRequest implements NetRequest {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger  lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress tryGet(final String host) {
+
+            final InetAddress[] all = this.tryGetAllByName(host);
+            return all == null ? null : all[0];
+        }
+
+        @Override
+        public String dnsResolve(final String host, final String defaultValue) {
+
+            return this.tryGet(host).getHostAddress();
+        }
+
+        @Override
+        public byte[] tryGetAddress(final String host) {
+
+            return this.tryGet(host).getAddress();
+        }
+
+        @Override
+        public InetAddress[] tryGetAllByName(final String host) {
+
+            this.lookups.incrementAndGet();
+            try {
+                this.release.await();
+                return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, 1})};
+            }
+            catch (final InterruptedException | UnknownHostException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getLocalAddressOfType(final Class<? extends InetAddress> cl) {
+
+            return "";
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void scriptShouldJoinPrefetchedLookup() throws Exception {
+
+        final StringProvider script = source("" +
+                "function FindProxyForURL(url, host) {\n" +
+                "  return isInNet(host, '10.0.0.0', '255.0.0.0') ? 'DIRECT' : 'PROXY p.unit-test.invalid:8080';\n" +
+                "}\n");
+
+        final GatedNetRequest       net         = new GatedNetRequest();
+        final PrefetchingNetRequest prefetching = new PrefetchingNetRequest(net);
+        final PacProxySelector      selector    = PacProxySelector.forScript(
+                new BuiltinPacScriptParser(script, prefetching), script.get(), prefetching);
+
+        final ExecutorService     executor = Executors.newSingleThreadExecutor();
+        final Future<List<Proxy>> result   = executor.submit(new Callable<List<Proxy>>() {
+            @Override
+            public List<Proxy> call() {
+                return selector.select(HTTP_TEST_URI);
+            }
+        });
+
+        // Started before evaluation, and the script waits for it.
+        while (prefetching.joined() < 1)
+            Thread.sleep(5);
+        net.release.countDown();
+
+        assertEquals(result.get(), Arrays.asList(Proxy.NO_PROXY));
+        assertEquals(net.lookups.get(), 1);
+        assertEquals(prefetching.prefetches(), 1);
+
+        executor.shutdown();
+        prefetching.shutdown();
+    }
+
+    @Test
+    public void shouldPrefetchHintedHostsOnlyForScriptsResolving() throws Exception {
+
+        final GatedNetRequest       net         = new GatedNetRequest();
+        final PrefetchingNetRequest prefetching = new PrefetchingNetRequest(net);
+        net.release.countDown();
+
+        final PacProxySelector noDns = PacProxySelector.forScript(
+                new BuiltinPacScriptParser(provider("exec"), prefetching), provider("exec").get(), prefetching);
+        noDns.select(HTTP_TEST_URI);
+        noDns.prefetch(Arrays.asList("a.unit-test.invalid", "b.unit-test.invalid"));
+        assertEquals(prefetching.prefetches(), 0);
+
+        final StringProvider   script = source("function FindProxyForURL(url, host) { return dnsResolve(host); }");
+        final PacProxySelector dns    = PacProxySelector.forScript(
+                new BuiltinPacScriptParser(script, prefetching), script.get(), prefetching);
+        dns.prefetch(Arrays.asList("a.unit-test.invalid", "b.unit-test.invalid", null));
+        assertEquals(prefetching.prefetches(), 2);
+
+        prefetching.shutdown();
+    }
+
 }